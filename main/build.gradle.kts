@@ -121,11 +121,16 @@ android {
     flavorDimensions += listOf("implementation", "ovpnimpl")
 
     productFlavors {
+        // Log entries kept on the heap and bytes of compressed older log entries kept off-heap
         create("xui") {
             dimension = "implementation"
+            buildConfigField("int", "LOG_HOT_ENTRIES", "1000")
+            buildConfigField("int", "LOG_COLD_BYTES", "${2 * 1024 * 1024}")
         }
         create("skeleton") {
             dimension = "implementation"
+            buildConfigField("int", "LOG_HOT_ENTRIES", "500")
+            buildConfigField("int", "LOG_COLD_BYTES", "${512 * 1024}")
         }
         create("ovpn23") {
             dimension = "ovpnimpl"
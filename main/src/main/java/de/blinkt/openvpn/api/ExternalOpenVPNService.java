@@ -23,6 +23,7 @@ import android.os.Message;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+import android.os.SystemClock;
 
 import java.io.IOException;
 import java.io.StringReader;
@@ -38,6 +39,7 @@ import de.blinkt.openvpn.core.ConnectionStatus;
 import de.blinkt.openvpn.core.IOpenVPNServiceInternal;
 import de.blinkt.openvpn.core.OpenVPNService;
 import de.blinkt.openvpn.core.ProfileManager;
+import de.blinkt.openvpn.core.ThroughputStats;
 import de.blinkt.openvpn.core.VPNLaunchHelper;
 import de.blinkt.openvpn.core.VpnStatus;
 import de.blinkt.openvpn.core.VpnStatus.StateListener;
@@ -46,8 +48,14 @@ import de.blinkt.openvpn.core.VpnStatus.StateListener;
 public class ExternalOpenVPNService extends Service implements StateListener {
 
     private static final int SEND_TOALL = 0;
+    /* State changes within this time are merged, clients only get the latest state */
+    private static final long STATE_UPDATE_FRAME_MS = 250;
 
     private static final String EXTRA_INLINE_PROFILE_ALLOW_VPN_BYPASS = "de.blinkt.openvpn.api.ALLOW_VPN_BYPASS";
+    private static final String THROUGHPUT_RATE_IN = "de.blinkt.openvpn.api.RATE_IN";
+    private static final String THROUGHPUT_RATE_OUT = "de.blinkt.openvpn.api.RATE_OUT";
+    private static final String THROUGHPUT_STALLED = "de.blinkt.openvpn.api.STALLED";
+    private static final String THROUGHPUT_STALLED_FOR = "de.blinkt.openvpn.api.STALLED_FOR";
 
     final RemoteCallbackList<IOpenVPNStatusCallback> mCallbacks =
             new RemoteCallbackList<>();
@@ -330,10 +338,23 @@ public class ExternalOpenVPNService extends Service implements StateListener {
                 mService.userPause(false);
 
         }
+
+        @Override
+        public Bundle getThroughputStats() throws RemoteException {
+            mExtAppDb.checkOpenVPNPermission(getPackageManager());
+            ThroughputStats.Snapshot throughput = VpnStatus.getThroughputStats();
+            Bundle stats = new Bundle();
+            stats.putDouble(THROUGHPUT_RATE_IN, throughput.getRateIn());
+            stats.putDouble(THROUGHPUT_RATE_OUT, throughput.getRateOut());
+            stats.putBoolean(THROUGHPUT_STALLED, throughput.isStalled());
+            stats.putLong(THROUGHPUT_STALLED_FOR, throughput.getStalledFor());
+            return stats;
+        }
     };
 
 
-    private UpdateMessage mMostRecentState;
+    private volatile UpdateMessage mMostRecentState;
+    private volatile long mLastStateSent;
 
     @Override
     public IBinder onBind(Intent intent) {
@@ -370,9 +391,11 @@ public class ExternalOpenVPNService extends Service implements StateListener {
         if (ProfileManager.getLastConnectedVpn() != null)
             mMostRecentState.vpnUUID = ProfileManager.getLastConnectedVpn().getUUIDString();
 
-        Message msg = mHandler.obtainMessage(SEND_TOALL, mMostRecentState);
-        msg.sendToTarget();
-
+        /* The handler sends whatever state is the most recent when it runs */
+        if (!mHandler.hasMessages(SEND_TOALL)) {
+            long delay = mLastStateSent + STATE_UPDATE_FRAME_MS - SystemClock.elapsedRealtime();
+            mHandler.sendEmptyMessageDelayed(SEND_TOALL, Math.max(0, delay));
+        }
     }
 
     @Override
@@ -396,17 +419,20 @@ public class ExternalOpenVPNService extends Service implements StateListener {
             RemoteCallbackList<IOpenVPNStatusCallback> callbacks;
             switch (msg.what) {
                 case SEND_TOALL:
-                    if (service == null || service.get() == null)
+                    ExternalOpenVPNService eos = service == null ? null : service.get();
+                    if (eos == null)
                         return;
 
-                    callbacks = service.get().mCallbacks;
+                    callbacks = eos.mCallbacks;
+                    UpdateMessage um = eos.mMostRecentState;
+                    eos.mLastStateSent = SystemClock.elapsedRealtime();
 
 
                     // Broadcast to all clients the new value.
                     final int N = callbacks.beginBroadcast();
                     for (int i = 0; i < N; i++) {
                         try {
-                            sendUpdate(callbacks.getBroadcastItem(i), (UpdateMessage) msg.obj);
+                            sendUpdate(callbacks.getBroadcastItem(i), um);
                         } catch (RemoteException e) {
                             // The RemoteCallbackList will take care of removing
                             // the dead object for us.
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import java.util.Arrays;
+
+/**
+ * Included and excluded IPv4 networks, each packed into one long as (address &lt;&lt; 6 | prefix)
+ * and stored in a primitive array.
+ * <p>
+ * {@link #getPositiveRoutes()} computes the networks that have to be routed if only included
+ * routes can be set: an address is routed if the most specific network that contains it is
+ * included. Networks are either nested or disjoint, so after sorting the packed values (which
+ * orders by address and puts a network before the networks inside it) a single sweep with a
+ * stack of the enclosing networks finds the included address ranges. These are converted back
+ * into networks.
+ */
+class IPv4RouteSet {
+    private static final int PREFIX_BITS = 6;
+    private static final long PREFIX_MASK = (1 << PREFIX_BITS) - 1;
+    /* Nesting depth of the networks /0 to /32, with an included and an excluded entry each */
+    private static final int MAX_DEPTH = 2 * 33;
+
+    /* Packed network << 1 | included */
+    private long[] mEntries = new long[16];
+    private int mSize;
+
+    static long pack(long address, int prefix) {
+        return (address & netmask(prefix)) << PREFIX_BITS | prefix;
+    }
+
+    static long getAddress(long packed) {
+        return packed >>> PREFIX_BITS;
+    }
+
+    static int getPrefix(long packed) {
+        return (int) (packed & PREFIX_MASK);
+    }
+
+    static long getLastAddress(long packed) {
+        return getAddress(packed) | (~netmask(getPrefix(packed)) & 0xffffffffL);
+    }
+
+    private static long netmask(int prefix) {
+        return prefix == 0 ? 0 : (0xffffffffL << (32 - prefix)) & 0xffffffffL;
+    }
+
+    /**
+     * Adds a network. Host bits of the address are ignored. If the same network is added as
+     * included and excluded, included wins.
+     */
+    void add(long address, int prefix, boolean include) {
+        if (prefix < 0 || prefix > 32)
+            throw new IllegalArgumentException("Invalid IPv4 prefix length " + prefix);
+        if (mSize == mEntries.length)
+            mEntries = Arrays.copyOf(mEntries, mSize * 2);
+        mEntries[mSize++] = pack(address, prefix) << 1 | (include ? 1 : 0);
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    void clear() {
+        mSize = 0;
+    }
+
+    /**
+     * @return the packed networks that cover exactly the routed addresses, ordered by address.
+     * Adjacent ranges are merged, so the networks can differ from the ones that were added.
+     */
+    long[] getPositiveRoutes() {
+        long[] sorted = Arrays.copyOf(mEntries, mSize);
+        Arrays.sort(sorted);
+
+        Sweep sweep = new Sweep();
+        long[] stackLast = new long[MAX_DEPTH];
+        boolean[] stackIncluded = new boolean[MAX_DEPTH];
+        int depth = 0;
+        long cursor = 0;
+
+        for (int i = 0; i < sorted.length; i++) {
+            if (i > 0 && sorted[i] == sorted[i - 1])
+                continue;
+            long network = sorted[i] >>> 1;
+            long first = getAddress(network);
+
+            /* Close the networks that end before this one */
+            while (depth > 0 && stackLast[depth - 1] < first) {
+                depth--;
+                sweep.emit(cursor, stackLast[depth], stackIncluded[depth]);
+                cursor = stackLast[depth] + 1;
+            }
+            /* The part of the enclosing network before this one */
+            if (depth > 0)
+                sweep.emit(cursor, first - 1, stackIncluded[depth - 1]);
+
+            cursor = first;
+            stackLast[depth] = getLastAddress(network);
+            stackIncluded[depth] = (sorted[i] & 1) != 0;
+            depth++;
+        }
+        while (depth > 0) {
+            depth--;
+            sweep.emit(cursor, stackLast[depth], stackIncluded[depth]);
+            cursor = stackLast[depth] + 1;
+        }
+        return sweep.finish();
+    }
+
+    /**
+     * Collects the included address ranges, merges adjacent ones and splits them into networks
+     */
+    private static final class Sweep {
+        private long[] mRoutes = new long[16];
+        private int mCount;
+        private long mStart = -1;
+        private long mEnd = -1;
+
+        void emit(long start, long end, boolean included) {
+            if (!included || start > end)
+                return;
+            if (mStart >= 0 && mEnd + 1 == start) {
+                mEnd = end;
+                return;
+            }
+            flush();
+            mStart = start;
+            mEnd = end;
+        }
+
+        private void flush() {
+            if (mStart < 0)
+                return;
+            long start = mStart;
+            while (start <= mEnd) {
+                /* The largest network that starts at start and does not extend past the end */
+                int prefix = Math.max(0, 32 - Long.numberOfTrailingZeros(start));
+                while (start + (1L << (32 - prefix)) - 1 > mEnd)
+                    prefix++;
+                if (mCount == mRoutes.length)
+                    mRoutes = Arrays.copyOf(mRoutes, mCount * 2);
+                mRoutes[mCount++] = pack(start, prefix);
+                start += 1L << (32 - prefix);
+            }
+            mStart = -1;
+        }
+
+        long[] finish() {
+            flush();
+            return Arrays.copyOf(mRoutes, mCount);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Decodes the records of the log cache when the log is restored.
+ * <p>
+ * The records are collected into chunks of {@link #CHUNK_ITEMS} records while the store is
+ * read. Each chunk is decoded on the executor, so decoding runs in parallel to reading the
+ * segments and to the other chunks. {@link #finish()} returns the items of all chunks in the
+ * order of the records, ready to be added to the log at once.
+ */
+class LogCacheRestorer implements LogSegmentStore.RecordReader {
+    static final int CHUNK_ITEMS = 256;
+
+    private final LogTemplates.IdTable mTemplates;
+    private final ExecutorService mExecutor;
+    private final ArrayList<Future<List<LogItem>>> mChunks = new ArrayList<>();
+    /* Records of [int length][record] */
+    private ByteBuffer mChunk = ByteBuffer.allocate(64 * 1024);
+    private int mChunkItems;
+    private volatile int mSkipped;
+
+    /**
+     * @param templates must not change until {@link #finish()} returns
+     * @param executor  decodes the chunks, null to decode them on the calling thread
+     */
+    LogCacheRestorer(LogTemplates.IdTable templates, ExecutorService executor) {
+        mTemplates = templates;
+        mExecutor = executor;
+    }
+
+    @Override
+    public void onRecord(byte[] buf, int len) {
+        if (mChunk.remaining() < len + 4) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(mChunk.capacity() * 2, mChunk.position() + len + 4));
+            mChunk.flip();
+            larger.put(mChunk);
+            mChunk = larger;
+        }
+        mChunk.putInt(len);
+        mChunk.put(buf, 0, len);
+        if (++mChunkItems == CHUNK_ITEMS)
+            submitChunk();
+    }
+
+    private void submitChunk() {
+        if (mChunkItems == 0)
+            return;
+        final byte[] records = Arrays.copyOf(mChunk.array(), mChunk.position());
+        FutureTask<List<LogItem>> task = new FutureTask<>(() -> decode(records));
+        if (mExecutor != null)
+            mExecutor.execute(task);
+        else
+            task.run();
+        mChunks.add(task);
+        mChunk.clear();
+        mChunkItems = 0;
+    }
+
+    private List<LogItem> decode(byte[] records) {
+        ByteBuffer bb = ByteBuffer.wrap(records);
+        List<LogItem> items = new ArrayList<>(CHUNK_ITEMS);
+        int skipped = 0;
+        while (bb.hasRemaining()) {
+            int len = bb.getInt();
+            int end = bb.position() + len;
+            bb.limit(end);
+            try {
+                LogItem li = new LogItem(bb, mTemplates);
+                if (li.verify())
+                    items.add(li);
+                else
+                    skipped++;
+            } catch (UnsupportedEncodingException | RuntimeException e) {
+                /* e.g. a record with a template that did not make it to disk */
+                skipped++;
+            }
+            bb.limit(records.length);
+            bb.position(end);
+        }
+        if (skipped > 0)
+            addSkipped(skipped);
+        return items;
+    }
+
+    private synchronized void addSkipped(int skipped) {
+        mSkipped += skipped;
+    }
+
+    /**
+     * @return the restored log items, in the order of the records
+     */
+    List<LogItem> finish() throws IOException {
+        submitChunk();
+        List<LogItem> items = new ArrayList<>(mChunks.size() * CHUNK_ITEMS);
+        try {
+            for (Future<List<LogItem>> chunk : mChunks)
+                items.addAll(chunk.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while restoring the log", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Restoring the log failed", e.getCause());
+        } finally {
+            mChunks.clear();
+        }
+        return items;
+    }
+
+    /**
+     * @return the number of records that could not be decoded
+     */
+    int getSkipped() {
+        return mSkipped;
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Cold tier of the in-memory log. Log items that are dropped from the {@link LogRingBuffer} are
+ * kept here compressed, outside of the Java heap.
+ * <p>
+ * Items are marschaled with a template table into a block of {@link #BLOCK_SIZE} bytes. A full
+ * block is deflated and copied into a direct buffer of fixed size that is used as a ring: when a
+ * new block does not fit, the oldest blocks are dropped. Only the block index and the block that
+ * is being filled live on the heap.
+ * <p>
+ * Items move from the hot buffer to this store with {@link #moveFrom(LogRingBuffer, int)}.
+ * {@link #toArray(LogRingBuffer)} reads both tiers without a lock and retries if items moved
+ * while it was reading, like the readers of the hot buffer do. {@link #iterate(LogRingBuffer)}
+ * does the same but only inflates one block at a time while the caller walks through the items.
+ */
+class LogColdStore {
+    /* Uncompressed bytes per block, large enough for the compression to work well */
+    static final int BLOCK_SIZE = 32 * 1024;
+    /* Templates that are added to the table at most, later templates are stored as text */
+    private static final int MAX_TEMPLATES = 4096;
+
+    private static final class Block {
+        /* Blocks are numbered in the order they are stored, numbers are never reused */
+        final long seq;
+        final int offset;
+        final int length;
+        final int count;
+
+        Block(long seq, int offset, int length, int count) {
+            this.seq = seq;
+            this.offset = offset;
+            this.length = length;
+            this.count = count;
+        }
+    }
+
+    private final ByteBuffer mData;
+    private final ArrayDeque<Block> mBlocks = new ArrayDeque<>();
+    private final LogTemplates.IdTable mTemplates = new LogTemplates.IdTable();
+    /* Records of [int length][marschaled item], room for one item after the block is full */
+    private final ByteBuffer mPending;
+    private int mPendingCount;
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED, true);
+    private byte[] mCompressed = new byte[BLOCK_SIZE];
+    /* Used for reading, with the lock held */
+    private final Inflater mInflater = new Inflater(true);
+    private byte[] mReadCompressed = new byte[0];
+    private byte[] mReadBlock;
+    private long mNextBlockSeq;
+
+    /* Odd while items are moved from the hot buffer */
+    private volatile long mMoveVersion;
+
+    private int mWritePos;
+    private int mStoredBytes;
+    private int mItemCount;
+
+    /**
+     * @param capacity bytes of compressed log items. With 0 the store keeps nothing.
+     */
+    LogColdStore(int capacity) {
+        mData = capacity > 0 ? ByteBuffer.allocateDirect(capacity) : null;
+        mPending = capacity > 0 ? ByteBuffer.allocate(BLOCK_SIZE + 4 + LogItem.MAX_MARSCHALED_SIZE) : null;
+    }
+
+    /**
+     * Moves the oldest items of the hot buffer into this store so that at most maxItems items
+     * remain there. The caller must hold the writer lock of the buffer.
+     */
+    void moveFrom(LogRingBuffer hot, int maxItems) {
+        mMoveVersion++;
+        add(hot.removeOldest(maxItems));
+        mMoveVersion++;
+    }
+
+    /**
+     * @return the items of this store followed by the items of the hot buffer, ordered by log
+     * time
+     */
+    LogItem[] toArray(LogRingBuffer hot) {
+        if (mData == null)
+            return hot.toArray();
+        while (true) {
+            long version = mMoveVersion;
+            if ((version & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            List<LogItem> items = toList();
+            LogRingBuffer.Snapshot snapshot = hot.snapshot();
+            if (mMoveVersion != version)
+                continue;
+
+            LogItem[] all = items.toArray(new LogItem[items.size() + snapshot.size()]);
+            for (int i = 0; i < snapshot.size(); i++)
+                all[items.size() + i] = snapshot.get(i);
+            /* An item with an old log time can end up in the hot buffer after newer items have
+             * been moved here. Sorting almost sorted items is cheap and keeps the order stable */
+            if (!isSorted(all))
+                Arrays.sort(all, (a, b) -> Long.compare(a.getLogtime(), b.getLogtime()));
+            return all;
+        }
+    }
+
+    /**
+     * Like {@link #toArray(LogRingBuffer)}, but the cold items are inflated one block at a time
+     * while iterating, so only one block of them is on the heap. Each iterator sees the items of
+     * the moment it was created. Blocks that are dropped before the iterator gets to them are
+     * skipped. The items are not sorted again: an item with an old log time that was added to the
+     * hot buffer late comes after the newer items of this store.
+     */
+    Iterable<LogItem> iterate(LogRingBuffer hot) {
+        return () -> newIterator(hot);
+    }
+
+    private Iterator<LogItem> newIterator(LogRingBuffer hot) {
+        if (mData == null)
+            return hot.snapshot().iterator();
+        while (true) {
+            long version = mMoveVersion;
+            if ((version & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            long firstBlock;
+            long lastBlock;
+            List<LogItem> pending = new ArrayList<>();
+            synchronized (this) {
+                firstBlock = mNextBlockSeq - mBlocks.size();
+                lastBlock = mNextBlockSeq - 1;
+                readRecords(mPending.array(), mPending.position(), pending);
+            }
+            /* Not with the lock held, the writer takes the lock of the hot buffer first */
+            LogRingBuffer.Snapshot snapshot = hot.snapshot();
+            if (mMoveVersion == version)
+                return new LogIterator(firstBlock, lastBlock, pending, snapshot);
+        }
+    }
+
+    /**
+     * Walks through the blocks, the pending items and the hot snapshot
+     */
+    private final class LogIterator implements Iterator<LogItem> {
+        private long mNextBlock;
+        private final long mLastBlock;
+        private List<LogItem> mPendingItems;
+        private LogRingBuffer.Snapshot mHot;
+        private List<LogItem> mCurrent = Collections.emptyList();
+        private int mPos;
+
+        LogIterator(long firstBlock, long lastBlock, List<LogItem> pending, LogRingBuffer.Snapshot hot) {
+            mNextBlock = firstBlock;
+            mLastBlock = lastBlock;
+            mPendingItems = pending;
+            mHot = hot;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (mPos >= mCurrent.size()) {
+                mPos = 0;
+                if (mNextBlock <= mLastBlock) {
+                    mCurrent = readBlock(mNextBlock++);
+                } else if (mPendingItems != null) {
+                    mCurrent = mPendingItems;
+                    mPendingItems = null;
+                } else if (mHot != null) {
+                    mCurrent = Arrays.asList(mHot.toArray());
+                    mHot = null;
+                } else {
+                    mCurrent = Collections.emptyList();
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public LogItem next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return mCurrent.get(mPos++);
+        }
+    }
+
+    /**
+     * @return the items of the block or an empty list if the block has been dropped
+     */
+    private synchronized List<LogItem> readBlock(long seq) {
+        for (Block b : mBlocks) {
+            if (b.seq == seq) {
+                List<LogItem> items = new ArrayList<>(b.count);
+                try {
+                    inflate(b, items);
+                } catch (DataFormatException e) {
+                    e.printStackTrace();
+                }
+                return items;
+            }
+            if (b.seq > seq)
+                break;
+        }
+        return Collections.emptyList();
+    }
+
+    private static boolean isSorted(LogItem[] items) {
+        for (int i = 1; i < items.length; i++)
+            if (items[i - 1].getLogtime() > items[i].getLogtime())
+                return false;
+        return true;
+    }
+
+    /**
+     * Adds items after the items in the store, oldest first
+     */
+    synchronized void add(LogItem[] items) {
+        if (mData == null)
+            return;
+        for (LogItem li : items) {
+            LogTemplates.Template template = li.getTemplate();
+            if (template != null && mTemplates.idOf(template) < 0 && mTemplates.size() < MAX_TEMPLATES)
+                mTemplates.add(template);
+
+            int start = mPending.position();
+            mPending.position(start + 4);
+            try {
+                li.marschal(mPending, mTemplates);
+            } catch (UnsupportedEncodingException | BufferOverflowException e) {
+                mPending.position(start);
+                continue;
+            }
+            mPending.putInt(start, mPending.position() - start - 4);
+            mPendingCount++;
+            mItemCount++;
+            if (mPending.position() >= BLOCK_SIZE)
+                compressPending();
+        }
+    }
+
+    private void compressPending() {
+        mDeflater.reset();
+        mDeflater.setInput(mPending.array(), 0, mPending.position());
+        mDeflater.finish();
+        int length = 0;
+        while (!mDeflater.finished()) {
+            if (length == mCompressed.length)
+                mCompressed = Arrays.copyOf(mCompressed, mCompressed.length * 2);
+            length += mDeflater.deflate(mCompressed, length, mCompressed.length - length);
+        }
+        store(length, mPendingCount);
+        mPending.clear();
+        mPendingCount = 0;
+    }
+
+    private void store(int length, int count) {
+        int capacity = mData.capacity();
+        if (length > capacity) {
+            mItemCount -= count;
+            return;
+        }
+        if (mWritePos + length > capacity) {
+            /* The rest of the buffer is not used in this round, drop the blocks that are there */
+            while (!mBlocks.isEmpty() && mBlocks.peekFirst().offset >= mWritePos)
+                dropOldest();
+            mWritePos = 0;
+        }
+        /* The oldest blocks start right after the block that was written last */
+        while (!mBlocks.isEmpty() && mBlocks.peekFirst().offset >= mWritePos
+                && mBlocks.peekFirst().offset < mWritePos + length)
+            dropOldest();
+
+        ByteBuffer dst = mData.duplicate();
+        dst.position(mWritePos);
+        dst.put(mCompressed, 0, length);
+        mBlocks.addLast(new Block(mNextBlockSeq++, mWritePos, length, count));
+        mWritePos += length;
+        mStoredBytes += length;
+    }
+
+    private void dropOldest() {
+        Block block = mBlocks.removeFirst();
+        mStoredBytes -= block.length;
+        mItemCount -= block.count;
+    }
+
+    /**
+     * @return all items in the store, oldest first
+     */
+    synchronized List<LogItem> toList() {
+        ArrayList<LogItem> items = new ArrayList<>(mItemCount);
+        if (mData == null)
+            return items;
+
+        try {
+            for (Block b : mBlocks)
+                inflate(b, items);
+        } catch (DataFormatException e) {
+            /* Not logged, logging would need the lock of the log buffer */
+            e.printStackTrace();
+        }
+        readRecords(mPending.array(), mPending.position(), items);
+        return items;
+    }
+
+    /* Called with the lock held */
+    private void inflate(Block b, List<LogItem> items) throws DataFormatException {
+        if (mReadCompressed.length < b.length)
+            mReadCompressed = new byte[b.length];
+        if (mReadBlock == null)
+            mReadBlock = new byte[mPending.capacity()];
+        ByteBuffer src = mData.duplicate();
+        src.position(b.offset);
+        src.get(mReadCompressed, 0, b.length);
+
+        mInflater.reset();
+        mInflater.setInput(mReadCompressed, 0, b.length);
+        int length = 0;
+        while (!mInflater.finished() && length < mReadBlock.length) {
+            int n = mInflater.inflate(mReadBlock, length, mReadBlock.length - length);
+            if (n == 0 && (mInflater.needsInput() || mInflater.needsDictionary()))
+                break;
+            length += n;
+        }
+        readRecords(mReadBlock, length, items);
+    }
+
+    private void readRecords(byte[] buf, int length, List<LogItem> items) {
+        ByteBuffer bb = ByteBuffer.wrap(buf, 0, length);
+        while (bb.remaining() >= 4) {
+            int len = bb.getInt();
+            int end = bb.position() + len;
+            if (len <= 0 || end > length)
+                break;
+            bb.limit(end);
+            try {
+                items.add(new LogItem(bb, mTemplates));
+            } catch (UnsupportedEncodingException | RuntimeException e) {
+                // Skip items that cannot be read
+            }
+            bb.limit(length);
+            bb.position(end);
+        }
+    }
+
+    /**
+     * Callers clear the hot buffer after this store, so that a reader that started before never
+     * combines the old items of this store with the new items of the hot buffer
+     */
+    synchronized void clear() {
+        mMoveVersion++;
+        mBlocks.clear();
+        mTemplates.clear();
+        if (mPending != null)
+            mPending.clear();
+        mPendingCount = 0;
+        mWritePos = 0;
+        mStoredBytes = 0;
+        mItemCount = 0;
+        mMoveVersion++;
+    }
+
+    synchronized int size() {
+        return mItemCount;
+    }
+
+    /**
+     * @return bytes used off the heap by compressed blocks
+     */
+    synchronized int getStoredBytes() {
+        return mStoredBytes;
+    }
+
+    /**
+     * @return bytes used on the heap by the block that is being filled
+     */
+    synchronized int getPendingBytes() {
+        return mPending == null ? 0 : mPending.position();
+    }
+
+    int getCapacity() {
+        return mData == null ? 0 : mData.capacity();
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Writes log items as text, one line per item with the time in front.
+ * <p>
+ * The items are formatted in chunks and written right away, so only a few chunks are in memory
+ * at any time. With an executor the chunks are formatted in parallel and still written in order.
+ */
+public class LogExporter {
+    static final int CHUNK_SIZE = 256;
+
+    private final Context mContext;
+
+    public LogExporter(Context c) {
+        mContext = c;
+    }
+
+    /**
+     * Writes the log items on the calling thread
+     *
+     * @return the number of items written
+     */
+    public int write(LogItem[] items, Writer out) throws IOException {
+        return write(items, out, null);
+    }
+
+    /**
+     * Writes the log items, formatting the chunks on the executor if it is not null
+     *
+     * @return the number of items written
+     */
+    public int write(LogItem[] items, Writer out, ExecutorService executor) throws IOException {
+        ChunkWriter writer = new ChunkWriter(out, executor);
+        for (int i = 0; i < items.length; i += CHUNK_SIZE)
+            writer.add(Arrays.asList(items).subList(i, Math.min(items.length, i + CHUNK_SIZE)));
+        writer.finish();
+        return items.length;
+    }
+
+    /**
+     * Writes the log items while iterating over them, for logs that are not copied into an array
+     * first
+     *
+     * @return the number of items written
+     */
+    public int write(Iterable<LogItem> items, Writer out) throws IOException {
+        ChunkWriter writer = new ChunkWriter(out, null);
+        List<LogItem> chunk = new ArrayList<>(CHUNK_SIZE);
+        int count = 0;
+        for (LogItem li : items) {
+            chunk.add(li);
+            count++;
+            if (chunk.size() == CHUNK_SIZE) {
+                writer.add(chunk);
+                chunk = new ArrayList<>(CHUNK_SIZE);
+            }
+        }
+        writer.add(chunk);
+        writer.finish();
+        return count;
+    }
+
+    /**
+     * Writes the log that is kept in the log cache of the cache directory. This is usually more
+     * than the log in memory.
+     *
+     * @return the number of items written
+     */
+    public int writeLogCache(File cacheDir, Writer out, ExecutorService executor) throws IOException {
+        File logcacheDir = new File(cacheDir, LogFileHandler.LOGCACHE_DIR);
+        final LogTemplates.IdTable templates = new LogTemplates.IdTable();
+        LogFileHandler.readTemplates(new File(logcacheDir, LogFileHandler.TEMPLATES_FILE), templates);
+
+        CacheReader reader = new CacheReader(new ChunkWriter(out, executor), templates);
+        LogSegmentStore.read(logcacheDir, reader);
+        return reader.finish();
+    }
+
+    /**
+     * Formats a single log item like it is written by the exporter
+     */
+    public String format(LogItem li) {
+        return LogTimeFormat.format(li.getLogtime()) + " " + li.getString(mContext);
+    }
+
+    private String formatChunk(List<LogItem> chunk) {
+        StringBuilder sb = new StringBuilder(chunk.size() * 100);
+        for (LogItem li : chunk) {
+            sb.append(LogTimeFormat.format(li.getLogtime()));
+            sb.append(' ');
+            sb.append(li.getString(mContext));
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Decodes the records of the log cache into chunks
+     */
+    private static class CacheReader implements LogSegmentStore.RecordReader {
+        private final ChunkWriter mWriter;
+        private final LogTemplates.IdTable mTemplates;
+        private List<LogItem> mChunk = new ArrayList<>(CHUNK_SIZE);
+        private int mCount;
+
+        CacheReader(ChunkWriter writer, LogTemplates.IdTable templates) {
+            mWriter = writer;
+            mTemplates = templates;
+        }
+
+        @Override
+        public void onRecord(byte[] buf, int len) throws IOException {
+            try {
+                mChunk.add(new LogItem(ByteBuffer.wrap(buf, 0, len), mTemplates));
+            } catch (UnsupportedEncodingException | RuntimeException e) {
+                // Skip items that cannot be read, like the log cache does
+                return;
+            }
+            mCount++;
+            if (mChunk.size() == CHUNK_SIZE) {
+                mWriter.add(mChunk);
+                mChunk = new ArrayList<>(CHUNK_SIZE);
+            }
+        }
+
+        int finish() throws IOException {
+            mWriter.add(mChunk);
+            mWriter.finish();
+            return mCount;
+        }
+    }
+
+    /**
+     * Formats the chunks in parallel and writes them in order. At most a few chunks per thread
+     * are waiting to be written.
+     */
+    private class ChunkWriter {
+        private final Writer mOut;
+        private final ExecutorService mExecutor;
+        private final ArrayDeque<Future<String>> mPending = new ArrayDeque<>();
+        private final int mMaxPending;
+
+        ChunkWriter(Writer out, ExecutorService executor) {
+            mOut = out;
+            mExecutor = executor;
+            mMaxPending = 2 * Runtime.getRuntime().availableProcessors();
+        }
+
+        void add(final List<LogItem> chunk) throws IOException {
+            if (chunk.isEmpty())
+                return;
+            if (mExecutor == null) {
+                mOut.write(formatChunk(chunk));
+                return;
+            }
+            mPending.add(mExecutor.submit((Callable<String>) () -> formatChunk(chunk)));
+            while (mPending.size() > mMaxPending)
+                writeOldest();
+        }
+
+        void finish() throws IOException {
+            while (!mPending.isEmpty())
+                writeOldest();
+            mOut.flush();
+        }
+
+        private void writeOldest() throws IOException {
+            Future<String> future = mPending.poll();
+            try {
+                mOut.write(future.get());
+            } catch (InterruptedException e) {
+                cancelPending();
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while exporting the log", e);
+            } catch (ExecutionException e) {
+                cancelPending();
+                throw new IOException("Formatting the log failed", e.getCause());
+            }
+        }
+
+        private void cancelPending() {
+            for (Future<String> f : mPending)
+                f.cancel(true);
+            mPending.clear();
+        }
+    }
+
+    /**
+     * Formats log times as yyyy-MM-dd HH:mm:ss. The formatter is kept per thread and reuses the
+     * last result while the second does not change, which is the usual case for log lines.
+     */
+    static final class LogTimeFormat {
+        private final SimpleDateFormat mFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.GERMAN);
+        private final Date mDate = new Date();
+        private long mLastSecond = Long.MIN_VALUE;
+        private String mLastFormatted;
+
+        /* ThreadLocal.withInitial needs API 26 */
+        private static final ThreadLocal<LogTimeFormat> mFormats = new ThreadLocal<LogTimeFormat>() {
+            @Override
+            protected LogTimeFormat initialValue() {
+                return new LogTimeFormat();
+            }
+        };
+
+        static String format(long time) {
+            LogTimeFormat f = mFormats.get();
+            long second = time / 1000;
+            if (second != f.mLastSecond) {
+                f.mDate.setTime(time);
+                f.mLastFormatted = f.mFormat.format(f.mDate);
+                f.mLastSecond = second;
+            }
+            return f.mLastFormatted;
+        }
+    }
+}
@@ -8,11 +8,14 @@ package de.blinkt.openvpn.core;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 
 import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -20,22 +23,49 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import de.blinkt.openvpn.R;
 
 /**
  * Created by arne on 23.01.16.
+ *
+ * Writes the log to the cache directory so it survives a restart of the app. The log is kept in
+ * a {@link LogSegmentStore}. The escaped format of logcache.dat is only read once to take over
+ * the log of older versions.
  */
 class LogFileHandler extends Handler {
     static final int TRIM_LOG_FILE = 100;
     static final int FLUSH_TO_DISK = 101;
     static final int LOG_INIT = 102;
     public static final int LOG_MESSAGE = 103;
+    static final int CLEAR_LOG_FILE = 104;
+    static final int COMPACT_LOG_FILE = 105;
+    /* Compact the log cache only when no log has been written for this long */
+    private static final long COMPACT_IDLE_MS = 30 * 1000;
+    /* Limits of the log written but not yet synced with the PERIODIC flush policy */
+    private static final int PERIODIC_FLUSH_BYTES = 32 * 1024;
+    private static final long PERIODIC_FLUSH_MS = 5 * 1000;
+    /* Threads that decode the log cache when it is restored */
+    private static final int MAX_RESTORE_THREADS = 4;
+
+    private static volatile VpnStatus.LogFlushPolicy mFlushPolicy = VpnStatus.LogFlushPolicy.ON_FLUSH;
     public static final int MAGIC_BYTE = 0x55;
     protected OutputStream mLogFile;
+    private LogSegmentStore mStore;
+    private long mLastWrite;
 
     public static final String LOGFILE_NAME = "logcache.dat";
+    static final String LOGCACHE_DIR = "logcache";
+    /* The keys of the message templates used by the log cache, the id is the position */
+    static final String TEMPLATES_FILE = "templates";
+    private final LogTemplates.IdTable mDiskTemplates = new LogTemplates.IdTable();
+    private DataOutputStream mTemplatesOut;
+    private FileOutputStream mTemplatesFileOut;
+    private File mTemplatesFile;
 
 
     public LogFileHandler(Looper looper) {
@@ -47,18 +77,31 @@ class LogFileHandler extends Handler {
     public void handleMessage(Message msg) {
         try {
             if (msg.what == LOG_INIT) {
-                if (mLogFile != null)
-                    throw new RuntimeException("mLogFile not null");
+                if (mStore != null)
+                    throw new RuntimeException("mStore not null");
                 readLogCache((File) msg.obj);
-                openLogFile((File) msg.obj);
-            } else if (msg.what == LOG_MESSAGE && msg.obj instanceof LogItem) {
+            } else if (mStore == null) {
                 // Ignore log messages if not yet initialized
-                if (mLogFile == null)
-                    return;
+                return;
+            } else if (msg.what == LOG_MESSAGE && msg.obj instanceof LogItem) {
                 writeLogItemToDisk((LogItem) msg.obj);
+                mLastWrite = SystemClock.uptimeMillis();
+                if (mFlushPolicy == VpnStatus.LogFlushPolicy.PERIODIC)
+                    scheduleFlush();
             } else if (msg.what == TRIM_LOG_FILE) {
-                trimLogFile();
-                for (LogItem li : VpnStatus.getlogbuffer())
+                mStore.trim(VpnStatus.MAXLOGENTRIES);
+                if (mStore.needsCompaction() && !hasMessages(COMPACT_LOG_FILE))
+                    sendEmptyMessageDelayed(COMPACT_LOG_FILE, COMPACT_IDLE_MS);
+            } else if (msg.what == COMPACT_LOG_FILE) {
+                long idle = SystemClock.uptimeMillis() - mLastWrite;
+                if (idle < COMPACT_IDLE_MS)
+                    sendEmptyMessageDelayed(COMPACT_LOG_FILE, COMPACT_IDLE_MS - idle);
+                else
+                    mStore.compact();
+            } else if (msg.what == CLEAR_LOG_FILE) {
+                mStore.clear();
+                clearTemplates();
+                for (LogItem li : VpnStatus.iterateLog())
                     writeLogItemToDisk(li);
             } else if (msg.what == FLUSH_TO_DISK) {
                 flushToDisk();
@@ -72,29 +115,79 @@ class LogFileHandler extends Handler {
 
     }
 
-    private void flushToDisk() throws IOException {
-        mLogFile.flush();
+    static void setFlushPolicy(VpnStatus.LogFlushPolicy policy) {
+        mFlushPolicy = policy;
     }
 
-    private void trimLogFile() {
-        try {
-            mLogFile.flush();
-            ((FileOutputStream) mLogFile).getChannel().truncate(0);
-        } catch (IOException e) {
-            e.printStackTrace();
+    static VpnStatus.LogFlushPolicy getFlushPolicy() {
+        return mFlushPolicy;
+    }
+
+    /* Group commit: sync once enough log has been written or at the deadline of the first write */
+    private void scheduleFlush() {
+        if (mStore.getUnforcedBytes() >= PERIODIC_FLUSH_BYTES) {
+            removeMessages(FLUSH_TO_DISK);
+            flushToDisk();
+        } else if (!hasMessages(FLUSH_TO_DISK)) {
+            sendEmptyMessageDelayed(FLUSH_TO_DISK, PERIODIC_FLUSH_MS);
         }
     }
 
+    private void flushToDisk() {
+        if (mFlushPolicy != VpnStatus.LogFlushPolicy.NEVER && mStore.getUnforcedBytes() > 0)
+            mStore.force();
+    }
+
     private void writeLogItemToDisk(LogItem li) throws IOException {
 
         // We do not really care if the log cache breaks between Android upgrades,
         // write binary format to disc
 
-        byte[] liBytes = li.getMarschaledBytes();
+        /* Without the templates file, e.g. if it could not be opened again after clearing, the
+         * full text is written */
+        LogTemplates.IdTable templates = mTemplatesOut != null ? mDiskTemplates : null;
+        LogTemplates.Template template = li.getTemplate();
+        if (templates != null && template != null && templates.idOf(template) < 0) {
+            /* The template has to be on disk before the first record that uses it. The kernel
+             * can write back the pages of the mapped segment at any time, so waiting for the
+             * next flush is not enough. New templates are rare after the first minutes. */
+            templates.add(template);
+            mTemplatesOut.writeUTF(template.getKey());
+            if (mFlushPolicy != VpnStatus.LogFlushPolicy.NEVER)
+                mTemplatesFileOut.getFD().sync();
+        }
 
-        writeEscapedBytes(liBytes);
+        ByteBuffer bb = LogItem.getMarschalBuffer();
+        li.marschal(bb, templates);
+        mStore.append(bb.array(), bb.position());
     }
 
+    /**
+     * Reads the template table of the log cache
+     */
+    static void readTemplates(File templatesFile, LogTemplates.IdTable templates) {
+        if (!templatesFile.exists())
+            return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(templatesFile)))) {
+            while (true)
+                templates.add(LogTemplates.intern(in.readUTF()));
+        } catch (EOFException ignored) {
+            // end of the templates
+        } catch (IOException e) {
+            /* Records with later templates cannot be read and are skipped */
+            VpnStatus.logDebug("Reading log templates failed: " + e.getMessage());
+        }
+    }
+
+    private void clearTemplates() throws IOException {
+        mTemplatesOut.close();
+        mTemplatesOut = null;
+        mDiskTemplates.clear();
+        mTemplatesFileOut = new FileOutputStream(mTemplatesFile, false);
+        mTemplatesOut = new DataOutputStream(mTemplatesFileOut);
+    }
+
+    /* Format of the old logcache.dat */
     public void writeEscapedBytes(byte[] bytes) throws IOException {
         int magic = 0;
         for (byte b : bytes)
@@ -121,16 +214,55 @@ class LogFileHandler extends Handler {
         }
     }
 
-    private void openLogFile(File cacheDir) throws FileNotFoundException {
-        File logfile = new File(cacheDir, LOGFILE_NAME);
-        mLogFile = new FileOutputStream(logfile);
+    private void readLogCache(File cacheDir) {
+        try {
+            readLegacyLogCache(cacheDir);
+
+            File logcacheDir = new File(cacheDir, LOGCACHE_DIR);
+            mTemplatesFile = new File(logcacheDir, TEMPLATES_FILE);
+            readTemplates(mTemplatesFile, mDiskTemplates);
+            LogSegmentStore store = new LogSegmentStore(logcacheDir);
+
+            int threads = Math.min(MAX_RESTORE_THREADS, Runtime.getRuntime().availableProcessors());
+            ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+            int itemsRead;
+            try {
+                LogCacheRestorer restorer = new LogCacheRestorer(mDiskTemplates, executor);
+                store.open(restorer);
+                List<LogItem> items = restorer.finish();
+                VpnStatus.restoreLogItems(items);
+                itemsRead = items.size();
+                if (restorer.getSkipped() > 0)
+                    VpnStatus.logDebug("Skipped log items from file: " + restorer.getSkipped());
+            } finally {
+                if (executor != null)
+                    executor.shutdown();
+            }
+            mTemplatesFileOut = new FileOutputStream(mTemplatesFile, true);
+            mTemplatesOut = new DataOutputStream(mTemplatesFileOut);
+            /* Only a completely opened cache is written to, otherwise log messages are ignored */
+            mStore = store;
+            VpnStatus.logDebug(R.string.reread_log, itemsRead);
+        } catch (java.io.IOException | java.lang.RuntimeException e) {
+            VpnStatus.logError("Reading cached logfile failed");
+            VpnStatus.logException(e);
+            e.printStackTrace();
+            // ignore reading file error
+        } finally {
+            synchronized (VpnStatus.readFileLock) {
+                VpnStatus.readFileLog = true;
+                VpnStatus.readFileLock.notifyAll();
+            }
+        }
     }
 
-    private void readLogCache(File cacheDir) {
+    /**
+     * Reads and deletes the logcache.dat written by older versions
+     */
+    private void readLegacyLogCache(File cacheDir) {
         FileInputStream log = null;
+        File logfile = new File(cacheDir, LOGFILE_NAME);
         try {
-            File logfile = new File(cacheDir, LOGFILE_NAME);
-
             if (!logfile.exists() || !logfile.canRead())
                 return;
 
@@ -144,10 +276,7 @@ class LogFileHandler extends Handler {
             e.printStackTrace();
             // ignore reading file error
         } finally {
-            synchronized (VpnStatus.readFileLock) {
-                VpnStatus.readFileLog = true;
-                VpnStatus.readFileLock.notifyAll();
-            }
+            logfile.delete();
             if (log != null) {
                 try {
                     log.close();
@@ -223,7 +352,14 @@ class LogFileHandler extends Handler {
 
     protected void restoreLogItem(byte[] buf, int len) throws UnsupportedEncodingException {
 
-        LogItem li = new LogItem(buf, len);
+        LogItem li;
+        try {
+            li = new LogItem(ByteBuffer.wrap(buf, 0, len), mDiskTemplates);
+        } catch (UnsupportedEncodingException e) {
+            /* e.g. a record with a template that did not make it to disk */
+            VpnStatus.logDebug("Skipping log item from file: " + e.getMessage());
+            return;
+        }
         if (li.verify()) {
             VpnStatus.newLogItem(li, true);
         } else {
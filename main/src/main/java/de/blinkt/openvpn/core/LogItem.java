@@ -22,6 +22,10 @@ import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Array;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -43,6 +47,11 @@ import de.blinkt.openvpn.R;
 public class LogItem implements Parcelable {
     private Object[] mArgs = null;
     private String mMessage = null;
+    /* Instead of mMessage for OpenVPN messages that fit a template */
+    private LogTemplates.Template mTemplate;
+    private long[] mParams;
+    /* The words of the template, null if it has none */
+    private String[] mWords;
     private int mRessourceId;
     // Default log priority
     VpnStatus.LogLevel mLevel = VpnStatus.LogLevel.INFO;
@@ -55,7 +64,7 @@ public class LogItem implements Parcelable {
     }
 
     public LogItem(VpnStatus.LogLevel level, int verblevel, String message, long eventLogTime) {
-        mMessage = message;
+        setOpenVPNMessage(message);
         mLevel = level;
         mVerbosityLevel = verblevel;
         logtime = eventLogTime;
@@ -63,7 +72,7 @@ public class LogItem implements Parcelable {
 
 
     public LogItem(VpnStatus.LogLevel level, int verblevel, String message) {
-        mMessage = message;
+        setOpenVPNMessage(message);
         mLevel = level;
         mVerbosityLevel = verblevel;
     }
@@ -77,7 +86,7 @@ public class LogItem implements Parcelable {
     @Override
     public void writeToParcel(Parcel dest, int flags) {
         dest.writeArray(mArgs);
-        dest.writeString(mMessage);
+        dest.writeString(getMessage());
         dest.writeInt(mRessourceId);
         dest.writeInt(mLevel.getInt());
         dest.writeInt(mVerbosityLevel);
@@ -91,29 +100,103 @@ public class LogItem implements Parcelable {
             return obj.equals(this);
         LogItem other = (LogItem) obj;
 
-        return Arrays.equals(mArgs, other.mArgs) &&
-                ((other.mMessage == null && mMessage == other.mMessage) ||
-                        mMessage.equals(other.mMessage)) &&
+        /* The cheap fields first, the message is only compared for items that could be equal */
+        return logtime == other.logtime &&
                 mRessourceId == other.mRessourceId &&
+                mVerbosityLevel == other.mVerbosityLevel &&
                 ((mLevel == null && other.mLevel == mLevel) ||
                         other.mLevel.equals(mLevel)) &&
-                mVerbosityLevel == other.mVerbosityLevel &&
-                logtime == other.logtime;
+                Arrays.equals(mArgs, other.mArgs) &&
+                hasSameMessage(other);
+    }
+
+    private boolean hasSameMessage(LogItem other) {
+        /* Parsing is deterministic, so equal messages have the same template and parameters.
+         * Templates are compared by key, they are not shared once the dictionary is full. */
+        if (mTemplate != null && other.mTemplate != null)
+            return mTemplate.getKey().equals(other.mTemplate.getKey()) &&
+                    Arrays.equals(mParams, other.mParams) &&
+                    Arrays.equals(mWords, other.mWords);
+
+        String message = getMessage();
+        String otherMessage = other.getMessage();
+        return message == null ? otherMessage == null : message.equals(otherMessage);
     }
 
     public byte[] getMarschaledBytes() throws UnsupportedEncodingException, BufferOverflowException {
-        ByteBuffer bb = ByteBuffer.allocate(16384);
+        ByteBuffer bb = getMarschalBuffer();
+        marschal(bb);
+        return Arrays.copyOf(bb.array(), bb.position());
+    }
+
+    /* Size of the buffer that any log item can be marschaled to, longer strings are cut */
+    static final int MAX_MARSCHALED_SIZE = 16384;
+
+    /* ThreadLocal.withInitial needs API 26 */
+    private static final ThreadLocal<ByteBuffer> mMarschalBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(MAX_MARSCHALED_SIZE);
+        }
+    };
+
+    private static final ThreadLocal<CharsetEncoder> mUtf8Encoder = new ThreadLocal<CharsetEncoder>() {
+        @Override
+        protected CharsetEncoder initialValue() {
+            /* Same replacement as String.getBytes */
+            return StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+    };
 
+    /**
+     * Returns an empty buffer of {@link #MAX_MARSCHALED_SIZE} bytes for {@link #marschal(ByteBuffer)}
+     * that is reused by all calls on the same thread. The buffer is only valid until the next call.
+     */
+    static ByteBuffer getMarschalBuffer() {
+        ByteBuffer bb = mMarschalBuffer.get();
+        bb.clear();
+        return bb;
+    }
+
+    /**
+     * Writes the marschaled log item at the position of the buffer. The buffer should have
+     * {@link #MAX_MARSCHALED_SIZE} bytes remaining.
+     */
+    void marschal(ByteBuffer bb) throws UnsupportedEncodingException, BufferOverflowException {
+        marschal(bb, null);
+    }
 
-        bb.put((byte) 0x0);               //version
+    /**
+     * Like {@link #marschal(ByteBuffer)} but writes only the id and the parameters for a message
+     * whose template is in the table
+     */
+    void marschal(ByteBuffer bb, LogTemplates.IdTable templates) throws UnsupportedEncodingException, BufferOverflowException {
+        int templateId = (templates == null || mTemplate == null) ? -1 : templates.idOf(mTemplate);
+        /* Version 2 is a template with words */
+        bb.put((byte) (templateId < 0 ? 0x0 : mWords == null ? 0x1 : 0x2));  //version
         bb.putLong(logtime);              //8
         bb.putInt(mVerbosityLevel);      //4
         bb.putInt(mLevel.getInt());
         bb.putInt(mRessourceId);
-        if (mMessage == null || mMessage.length() == 0) {
+        if (templateId >= 0) {
+            bb.putInt(templateId);
+            bb.putInt(mParams.length);
+            for (long param : mParams)
+                bb.putLong(param);
+            if (mWords != null) {
+                bb.putInt(mWords.length);
+                for (String word : mWords)
+                    marschalString(word, bb);
+            }
+            return;
+        }
+        String message = getMessage();
+        if (message == null || message.length() == 0) {
             bb.putInt(0);
         } else {
-            marschalString(mMessage, bb);
+            marschalString(message, bb);
         }
         if (mArgs == null || mArgs.length == 0) {
             bb.putInt(0);
@@ -145,29 +228,57 @@ public class LogItem implements Parcelable {
 
             }
         }
+    }
 
-        int pos = bb.position();
-        bb.rewind();
-        return Arrays.copyOf(bb.array(), pos);
+    public LogItem(byte[] in, int length) throws UnsupportedEncodingException {
+        this(ByteBuffer.wrap(in, 0, length));
+    }
 
+    /**
+     * Reads a marschaled log item from the bytes between the position and the limit of the buffer.
+     * A slice of a larger buffer can be decoded without copying it first.
+     */
+    LogItem(ByteBuffer bb) throws UnsupportedEncodingException {
+        this(bb, null);
     }
 
-    public LogItem(byte[] in, int length) throws UnsupportedEncodingException {
-        ByteBuffer bb = ByteBuffer.wrap(in, 0, length);
-        bb.get(); // ignore version
+    /**
+     * Reads a log item that might refer to a template of the table
+     */
+    LogItem(ByteBuffer bb, LogTemplates.IdTable templates) throws UnsupportedEncodingException {
+        byte version = bb.get();
         logtime = bb.getLong();
         mVerbosityLevel = bb.getInt();
         mLevel = VpnStatus.LogLevel.getEnumByValue(bb.getInt());
         mRessourceId = bb.getInt();
+        if (version == 0x1 || version == 0x2) {
+            int templateId = bb.getInt();
+            mTemplate = templates == null ? null : templates.get(templateId);
+            if (mTemplate == null)
+                throw new UnsupportedEncodingException("Unknown log template " + templateId);
+            int numParams = bb.getInt();
+            if (numParams != mTemplate.getParamCount())
+                throw new UnsupportedEncodingException("Wrong number of parameters for log template " + templateId);
+            mParams = new long[numParams];
+            for (int i = 0; i < numParams; i++)
+                mParams[i] = bb.getLong();
+            int numWords = version == 0x2 ? bb.getInt() : 0;
+            if (numWords != mTemplate.getWordCount())
+                throw new UnsupportedEncodingException("Wrong number of words for log template " + templateId);
+            if (numWords > 0) {
+                mWords = new String[numWords];
+                for (int i = 0; i < numWords; i++)
+                    mWords[i] = unmarschalString(bb);
+            }
+            if (bb.hasRemaining())
+                throw new UnsupportedEncodingException(bb.remaining() + " bytes left after unmarshaling everything");
+            return;
+        }
         int len = bb.getInt();
         if (len == 0) {
             mMessage = null;
         } else {
-            if (len > bb.remaining())
-                throw new IndexOutOfBoundsException("String length " + len + " is bigger than remaining bytes " + bb.remaining());
-            byte[] utf8bytes = new byte[len];
-            bb.get(utf8bytes);
-            mMessage = new String(utf8bytes, StandardCharsets.UTF_8);
+            mMessage = readString(bb, len);
         }
         int numArgs = bb.getInt();
         if (numArgs > 30) {
@@ -205,33 +316,54 @@ public class LogItem implements Parcelable {
         }
         if (bb.hasRemaining())
             throw new UnsupportedEncodingException(bb.remaining() + " bytes left after unmarshaling everything");
+        /* Messages from OpenVPN in the old format */
+        if (mVerbosityLevel >= 0 && mArgs == null && mMessage != null)
+            setOpenVPNMessage(mMessage);
     }
 
-    private void marschalString(String str, ByteBuffer bb) throws UnsupportedEncodingException {
-        byte[] utf8bytes = str.getBytes(StandardCharsets.UTF_8);
-
-        byte[] elipse = {'.', '.', '.', '[','t','o','o', ' ', 'l','o','n','g',']'};
+    private static final byte[] elipse = {'.', '.', '.', '[','t','o','o', ' ', 'l','o','n','g',']'};
 
+    private void marschalString(String str, ByteBuffer bb) throws UnsupportedEncodingException {
         int maxStringLength = Math.min(8192, bb.remaining()-128);
-
-        if (utf8bytes.length > maxStringLength)
-        {
-            bb.putInt(maxStringLength + elipse.length);
-            bb.put(utf8bytes, 0, maxStringLength);
+        if (maxStringLength < 0)
+            throw new BufferOverflowException();
+
+        /* Encode directly into the buffer and fill in the length afterwards */
+        int lenPos = bb.position();
+        bb.putInt(0);
+        int oldLimit = bb.limit();
+        bb.limit(bb.position() + maxStringLength);
+
+        CharsetEncoder encoder = mUtf8Encoder.get();
+        encoder.reset();
+        CoderResult result = encoder.encode(CharBuffer.wrap(str), bb, true);
+        if (!result.isOverflow())
+            result = encoder.flush(bb);
+        bb.limit(oldLimit);
+        if (result.isOverflow())
             bb.put(elipse);
-        }
-        else
-        {
-            bb.putInt(utf8bytes.length);
-            bb.put(utf8bytes);
-        }
+
+        bb.putInt(lenPos, bb.position() - lenPos - 4);
     }
 
     private String unmarschalString(ByteBuffer bb) throws UnsupportedEncodingException {
-        int len = bb.getInt();
-        byte[] utf8bytes = new byte[len];
-        bb.get(utf8bytes);
-        return new String(utf8bytes, StandardCharsets.UTF_8);
+        return readString(bb, bb.getInt());
+    }
+
+    /* Decodes the string straight from the array behind the buffer when there is one */
+    private static String readString(ByteBuffer bb, int len) {
+        if (len < 0 || len > bb.remaining())
+            throw new IndexOutOfBoundsException("String length " + len + " is bigger than remaining bytes " + bb.remaining());
+        String str;
+        if (bb.hasArray()) {
+            str = new String(bb.array(), bb.arrayOffset() + bb.position(), len, StandardCharsets.UTF_8);
+            bb.position(bb.position() + len);
+        } else {
+            byte[] utf8bytes = new byte[len];
+            bb.get(utf8bytes);
+            str = new String(utf8bytes, StandardCharsets.UTF_8);
+        }
+        return str;
     }
 
 
@@ -278,10 +410,34 @@ public class LogItem implements Parcelable {
         mLevel = loglevel;
     }
 
+    private void setOpenVPNMessage(String message) {
+        LogTemplates.Parsed parsed = LogTemplates.parse(message);
+        if (parsed == null) {
+            mMessage = message;
+        } else {
+            mMessage = null;
+            mTemplate = parsed.template;
+            mParams = parsed.params;
+            mWords = parsed.words;
+        }
+    }
+
+    /* The template is formatted again each time to keep only the parameters in memory */
+    private String getMessage() {
+        if (mTemplate != null)
+            return mTemplate.format(mParams, mWords);
+        return mMessage;
+    }
+
+    LogTemplates.Template getTemplate() {
+        return mTemplate;
+    }
+
     public String getString(Context c) {
         try {
-            if (mMessage != null) {
-                return mMessage;
+            String message = getMessage();
+            if (message != null) {
+                return message;
             } else {
                 if (c != null) {
                     try {
@@ -420,7 +576,7 @@ public class LogItem implements Parcelable {
         if (mLevel == null)
             return false;
 
-        if (mMessage == null && mRessourceId == 0)
+        if (mMessage == null && mTemplate == null && mRessourceId == 0)
             return false;
 
         return true;
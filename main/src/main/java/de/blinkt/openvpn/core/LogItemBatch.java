@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Packs many log items into one byte array to send them across processes in a single binder
+ * transaction.
+ * <p>
+ * The items use the same marschaled format as the log cache file, so the Parcelable path with
+ * its generic object array for the arguments is avoided. Messages with a template only carry
+ * the id of the template in the table at the start of the batch. Format:
+ * <pre>
+ *   byte  version
+ *   int   number of templates
+ *   t * { int length, length bytes UTF-8 template key }
+ *   int   number of items
+ *   n * { int length, length bytes marschaled LogItem }
+ * </pre>
+ */
+class LogItemBatch {
+    private static final byte VERSION = 2;
+
+    private LogItemBatch() {
+    }
+
+    static byte[] encode(List<LogItem> items) throws UnsupportedEncodingException {
+        ByteBuffer scratch = LogItem.getMarschalBuffer();
+        ByteBuffer out = ByteBuffer.allocate(Math.max(256, items.size() * 128));
+        out.put(VERSION);
+
+        LogTemplates.IdTable templates = new LogTemplates.IdTable();
+        for (LogItem item : items) {
+            LogTemplates.Template template = item.getTemplate();
+            if (template != null && templates.idOf(template) < 0)
+                templates.add(template);
+        }
+        out.putInt(templates.size());
+        for (int i = 0; i < templates.size(); i++) {
+            byte[] key = templates.get(i).getKey().getBytes(StandardCharsets.UTF_8);
+            if (out.remaining() < key.length + 4)
+                out = grow(out, key.length + 4);
+            out.putInt(key.length);
+            out.put(key);
+        }
+
+        if (out.remaining() < 4)
+            out = grow(out, 4);
+        int countPos = out.position();
+        out.putInt(0);
+
+        int count = 0;
+        for (LogItem item : items) {
+            scratch.clear();
+            try {
+                item.marschal(scratch, templates);
+            } catch (BufferOverflowException e) {
+                /* Like the log cache, skip items that are too large */
+                continue;
+            }
+            int length = scratch.position();
+            if (out.remaining() < length + 4)
+                out = grow(out, length + 4);
+            out.putInt(length);
+            out.put(scratch.array(), 0, length);
+            count++;
+        }
+        out.putInt(countPos, count);
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    /**
+     * Decodes all items of a batch in one pass
+     */
+    static List<LogItem> decode(byte[] batch) throws UnsupportedEncodingException {
+        ByteBuffer bb = ByteBuffer.wrap(batch);
+        byte version = bb.get();
+        if (version != VERSION)
+            throw new UnsupportedEncodingException("Unknown log item batch version " + version);
+
+        int numTemplates = bb.getInt();
+        if (numTemplates < 0 || numTemplates > batch.length / 4)
+            throw new IndexOutOfBoundsException("Invalid number of log templates in batch: " + numTemplates);
+        LogTemplates.IdTable templates = new LogTemplates.IdTable();
+        for (int i = 0; i < numTemplates; i++) {
+            int length = bb.getInt();
+            if (length < 0 || length > bb.remaining())
+                throw new IndexOutOfBoundsException("Log template length " + length + " is bigger than remaining bytes " + bb.remaining());
+            templates.add(LogTemplates.intern(new String(batch, bb.position(), length, StandardCharsets.UTF_8)));
+            bb.position(bb.position() + length);
+        }
+
+        int count = bb.getInt();
+        if (count < 0 || count > batch.length / 4)
+            throw new IndexOutOfBoundsException("Invalid number of log items in batch: " + count);
+
+        List<LogItem> items = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int length = bb.getInt();
+            if (length < 0 || length > bb.remaining())
+                throw new IndexOutOfBoundsException("Log item length " + length + " is bigger than remaining bytes " + bb.remaining());
+            int end = bb.position() + length;
+            /* The LogItem reads up to the limit */
+            bb.limit(end);
+            items.add(new LogItem(bb, templates));
+            bb.limit(batch.length);
+            bb.position(end);
+        }
+        return items;
+    }
+
+    private static ByteBuffer grow(ByteBuffer out, int needed) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + needed));
+        bigger.put(out.array(), 0, out.position());
+        return bigger;
+    }
+}
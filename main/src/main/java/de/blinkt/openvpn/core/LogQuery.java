@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.content.Context;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Filter for {@link VpnStatus#queryLog(LogQuery, long, int)}. All conditions that are set must
+ * match.
+ */
+public class LogQuery {
+    private static final int ALL_LEVELS = (1 << VpnStatus.LogLevel.values().length) - 1;
+
+    long mFrom = Long.MIN_VALUE;
+    long mTo = Long.MAX_VALUE;
+    int mLevels = ALL_LEVELS;
+    private int mMaxVerbosity = Integer.MAX_VALUE;
+    private String mText;
+    private Context mContext;
+
+    /**
+     * Only items with a log time between from and to, both inclusive
+     */
+    public LogQuery setTimeRange(long from, long to) {
+        mFrom = from;
+        mTo = to;
+        return this;
+    }
+
+    public LogQuery setLevels(VpnStatus.LogLevel... levels) {
+        mLevels = 0;
+        for (VpnStatus.LogLevel level : levels)
+            mLevels |= levelBit(level);
+        return this;
+    }
+
+    /**
+     * Only items with a verbosity of at most maxVerbosity, like the log view setting
+     */
+    public LogQuery setMaxVerbosity(int maxVerbosity) {
+        mMaxVerbosity = maxVerbosity;
+        return this;
+    }
+
+    /**
+     * Only items that contain the text, ignoring case
+     *
+     * @param c used to get the message of log items with a string resource
+     */
+    public LogQuery setText(String text, Context c) {
+        mText = text == null ? null : text.toLowerCase(Locale.ROOT);
+        mContext = c;
+        return this;
+    }
+
+    static int levelBit(VpnStatus.LogLevel level) {
+        return 1 << level.ordinal();
+    }
+
+    boolean filtersLevels() {
+        return mLevels != ALL_LEVELS;
+    }
+
+    /**
+     * Checks the conditions that are not covered by the indexes of the log buffer, except for
+     * the text
+     */
+    boolean matchesFields(LogItem li) {
+        if (li.getLogLevel() == null || (mLevels & levelBit(li.getLogLevel())) == 0)
+            return false;
+        return li.getVerbosityLevel() <= mMaxVerbosity;
+    }
+
+    /**
+     * Checks the text, which needs the formatted message of the item
+     */
+    boolean matchesText(LogItem li) {
+        return mText == null || li.getString(mContext).toLowerCase(Locale.ROOT).contains(mText);
+    }
+
+    /**
+     * One page of the result of a query
+     */
+    public static class Page {
+        private final List<LogItem> mItems;
+        private final long mNextCursor;
+        private final boolean mMore;
+
+        Page(List<LogItem> items, long nextCursor, boolean more) {
+            mItems = Collections.unmodifiableList(items);
+            mNextCursor = nextCursor;
+            mMore = more;
+        }
+
+        public List<LogItem> getItems() {
+            return mItems;
+        }
+
+        /**
+         * @return the cursor to get the next page
+         */
+        public long getNextCursor() {
+            return mNextCursor;
+        }
+
+        /**
+         * @return false if the query has reached the end of the log
+         */
+        public boolean hasMore() {
+            return mMore;
+        }
+    }
+}
@@ -0,0 +1,429 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed capacity ring buffer that keeps log items ordered by their log time.
+ * <p>
+ * Every item has a sequence number, the live items are the ones between {@link #mHead}
+ * (inclusive) and {@link #mTail} (exclusive). Writers are serialized on the buffer itself, readers
+ * never take a lock: they copy the live range and check afterwards that the writer did not
+ * change it under them, like a seqlock. Appending an item at the end, which is the normal case,
+ * does not invalidate readers at all. Only inserting an item that is older than the newest item
+ * moves items and makes concurrent readers retry.
+ * <p>
+ * Trimming only moves the head, the slots are reused by later items. One slot always stays
+ * unused so that a reader can tell whether the slot the writer is currently filling belonged to
+ * the items it copied.
+ * <p>
+ * Queries use two indexes: the order by log time gives the range of a time filter with a binary
+ * search, and a bitmap per log level over the slots lets a level filter skip 64 items at once.
+ */
+class LogRingBuffer {
+    /* After this many failed optimistic reads the reader waits for the writer */
+    private static final int MAX_OPTIMISTIC_READS = 8;
+
+    private final AtomicReferenceArray<LogItem> mSlots;
+    private final int mMask;
+    /* One bit per slot for each log level, only changed with the lock held */
+    private final long[][] mLevelBitmaps;
+
+    private volatile long mHead;
+    private volatile long mTail;
+    /* Odd while items are being moved */
+    private volatile long mVersion;
+
+    /**
+     * @param capacity minimum number of items the buffer can hold. The slots are rounded up to a
+     *                 power of two
+     */
+    LogRingBuffer(int capacity) {
+        int slots = Integer.highestOneBit(Math.max(capacity, 1)) << 1;
+        mSlots = new AtomicReferenceArray<>(slots);
+        mMask = slots - 1;
+        mLevelBitmaps = new long[VpnStatus.LogLevel.values().length][(slots + 63) / 64];
+    }
+
+    /**
+     * @return maximum number of items
+     */
+    int capacity() {
+        return mMask;
+    }
+
+    int size() {
+        return (int) (mTail - mHead);
+    }
+
+    boolean isEmpty() {
+        return mTail == mHead;
+    }
+
+    /**
+     * Adds an item at the position given by its log time. Items with the same log time keep the
+     * order in which they were added. If the buffer is full, the oldest item is dropped, unless
+     * the new item is older than every item in the buffer.
+     *
+     * @param enforceUnique do not add the item if an equal item is already in the buffer
+     * @return false if the item was not added because it is a duplicate or because the buffer is
+     * full and the item is older than all items in it
+     */
+    synchronized boolean add(LogItem item, boolean enforceUnique) {
+        long head = mHead;
+        long tail = mTail;
+        long logtime = item.getLogtime();
+
+        long pos = upperBound(head, tail, logtime);
+        if (enforceUnique) {
+            /* Equal items have the same log time, so they are right before the insert position */
+            for (long seq = pos - 1; seq >= head; seq--) {
+                LogItem other = slot(seq);
+                if (other.getLogtime() != logtime)
+                    break;
+                if (other.equals(item))
+                    return false;
+            }
+        }
+
+        if (tail - head == capacity()) {
+            /* Full and the item would be the oldest, it would be dropped right away */
+            if (pos == head)
+                return false;
+            /* Full, drop the oldest item */
+            head++;
+            mHead = head;
+        }
+
+        if (pos == tail) {
+            /* The slot is outside the live range, readers that might still see it check the tail */
+            setSlot(tail, item);
+            mTail = tail + 1;
+            return true;
+        }
+
+        mVersion++;
+        if (pos - head < tail - pos) {
+            /* Closer to the head, move the older items one slot down */
+            for (long seq = head; seq < pos; seq++)
+                setSlot(seq - 1, slot(seq));
+            setSlot(pos - 1, item);
+            mHead = head - 1;
+        } else {
+            for (long seq = tail; seq > pos; seq--)
+                setSlot(seq, slot(seq - 1));
+            setSlot(pos, item);
+            mTail = tail + 1;
+        }
+        mVersion++;
+        return true;
+    }
+
+    /**
+     * Drops the oldest items so that at most maxItems items remain
+     *
+     * @return true if items were dropped
+     */
+    synchronized boolean trimTo(int maxItems) {
+        long tail = mTail;
+        if (tail - mHead <= maxItems)
+            return false;
+        mHead = tail - maxItems;
+        return true;
+    }
+
+    /**
+     * Like {@link #trimTo(int)} but returns the dropped items, oldest first
+     */
+    synchronized LogItem[] removeOldest(int maxItems) {
+        long head = mHead;
+        long tail = mTail;
+        if (tail - head <= maxItems)
+            return new LogItem[0];
+        LogItem[] removed = new LogItem[(int) (tail - maxItems - head)];
+        for (int i = 0; i < removed.length; i++)
+            removed[i] = slot(head + i);
+        mHead = tail - maxItems;
+        return removed;
+    }
+
+    synchronized void clear() {
+        mHead = mTail;
+    }
+
+    /**
+     * @return a consistent copy of all items, ordered by log time
+     */
+    LogItem[] toArray() {
+        return snapshot().mItems;
+    }
+
+    Snapshot snapshot() {
+        return snapshotSince(Long.MIN_VALUE);
+    }
+
+    /**
+     * Returns the items that were added after the snapshot that returned the cursor. Items that
+     * are inserted before older items (out of order log times) are only seen by a full snapshot.
+     *
+     * @param cursor value of {@link Snapshot#getCursor()} of an earlier snapshot
+     */
+    Snapshot snapshotSince(long cursor) {
+        for (int attempt = 0; attempt < MAX_OPTIMISTIC_READS; attempt++) {
+            Snapshot snapshot = tryRead(cursor);
+            if (snapshot != null)
+                return snapshot;
+            Thread.yield();
+        }
+        synchronized (this) {
+            return tryRead(cursor);
+        }
+    }
+
+    private Snapshot tryRead(long cursor) {
+        long version = mVersion;
+        if ((version & 1) != 0)
+            return null;
+
+        long head = mHead;
+        long tail = mTail;
+        long start = Math.max(head, Math.min(cursor, tail));
+        LogItem[] items = new LogItem[(int) (tail - start)];
+        for (int i = 0; i < items.length; i++)
+            items[i] = slot(start + i);
+
+        /* The writer may already be writing the slot of sequence number mTail, so that slot must
+         * not have been one of ours */
+        if (mVersion != version || mTail - start > capacity())
+            return null;
+        return new Snapshot(items, start, tail);
+    }
+
+    /**
+     * Returns up to maxItems items that match the query, oldest first, without copying the
+     * whole buffer.
+     * <p>
+     * The lock is only held to collect a chunk of the items that match the indexed conditions
+     * and the verbosity. The text filter, which has to format the messages, runs without it, so a
+     * rarely matching text does not block the writer while the whole buffer is searched.
+     *
+     * @param cursor {@link Long#MIN_VALUE} for the first page, otherwise
+     *               {@link LogQuery.Page#getNextCursor()} of the previous page
+     */
+    LogQuery.Page query(LogQuery query, long cursor, int maxItems) {
+        ArrayList<LogItem> items = new ArrayList<>(Math.min(maxItems, 256));
+        QueryChunk chunk = new QueryChunk();
+        long seq = cursor;
+        while (items.size() < maxItems) {
+            scan(query, seq, chunk);
+            for (int i = 0; i < chunk.mCount; i++) {
+                if (!query.matchesText(chunk.mItems[i]))
+                    continue;
+                items.add(chunk.mItems[i]);
+                if (items.size() == maxItems) {
+                    /* Continue after the last returned item, the rest of the chunk is scanned
+                     * again for the next page */
+                    boolean more = i < chunk.mCount - 1 || !chunk.mAtEnd;
+                    return new LogQuery.Page(items, chunk.mSeqs[i] + 1, more);
+                }
+            }
+            seq = chunk.mNext;
+            if (chunk.mAtEnd)
+                return new LogQuery.Page(items, seq, false);
+        }
+        return new LogQuery.Page(items, seq, true);
+    }
+
+    /**
+     * Collects the next items from seq on that match the query except for its text
+     */
+    private synchronized void scan(LogQuery query, long seq, QueryChunk chunk) {
+        long head = mHead;
+        long tail = mTail;
+        seq = Math.max(head, Math.min(seq, tail));
+        if (query.mFrom != Long.MIN_VALUE)
+            seq = Math.max(seq, lowerBound(head, tail, query.mFrom));
+        long end = query.mTo == Long.MAX_VALUE ? tail : upperBound(head, tail, query.mTo);
+
+        chunk.mCount = 0;
+        int scanned = 0;
+        while (chunk.mCount < QueryChunk.SIZE && scanned < QueryChunk.MAX_SCANNED) {
+            if (query.filtersLevels())
+                seq = nextWithLevel(seq, end, query.mLevels);
+            if (seq >= end)
+                break;
+            LogItem item = slot(seq);
+            if (query.matchesFields(item)) {
+                chunk.mItems[chunk.mCount] = item;
+                chunk.mSeqs[chunk.mCount] = seq;
+                chunk.mCount++;
+            }
+            seq++;
+            scanned++;
+        }
+        chunk.mNext = seq;
+        chunk.mAtEnd = seq >= end;
+    }
+
+    /**
+     * Candidates of a query that were collected with the lock held
+     */
+    private static final class QueryChunk {
+        static final int SIZE = 256;
+        /* Limits the time the lock is held if few items match */
+        static final int MAX_SCANNED = 4 * SIZE;
+
+        final LogItem[] mItems = new LogItem[SIZE];
+        final long[] mSeqs = new long[SIZE];
+        int mCount;
+        long mNext;
+        boolean mAtEnd;
+    }
+
+    /**
+     * @return the first sequence number from seq on whose item has one of the levels, or end
+     */
+    private long nextWithLevel(long seq, long end, int levels) {
+        while (seq < end) {
+            int idx = index(seq);
+            int word = idx >>> 6;
+            long bits = 0;
+            for (int level = 0; level < mLevelBitmaps.length; level++)
+                if ((levels & (1 << level)) != 0)
+                    bits |= mLevelBitmaps[level][word];
+            bits >>>= (idx & 63);
+            if (bits != 0)
+                return Math.min(end, seq + Long.numberOfTrailingZeros(bits));
+            /* Do not skip over the wrap around of small buffers */
+            seq += Math.min(64 - (idx & 63), mMask + 1 - idx);
+        }
+        return end;
+    }
+
+    private void setSlot(long seq, LogItem item) {
+        int idx = index(seq);
+        mSlots.set(idx, item);
+        int word = idx >>> 6;
+        long bit = 1L << (idx & 63);
+        for (long[] bitmap : mLevelBitmaps)
+            bitmap[word] &= ~bit;
+        if (item.getLogLevel() != null)
+            mLevelBitmaps[item.getLogLevel().ordinal()][word] |= bit;
+    }
+
+    /**
+     * @return the first sequence number with a log time that is not smaller than logtime
+     */
+    private long lowerBound(long head, long tail, long logtime) {
+        long low = head;
+        long high = tail;
+        while (low < high) {
+            long mid = low + ((high - low) >> 1);
+            if (slot(mid).getLogtime() < logtime)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * @return the first sequence number with a log time that is larger than logtime
+     */
+    private long upperBound(long head, long tail, long logtime) {
+        /* Shortcut for the common case of a new item at the end */
+        if (head == tail || slot(tail - 1).getLogtime() <= logtime)
+            return tail;
+
+        long low = head;
+        long high = tail - 1;
+        while (low < high) {
+            /* The sequence numbers can be negative after inserting before the first item */
+            long mid = low + ((high - low) >> 1);
+            if (slot(mid).getLogtime() <= logtime)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    private int index(long seq) {
+        return (int) (seq & mMask);
+    }
+
+    private LogItem slot(long seq) {
+        return mSlots.get(index(seq));
+    }
+
+    /**
+     * Items of the buffer at one point in time
+     */
+    static class Snapshot implements Iterable<LogItem> {
+        private final LogItem[] mItems;
+        private final long mStart;
+        private final long mCursor;
+
+        private Snapshot(LogItem[] items, long start, long cursor) {
+            mItems = items;
+            mStart = start;
+            mCursor = cursor;
+        }
+
+        int size() {
+            return mItems.length;
+        }
+
+        LogItem get(int i) {
+            return mItems[i];
+        }
+
+        /**
+         * @return sequence number of the first item
+         */
+        long getStart() {
+            return mStart;
+        }
+
+        /**
+         * @return position to continue with {@link LogRingBuffer#snapshotSince(long)}
+         */
+        long getCursor() {
+            return mCursor;
+        }
+
+        LogItem[] toArray() {
+            return Arrays.copyOf(mItems, mItems.length);
+        }
+
+        @NonNull
+        @Override
+        public Iterator<LogItem> iterator() {
+            return new Iterator<LogItem>() {
+                private int mPos;
+
+                @Override
+                public boolean hasNext() {
+                    return mPos < mItems.length;
+                }
+
+                @Override
+                public LogItem next() {
+                    if (mPos >= mItems.length)
+                        throw new NoSuchElementException();
+                    return mItems[mPos++];
+                }
+            };
+        }
+    }
+}
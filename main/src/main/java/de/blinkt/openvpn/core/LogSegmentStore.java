@@ -0,0 +1,377 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Append only store for the log cache, made of fixed size memory mapped segment files.
+ * <p>
+ * Each record is written as
+ * <pre>
+ *   int length, int crc32 of the data, length bytes data
+ * </pre>
+ * A length of 0 or a record with a wrong checksum ends a segment. Since the segments are
+ * created zero filled, a partly written record at the end of a segment is ignored when the
+ * store is opened again.
+ * <p>
+ * Trimming only moves the head, the position of the oldest record, and stores it in a small
+ * head file. Segments that are completely behind the head are deleted. {@link #compact()}
+ * removes the trimmed records at the start of the oldest segment.
+ * <p>
+ * Not thread safe, only used from the LogFileHandler thread.
+ */
+class LogSegmentStore {
+    static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String HEAD_FILE = "head";
+
+    interface RecordReader {
+        void onRecord(byte[] buf, int len) throws IOException;
+    }
+
+    private static class Segment {
+        final long seq;
+        final File file;
+        int items;
+
+        Segment(long seq, File file) {
+            this.seq = seq;
+            this.file = file;
+        }
+    }
+
+    private final File mDirectory;
+    private final int mSegmentSize;
+    private final ArrayDeque<Segment> mSegments = new ArrayDeque<>();
+    private final CRC32 mCrc = new CRC32();
+    private MappedByteBuffer mWriteBuffer;
+    private int mItems;
+    /* Offset of the oldest record in the first segment */
+    private int mHeadOffset;
+    private int mUnforcedBytes;
+
+    LogSegmentStore(File directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    LogSegmentStore(File directory, int segmentSize) {
+        mDirectory = directory;
+        mSegmentSize = segmentSize;
+    }
+
+    /**
+     * Opens the existing segments and calls the reader for every valid record, oldest first.
+     * New records are appended after the last valid record.
+     *
+     * @return the number of records read
+     */
+    int open(RecordReader reader) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs())
+            throw new IOException("Cannot create log cache directory " + mDirectory);
+
+        List<Segment> segments = listSegments();
+        long[] head = readHead();
+        while (!segments.isEmpty() && segments.get(0).seq < head[0])
+            segments.remove(0).file.delete();
+        if (!segments.isEmpty() && segments.get(0).seq == head[0] && head[1] < mSegmentSize)
+            mHeadOffset = (int) head[1];
+
+        byte[] buf = new byte[mSegmentSize];
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            boolean last = i == segments.size() - 1;
+            MappedByteBuffer map = mapSegment(segment.file, last);
+            if (i == 0)
+                map.position(Math.min(mHeadOffset, map.limit()));
+            segment.items = scan(map, buf, reader);
+            mItems += segment.items;
+            mSegments.add(segment);
+            if (last)
+                mWriteBuffer = map;
+        }
+        if (mWriteBuffer == null)
+            rotate();
+        return mItems;
+    }
+
+    /**
+     * Reads the records of a store without changing it, e.g. while the LogFileHandler thread
+     * writes to it. Records appended during the read may be missed.
+     *
+     * @return the number of records read
+     */
+    static int read(File directory, RecordReader reader) throws IOException {
+        LogSegmentStore store = new LogSegmentStore(directory);
+        List<Segment> segments = store.listSegments();
+        long[] head = store.readHead();
+        byte[] buf = new byte[store.mSegmentSize];
+        int items = 0;
+        for (Segment segment : segments) {
+            if (segment.seq < head[0])
+                continue;
+            MappedByteBuffer map;
+            try {
+                map = store.mapSegment(segment.file, false);
+            } catch (java.io.FileNotFoundException e) {
+                /* Deleted by a trim in the meantime */
+                continue;
+            }
+            if (segment.seq == head[0])
+                map.position((int) Math.min(head[1], map.limit()));
+            items += store.scan(map, buf, reader);
+        }
+        return items;
+    }
+
+    /**
+     * Reads all valid records of a segment into buf. Leaves the position of the segment
+     * after the last valid record.
+     */
+    private int scan(ByteBuffer map, byte[] buf, RecordReader reader) throws IOException {
+        int items = 0;
+        while (map.remaining() >= RECORD_HEADER_SIZE) {
+            int start = map.position();
+            int len = map.getInt();
+            int crc = map.getInt();
+            if (len <= 0 || len > map.remaining()) {
+                map.position(start);
+                break;
+            }
+            /* One bulk copy out of the mapping, the checksum and LogItem need an array anyway */
+            map.get(buf, 0, len);
+            mCrc.reset();
+            mCrc.update(buf, 0, len);
+            if ((int) mCrc.getValue() != crc) {
+                map.position(start);
+                break;
+            }
+            reader.onRecord(buf, len);
+            items++;
+        }
+        return items;
+    }
+
+    /**
+     * Appends a record, starting a new segment if it does not fit into the current one
+     */
+    void append(byte[] data, int len) throws IOException {
+        if (len <= 0 || len + RECORD_HEADER_SIZE > mSegmentSize)
+            throw new IOException(String.format(Locale.US, "Invalid log cache record length %d", len));
+
+        if (mWriteBuffer.remaining() < len + RECORD_HEADER_SIZE)
+            rotate();
+
+        mCrc.reset();
+        mCrc.update(data, 0, len);
+        mWriteBuffer.putInt(len);
+        mWriteBuffer.putInt((int) mCrc.getValue());
+        mWriteBuffer.put(data, 0, len);
+        /* Terminate explicitly in case the space after the record contains a torn record */
+        if (mWriteBuffer.remaining() >= 4)
+            mWriteBuffer.putInt(mWriteBuffer.position(), 0);
+
+        mSegments.getLast().items++;
+        mItems++;
+        mUnforcedBytes += len + RECORD_HEADER_SIZE;
+    }
+
+    /**
+     * Drops the oldest records so that keepItems records remain. Only the head moves, segments
+     * that are completely dropped are deleted.
+     *
+     * @return the number of records that have been dropped
+     */
+    int trim(int keepItems) throws IOException {
+        int drop = mItems - keepItems;
+        if (drop <= 0)
+            return 0;
+
+        int dropped = 0;
+        while (mSegments.size() > 1 && mSegments.getFirst().items <= drop - dropped) {
+            Segment segment = mSegments.removeFirst();
+            deleteSegment(segment);
+            dropped += segment.items;
+            mHeadOffset = 0;
+        }
+
+        Segment first = mSegments.getFirst();
+        int skip = Math.min(drop - dropped, first.items);
+        if (skip > 0) {
+            mHeadOffset = skipRecords(first, mHeadOffset, skip);
+            first.items -= skip;
+            dropped += skip;
+        }
+        mItems -= dropped;
+        writeHead();
+        return dropped;
+    }
+
+    /**
+     * Rewrites the oldest segment without the trimmed records before the head
+     *
+     * @return if the segment has been rewritten
+     */
+    boolean compact() throws IOException {
+        if (mHeadOffset == 0 || mSegments.size() < 2)
+            return false;
+
+        Segment first = mSegments.getFirst();
+        ByteBuffer map = mapSegment(first.file, false);
+        int end = skipRecords(first, mHeadOffset, first.items);
+
+        File tmp = new File(mDirectory, first.file.getName() + ".tmp");
+        tmp.delete();
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+            raf.setLength(mSegmentSize);
+            map.limit(end).position(mHeadOffset);
+            raf.getChannel().write(map, 0);
+        }
+
+        /* If we crash before the rename, reading the old segment from the start only brings back
+         * some trimmed records */
+        mHeadOffset = 0;
+        writeHead();
+        if (!tmp.renameTo(first.file))
+            throw new IOException("Cannot replace log cache segment " + first.file);
+        return true;
+    }
+
+    boolean needsCompaction() {
+        return mHeadOffset > 0 && mSegments.size() > 1;
+    }
+
+    private int skipRecords(Segment segment, int offset, int count) throws IOException {
+        ByteBuffer map = segment == mSegments.getLast() ? mWriteBuffer.duplicate() : mapSegment(segment.file, false);
+        for (int i = 0; i < count; i++)
+            offset += RECORD_HEADER_SIZE + map.getInt(offset);
+        return offset;
+    }
+
+    /**
+     * Deletes all records
+     */
+    void clear() throws IOException {
+        while (!mSegments.isEmpty())
+            deleteSegment(mSegments.removeFirst());
+        mItems = 0;
+        mHeadOffset = 0;
+        rotate();
+        writeHead();
+    }
+
+    /**
+     * Writes the current segment to the storage device
+     */
+    void force() {
+        if (mWriteBuffer != null)
+            mWriteBuffer.force();
+        mUnforcedBytes = 0;
+    }
+
+    /**
+     * Bytes appended since the last {@link #force()}
+     */
+    int getUnforcedBytes() {
+        return mUnforcedBytes;
+    }
+
+    int getItemCount() {
+        return mItems;
+    }
+
+    int getSegmentCount() {
+        return mSegments.size();
+    }
+
+    private void rotate() throws IOException {
+        long seq = mSegments.isEmpty() ? 0 : mSegments.getLast().seq + 1;
+        File file = new File(mDirectory, String.format(Locale.US, "%s%d%s", SEGMENT_PREFIX, seq, SEGMENT_SUFFIX));
+        if (mWriteBuffer != null && LogFileHandler.getFlushPolicy() != VpnStatus.LogFlushPolicy.NEVER)
+            force();
+        /* A new file is zero filled, which marks the end of the segment */
+        file.delete();
+        mWriteBuffer = mapSegment(file, true);
+        mSegments.add(new Segment(seq, file));
+    }
+
+    private MappedByteBuffer mapSegment(File file, boolean writable) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r")) {
+            if (writable && raf.length() != mSegmentSize)
+                raf.setLength(mSegmentSize);
+            long size = Math.min(raf.length(), mSegmentSize);
+            /* The mapping stays valid after the file is closed */
+            return raf.getChannel().map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    /* Written to a temporary file first, so the head file is never half written */
+    private void writeHead() throws IOException {
+        File tmp = new File(mDirectory, HEAD_FILE + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+            out.writeLong(mSegments.getFirst().seq);
+            out.writeInt(mHeadOffset);
+        }
+        if (!tmp.renameTo(new File(mDirectory, HEAD_FILE)))
+            throw new IOException("Cannot write log cache head");
+    }
+
+    /* Returns segment number and offset of the head */
+    private long[] readHead() {
+        File head = new File(mDirectory, HEAD_FILE);
+        if (!head.exists())
+            return new long[]{0, 0};
+        try (DataInputStream in = new DataInputStream(new FileInputStream(head))) {
+            return new long[]{in.readLong(), in.readInt()};
+        } catch (IOException e) {
+            VpnStatus.logDebug("Could not read log cache head: " + e.getMessage());
+            return new long[]{0, 0};
+        }
+    }
+
+    private void deleteSegment(Segment segment) {
+        if (!segment.file.delete())
+            VpnStatus.logDebug("Could not delete log cache segment " + segment.file);
+        if (mSegments.isEmpty())
+            mWriteBuffer = null;
+    }
+
+    private List<Segment> listSegments() {
+        List<Segment> segments = new ArrayList<>();
+        File[] files = mDirectory.listFiles();
+        if (files == null)
+            return segments;
+        for (File f : files) {
+            String name = f.getName();
+            if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX))
+                continue;
+            try {
+                long seq = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                segments.add(new Segment(seq, f));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        Collections.sort(segments, (a, b) -> Long.compare(a.seq, b.seq));
+        return segments;
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Dictionary of message templates for the log messages of OpenVPN.
+ * <p>
+ * Most OpenVPN messages repeat with only some numbers changed. A message is split into a
+ * template, the message with all numbers taken out, and the numbers as parameters. Words that
+ * differ between connections, hex ids, IPv6 addresses and host names, are taken out as well.
+ * The template is shared by all log items with the same message. An {@link IdTable} gives the
+ * templates numbers for the log cache and for log item batches.
+ * <p>
+ * The dictionary has a fixed size and never forgets a template, so a message only becomes a
+ * template when it is seen the second time. One-off messages do not fill it up.
+ */
+class LogTemplates {
+    /* Messages longer than this are usually unique, e.g. certificates */
+    private static final int MAX_TEMPLATE_LENGTH = 256;
+    private static final int MAX_TEMPLATES = 4096;
+    /* Keys that have been seen once, the least recently seen are forgotten */
+    private static final int MAX_CANDIDATES = 512;
+    /* Separate the literal parts in the key of a template, a number or a word is in between */
+    private static final char PARAM_MARK = '\u0001';
+    private static final char WORD_MARK = '\u0002';
+    /* Longer numbers do not fit into a long */
+    private static final int MAX_NUMBER_DIGITS = 18;
+    /* Shorter hex strings are more likely real words */
+    private static final int MIN_HEX_WORD_LENGTH = 8;
+
+    private static final HashMap<String, Template> mTemplates = new HashMap<>();
+    private static final LinkedHashMap<String, Boolean> mCandidates = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_CANDIDATES;
+        }
+    };
+
+    static final class Template {
+        /* The literal parts, with a number or a word between each of them */
+        private final String[] mParts;
+        /* PARAM_MARK or WORD_MARK for each gap between the parts */
+        private final char[] mMarks;
+        private final int mParamCount;
+        private final String mKey;
+
+        private Template(String key) {
+            mKey = key;
+            ArrayList<String> parts = new ArrayList<>();
+            StringBuilder marks = new StringBuilder();
+            int start = 0;
+            for (int i = 0; i < key.length(); i++) {
+                char c = key.charAt(i);
+                if (c == PARAM_MARK || c == WORD_MARK) {
+                    parts.add(key.substring(start, i));
+                    marks.append(c);
+                    start = i + 1;
+                }
+            }
+            parts.add(key.substring(start));
+            mParts = parts.toArray(new String[0]);
+            mMarks = marks.toString().toCharArray();
+            int params = 0;
+            for (char mark : mMarks)
+                if (mark == PARAM_MARK)
+                    params++;
+            mParamCount = params;
+        }
+
+        int getParamCount() {
+            return mParamCount;
+        }
+
+        int getWordCount() {
+            return mMarks.length - mParamCount;
+        }
+
+        String getKey() {
+            return mKey;
+        }
+
+        String format(long[] params, String[] words) {
+            if (mMarks.length == 0)
+                return mParts[0];
+            StringBuilder sb = new StringBuilder(mKey.length() + mMarks.length * 8);
+            sb.append(mParts[0]);
+            int param = 0;
+            int word = 0;
+            for (int i = 0; i < mMarks.length; i++) {
+                if (mMarks[i] == PARAM_MARK)
+                    sb.append(params[param++]);
+                else
+                    sb.append(words[word++]);
+                sb.append(mParts[i + 1]);
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Result of {@link #parse(String)}
+     */
+    static final class Parsed {
+        final Template template;
+        final long[] params;
+        /* null if the template has no words */
+        final String[] words;
+
+        Parsed(Template template, long[] params, String[] words) {
+            this.template = template;
+            this.params = params;
+            this.words = words;
+        }
+    }
+
+    private LogTemplates() {
+    }
+
+    /**
+     * Splits a message into a template and its numbers and words
+     *
+     * @return null if the message is not suited for a template, has not been seen before or the
+     * dictionary is full
+     */
+    static Parsed parse(String message) {
+        if (message == null || message.isEmpty() || message.length() > MAX_TEMPLATE_LENGTH
+                || message.indexOf(PARAM_MARK) >= 0 || message.indexOf(WORD_MARK) >= 0)
+            return null;
+
+        StringBuilder key = new StringBuilder(message.length());
+        long[] params = new long[8];
+        int numParams = 0;
+        ArrayList<String> words = null;
+        int i = 0;
+        while (i < message.length()) {
+            char c = message.charAt(i);
+            if (i == 0 || !isWordChar(message.charAt(i - 1))) {
+                int wordEnd = wordEnd(message, i);
+                if (wordEnd > i) {
+                    if (words == null)
+                        words = new ArrayList<>();
+                    words.add(message.substring(i, wordEnd));
+                    key.append(WORD_MARK);
+                    i = wordEnd;
+                    continue;
+                }
+            }
+            int end = i;
+            while (end < message.length() && isDigit(message.charAt(end)))
+                end++;
+            int digits = end - i;
+            /* Numbers with a leading zero would not come back the same */
+            if (digits == 0 || digits > MAX_NUMBER_DIGITS || (c == '0' && digits > 1)) {
+                key.append(message, i, Math.max(end, i + 1));
+                i = Math.max(end, i + 1);
+                continue;
+            }
+            if (numParams == params.length)
+                params = Arrays.copyOf(params, numParams * 2);
+            params[numParams++] = Long.parseLong(message.substring(i, end));
+            key.append(PARAM_MARK);
+            i = end;
+        }
+
+        Template template = internIfSeenBefore(key.toString());
+        if (template == null)
+            return null;
+        return new Parsed(template, Arrays.copyOf(params, numParams),
+                words == null ? null : words.toArray(new String[0]));
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isHexDigit(char c) {
+        return isDigit(c) || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isWordChar(char c) {
+        return isLetter(c) || isDigit(c) || c == '.' || c == ':' || c == '-' || c == '_';
+    }
+
+    /**
+     * Checks if a word that varies between connections starts at start: a hex id, an IPv6
+     * address or a host name. Numbers and IPv4 addresses are not words, their numbers are
+     * parameters.
+     *
+     * @return the end of the word or -1
+     */
+    private static int wordEnd(String message, int start) {
+        int end = start;
+        while (end < message.length() && isWordChar(message.charAt(end)))
+            end++;
+        /* Not the punctuation at the end of a sentence */
+        while (end > start && (message.charAt(end - 1) == '.' || message.charAt(end - 1) == '-'))
+            end--;
+
+        boolean digit = false;
+        boolean hexLetter = false;
+        boolean otherLetter = false;
+        int colons = 0;
+        int dots = 0;
+        int dashes = 0;
+        for (int i = start; i < end; i++) {
+            char c = message.charAt(i);
+            if (isDigit(c))
+                digit = true;
+            else if (isHexDigit(c))
+                hexLetter = true;
+            else if (isLetter(c))
+                otherLetter = true;
+            else if (c == ':')
+                colons++;
+            else if (c == '.')
+                dots++;
+            else
+                dashes++;
+        }
+
+        /* Session ids, peer ids and fingerprints. A digit and a letter, so it is neither a
+         * number nor an English word like "added" */
+        if (digit && hexLetter && !otherLetter && colons == 0 && dots == 0 && dashes == 0
+                && end - start >= MIN_HEX_WORD_LENGTH)
+            return end;
+
+        /* IPv6 addresses, also MAC addresses and times */
+        if (colons >= 2 && (digit || hexLetter) && !otherLetter && dashes == 0)
+            return end;
+
+        /* Host names, without a :port after them */
+        int hostEnd = start;
+        while (hostEnd < end && message.charAt(hostEnd) != ':')
+            hostEnd++;
+        if (isHostName(message, start, hostEnd))
+            return hostEnd;
+        return -1;
+    }
+
+    /* At least two labels, the last one only letters like a top level domain */
+    private static boolean isHostName(String message, int start, int end) {
+        int lastDot = message.lastIndexOf('.', end - 1);
+        if (lastDot <= start || end - lastDot - 1 < 2)
+            return false;
+        for (int i = lastDot + 1; i < end; i++)
+            if (!isLetter(message.charAt(i)))
+                return false;
+        for (int i = start; i < end; i++) {
+            char c = message.charAt(i);
+            if (c == '.' && (i == start || message.charAt(i - 1) == '.'))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the shared template for a key of another table. If the dictionary is full, the
+     * template is not shared.
+     */
+    static Template intern(String key) {
+        Template template = internIfRoom(key);
+        return template != null ? template : new Template(key);
+    }
+
+    /**
+     * Returns the shared template for a key if the key has been seen before
+     *
+     * @return null if the key is new or the dictionary is full
+     */
+    private static Template internIfSeenBefore(String key) {
+        synchronized (mTemplates) {
+            Template template = mTemplates.get(key);
+            if (template != null || mTemplates.size() >= MAX_TEMPLATES)
+                return template;
+            if (mCandidates.remove(key) == null) {
+                mCandidates.put(key, Boolean.TRUE);
+                return null;
+            }
+            template = new Template(key);
+            mTemplates.put(key, template);
+            return template;
+        }
+    }
+
+    /**
+     * Returns the shared template for a key
+     *
+     * @return null if the dictionary is full
+     */
+    private static Template internIfRoom(String key) {
+        synchronized (mTemplates) {
+            Template template = mTemplates.get(key);
+            if (template == null && mTemplates.size() < MAX_TEMPLATES) {
+                template = new Template(key);
+                mTemplates.put(key, template);
+            }
+            return template;
+        }
+    }
+
+    static int size() {
+        synchronized (mTemplates) {
+            return mTemplates.size();
+        }
+    }
+
+    /**
+     * Numbers the templates for one on-disk or transfer format. Not thread safe.
+     */
+    static final class IdTable {
+        private final HashMap<Template, Integer> mIds = new HashMap<>();
+        private final ArrayList<Template> mById = new ArrayList<>();
+
+        /**
+         * @return the id of the template or -1 if it has none in this table
+         */
+        int idOf(Template template) {
+            Integer id = mIds.get(template);
+            return id == null ? -1 : id;
+        }
+
+        /**
+         * Adds a template and returns its new id, which is the number of templates before
+         */
+        int add(Template template) {
+            int id = mById.size();
+            mById.add(template);
+            mIds.put(template, id);
+            return id;
+        }
+
+        Template get(int id) {
+            if (id < 0 || id >= mById.size())
+                return null;
+            return mById.get(id);
+        }
+
+        int size() {
+            return mById.size();
+        }
+
+        void clear() {
+            mIds.clear();
+            mById.clear();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Streams the log to the UI process when it registers, see
+ * {@link IServiceStatus#registerStatusCallback(IStatusCallbacks)}.
+ * <p>
+ * The log items are sent in frames of up to {@link #FRAME_ITEMS} items. Each frame is a
+ * {@link LogItemBatch}, deflated if that makes it smaller, and is written to the pipe with a
+ * single write. Format:
+ * <pre>
+ *   int   length of the payload, 0 ends the stream
+ *   byte  flags
+ *   int   length of the batch after inflating
+ *   length bytes payload
+ * </pre>
+ */
+class LogTransfer {
+    static final int FRAME_ITEMS = 256;
+    private static final int HEADER_SIZE = 9;
+    private static final byte FLAG_DEFLATE = 0x1;
+    /* Small batches do not get smaller by deflating them */
+    private static final int MIN_DEFLATE_SIZE = 1024;
+    /* Protects against allocating huge buffers for a broken stream */
+    private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    private LogTransfer() {
+    }
+
+    /**
+     * Writes all items followed by the end of the stream
+     */
+    static void write(LogItem[] items, WritableByteChannel out) throws IOException {
+        write(Arrays.asList(items), out);
+    }
+
+    /**
+     * Writes the items frame by frame, only one frame of items is collected at a time
+     */
+    static void write(Iterable<LogItem> items, WritableByteChannel out) throws IOException {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            List<LogItem> frame = new ArrayList<>(FRAME_ITEMS);
+            for (LogItem item : items) {
+                frame.add(item);
+                if (frame.size() == FRAME_ITEMS) {
+                    writeFrame(LogItemBatch.encode(frame), deflater, out);
+                    frame.clear();
+                }
+            }
+            if (!frame.isEmpty())
+                writeFrame(LogItemBatch.encode(frame), deflater, out);
+
+            ByteBuffer end = ByteBuffer.allocate(HEADER_SIZE);
+            end.putInt(0).put((byte) 0).putInt(0).flip();
+            writeFully(end, out);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void writeFrame(byte[] batch, Deflater deflater, WritableByteChannel out) throws IOException {
+        byte flags = 0;
+        byte[] payload = batch;
+        int length = batch.length;
+        if (batch.length >= MIN_DEFLATE_SIZE) {
+            byte[] compressed = new byte[batch.length];
+            deflater.reset();
+            deflater.setInput(batch);
+            deflater.finish();
+            int n = deflater.deflate(compressed);
+            /* Not finished means the compressed batch would not be smaller */
+            if (deflater.finished()) {
+                flags |= FLAG_DEFLATE;
+                payload = compressed;
+                length = n;
+            }
+        }
+
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + length);
+        frame.putInt(length);
+        frame.put(flags);
+        frame.putInt(batch.length);
+        frame.put(payload, 0, length);
+        frame.flip();
+        writeFully(frame, out);
+    }
+
+    private static void writeFully(ByteBuffer bb, WritableByteChannel out) throws IOException {
+        while (bb.hasRemaining())
+            out.write(bb);
+    }
+
+    /**
+     * Decodes the frames written by {@link #write(LogItem[], WritableByteChannel)}
+     */
+    static final class Reader {
+        private final ReadableByteChannel mIn;
+        private final ByteBuffer mHeader = ByteBuffer.allocate(HEADER_SIZE);
+        private final Inflater mInflater = new Inflater();
+        private byte[] mPayload = new byte[0];
+
+        Reader(ReadableByteChannel in) {
+            mIn = in;
+        }
+
+        /**
+         * @return the items of the next frame, null at the end of the stream
+         */
+        List<LogItem> readFrame() throws IOException {
+            mHeader.clear();
+            readFully(mHeader);
+            mHeader.flip();
+            int length = mHeader.getInt();
+            byte flags = mHeader.get();
+            int rawLength = mHeader.getInt();
+            if (length == 0)
+                return null;
+            if (length < 0 || length > MAX_FRAME_SIZE || rawLength < 0 || rawLength > MAX_FRAME_SIZE)
+                throw new IOException("Invalid log frame length " + length);
+
+            if (mPayload.length < length)
+                mPayload = new byte[length];
+            readFully(ByteBuffer.wrap(mPayload, 0, length));
+
+            byte[] batch;
+            if ((flags & FLAG_DEFLATE) != 0) {
+                batch = new byte[rawLength];
+                mInflater.reset();
+                mInflater.setInput(mPayload, 0, length);
+                try {
+                    if (mInflater.inflate(batch) != rawLength)
+                        throw new IOException("Truncated log frame");
+                } catch (DataFormatException e) {
+                    throw new IOException("Invalid compressed log frame", e);
+                }
+            } else {
+                batch = Arrays.copyOf(mPayload, length);
+            }
+
+            try {
+                return LogItemBatch.decode(batch);
+            } catch (RuntimeException e) {
+                throw new IOException("Invalid log frame", e);
+            }
+        }
+
+        private void readFully(ByteBuffer bb) throws IOException {
+            while (bb.hasRemaining()) {
+                if (mIn.read(bb) < 0)
+                    throw new EOFException();
+            }
+        }
+
+        void close() {
+            mInflater.end();
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.os.ParcelFileDescriptor;
+
+import java.io.FileDescriptor;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A command for the management interface together with the reply that OpenVPN sent for it.
+ * <p>
+ * The future completes with the reply line ("SUCCESS: ...") or, for commands like state or
+ * status that are answered with multiple lines terminated by END, with these lines joined by
+ * '\n'. It fails with an {@link ExecutionException} if OpenVPN answered with "ERROR: ..." or the
+ * management connection was closed before the reply arrived.
+ */
+class ManagementCommand implements OpenVPNManagement.CommandReply {
+
+    enum ReplyType {
+        /* OpenVPN does not answer this command */
+        NONE,
+        /* Answered with a single SUCCESS: or ERROR: line */
+        SUCCESS,
+        /* network-change is answered with a PROTECTFD: line */
+        PROTECTFD,
+        /* Answered with multiple lines followed by END */
+        END,
+        /* Answered with a SUCCESS: line and then multiple lines followed by END, e.g. state on all */
+        SUCCESS_THEN_END
+    }
+
+    final byte[] data;
+    final ReplyType replyType;
+    /* File descriptors that are sent together with the command */
+    final FileDescriptor[] fds;
+    /* Closed after the command and the fds have been sent */
+    final ParcelFileDescriptor pfdToClose;
+
+    private boolean mDone;
+    private boolean mCancelled;
+    private String mReply;
+    private Throwable mError;
+    private OpenVPNManagement.CommandCallback mCallback;
+
+    /* Lines of a multi line reply */
+    private StringBuilder mLines;
+    private boolean mSuccessSeen;
+    /* Set when END has been received, independent of the command being cancelled */
+    private boolean mEndSeen;
+
+    private long mWrittenNanos = -1;
+    private long mCompletedNanos = -1;
+
+    ManagementCommand(String cmd) {
+        this(cmd, null, null);
+    }
+
+    ManagementCommand(String cmd, FileDescriptor[] fds, ParcelFileDescriptor pfdToClose) {
+        this.data = cmd.getBytes(StandardCharsets.UTF_8);
+        this.replyType = expectedReply(cmd);
+        this.fds = fds;
+        this.pfdToClose = pfdToClose;
+    }
+
+    static ReplyType expectedReply(String cmd) {
+        String[] args = cmd.trim().split(" ");
+        switch (args[0]) {
+            case "version":
+                /* Without argument the version is printed, only client versions >= 4 are acknowledged */
+                if (args.length == 1)
+                    return ReplyType.END;
+                try {
+                    return Integer.parseInt(args[1]) >= 4 ? ReplyType.SUCCESS : ReplyType.NONE;
+                } catch (NumberFormatException e) {
+                    /* Answered with an ERROR: line */
+                    return ReplyType.SUCCESS;
+                }
+            case "network-change":
+                return ReplyType.PROTECTFD;
+            case "status":
+            case "help":
+                return ReplyType.END;
+            case "state":
+            case "log":
+            case "echo":
+                return historyReply(args);
+            default:
+                return ReplyType.SUCCESS;
+        }
+    }
+
+    /**
+     * The history commands (state, log, echo) take up to two arguments. on/off are answered with
+     * SUCCESS:, all or a number print the history terminated by END.
+     */
+    private static ReplyType historyReply(String[] args) {
+        if (args.length == 1)
+            return args[0].equals("state") ? ReplyType.END : ReplyType.SUCCESS;
+
+        boolean success = false;
+        boolean history = false;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("on") || args[i].equals("off"))
+                success = true;
+            else
+                history = true;
+        }
+        if (history && success)
+            return ReplyType.SUCCESS_THEN_END;
+        else if (history)
+            return ReplyType.END;
+        else
+            return ReplyType.SUCCESS;
+    }
+
+    /**
+     * Called by the writer just before the command is written
+     */
+    synchronized void setWritten() {
+        mWrittenNanos = System.nanoTime();
+    }
+
+    /**
+     * Adds a line of a multi line reply.
+     *
+     * @return true if the line was part of the reply to this command
+     */
+    boolean addReplyLine(String line) {
+        String reply;
+        synchronized (this) {
+            if (mEndSeen || (replyType != ReplyType.END && !(replyType == ReplyType.SUCCESS_THEN_END && mSuccessSeen)))
+                return false;
+            if (!line.equals("END")) {
+                if (mLines == null)
+                    mLines = new StringBuilder();
+                else
+                    mLines.append('\n');
+                mLines.append(line);
+                return true;
+            }
+            mEndSeen = true;
+            reply = mLines == null ? "" : mLines.toString();
+        }
+        complete(reply);
+        return true;
+    }
+
+    synchronized boolean isEndSeen() {
+        return mEndSeen;
+    }
+
+    /**
+     * Handles a SUCCESS: line
+     *
+     * @return true if the command is complete
+     */
+    boolean onSuccess(String line) {
+        if (replyType == ReplyType.SUCCESS_THEN_END) {
+            synchronized (this) {
+                mSuccessSeen = true;
+            }
+            return false;
+        }
+        complete(line);
+        return true;
+    }
+
+    boolean expectsSuccessLine() {
+        if (replyType == ReplyType.SUCCESS)
+            return true;
+        synchronized (this) {
+            return replyType == ReplyType.SUCCESS_THEN_END && !mSuccessSeen;
+        }
+    }
+
+    void complete(String reply) {
+        OpenVPNManagement.CommandCallback callback;
+        synchronized (this) {
+            if (mDone)
+                return;
+            mReply = reply;
+            callback = finish();
+        }
+        if (callback != null)
+            callback.onReply(this);
+    }
+
+    void fail(Throwable error) {
+        OpenVPNManagement.CommandCallback callback;
+        synchronized (this) {
+            if (mDone)
+                return;
+            mError = error;
+            callback = finish();
+        }
+        if (callback != null)
+            callback.onReply(this);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        /* The command might already be written, cancelling only stops waiting for the reply */
+        OpenVPNManagement.CommandCallback callback;
+        synchronized (this) {
+            if (mDone)
+                return false;
+            mCancelled = true;
+            callback = finish();
+        }
+        if (callback != null)
+            callback.onReply(this);
+        return true;
+    }
+
+    private OpenVPNManagement.CommandCallback finish() {
+        mDone = true;
+        mCompletedNanos = System.nanoTime();
+        notifyAll();
+        OpenVPNManagement.CommandCallback callback = mCallback;
+        mCallback = null;
+        return callback;
+    }
+
+    @Override
+    public void setCallback(OpenVPNManagement.CommandCallback callback) {
+        synchronized (this) {
+            if (!mDone) {
+                mCallback = callback;
+                return;
+            }
+        }
+        callback.onReply(this);
+    }
+
+    @Override
+    public synchronized long getLatencyNanos() {
+        if (mWrittenNanos == -1 || mCompletedNanos == -1)
+            return -1;
+        return mCompletedNanos - mWrittenNanos;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    @Override
+    public synchronized String get() throws ExecutionException, InterruptedException {
+        while (!mDone)
+            wait();
+        return getResult();
+    }
+
+    @Override
+    public synchronized String get(long timeout, TimeUnit unit) throws ExecutionException, InterruptedException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!mDone) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                throw new TimeoutException("No reply from management interface");
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return getResult();
+    }
+
+    private String getResult() throws ExecutionException {
+        if (mCancelled)
+            throw new CancellationException();
+        if (mError != null)
+            throw new ExecutionException(mError);
+        return mReply;
+    }
+}
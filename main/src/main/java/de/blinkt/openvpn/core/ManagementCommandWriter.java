@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.net.LocalSocket;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes commands to the management socket from a single thread.
+ * <p>
+ * Any thread can queue commands without blocking. The writer thread takes all commands that
+ * are queued when it wakes up and writes them with a single write, so sequences like the
+ * commands after a hold release only cost one syscall. Since only this thread writes to the
+ * socket, commands from different threads can no longer be interleaved.
+ * <p>
+ * OpenVPN answers commands in the order they were received. Commands that expect a reply are
+ * remembered in that order until the reader thread reports the reply with
+ * {@link #onReply(ManagementMessage.Type, String)}.
+ */
+class ManagementCommandWriter implements Runnable {
+    static final int MAX_QUEUED_COMMANDS = 256;
+    /* Larger batches are split into multiple writes */
+    private static final int MAX_BATCH_SIZE = 16 * 1024;
+
+    private final ConcurrentLinkedQueue<ManagementCommand> mQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mQueued = new AtomicInteger();
+    private final ConcurrentLinkedDeque<ManagementCommand> mPendingReplies = new ConcurrentLinkedDeque<>();
+
+    private final OutputStream mOut;
+    private final LocalSocket mSocket;
+    private volatile Thread mThread;
+    private volatile boolean mStopped;
+    private volatile boolean mCloseWhenDrained;
+
+    private byte[] mBatch = new byte[1024];
+    private int mBatchLength;
+
+    /**
+     * @param socket socket to send file descriptors with and to close, may be null
+     */
+    ManagementCommandWriter(OutputStream out, LocalSocket socket) {
+        mOut = out;
+        mSocket = socket;
+    }
+
+    void start() {
+        Thread thread = new Thread(this, "OpenVPNManagementWriter");
+        mThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Queues a command for writing.
+     *
+     * @return false if the queue is full or the writer has been stopped
+     */
+    boolean submit(ManagementCommand cmd) {
+        if (!enqueue(cmd))
+            return false;
+        LockSupport.unpark(mThread);
+        return true;
+    }
+
+    /**
+     * Queues several commands that should be written together
+     *
+     * @return false if not all commands could be queued
+     */
+    boolean submit(ManagementCommand... cmds) {
+        boolean queued = true;
+        for (ManagementCommand cmd : cmds)
+            queued &= enqueue(cmd);
+        LockSupport.unpark(mThread);
+        return queued;
+    }
+
+    private boolean enqueue(ManagementCommand cmd) {
+        if (mStopped || mCloseWhenDrained) {
+            cmd.fail(new IOException("Management connection closed"));
+            return false;
+        }
+        if (mQueued.incrementAndGet() > MAX_QUEUED_COMMANDS) {
+            mQueued.decrementAndGet();
+            cmd.fail(new IOException("Too many queued management commands"));
+            return false;
+        }
+        mQueue.offer(cmd);
+        return true;
+    }
+
+    /**
+     * Closes the socket after all commands queued so far have been written
+     */
+    void closeWhenDrained() {
+        mCloseWhenDrained = true;
+        LockSupport.unpark(mThread);
+    }
+
+    /**
+     * Stops the writer and fails all commands that are still waiting to be written or for a reply
+     */
+    void stop() {
+        mStopped = true;
+        LockSupport.unpark(mThread);
+        failAll(new IOException("Management connection closed"));
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!mStopped) {
+                if (mQueue.isEmpty()) {
+                    if (mCloseWhenDrained) {
+                        closeSocket();
+                        break;
+                    }
+                    LockSupport.park(this);
+                    continue;
+                }
+                writeQueued();
+            }
+        } catch (IOException e) {
+            // Ignore socket stack traces, the reader notices the closed socket
+        }
+        mStopped = true;
+        failAll(new IOException("Management connection closed"));
+    }
+
+    private void writeQueued() throws IOException {
+        ManagementCommand cmd;
+        while ((cmd = mQueue.poll()) != null) {
+            mQueued.decrementAndGet();
+
+            if (cmd.fds != null) {
+                /* The fds are attached to the next write, so write this command on its own */
+                flushBatch();
+                writeWithFds(cmd);
+                continue;
+            }
+
+            /* Remember the command before it is written, the reply can arrive immediately */
+            cmd.setWritten();
+            if (cmd.replyType != ManagementCommand.ReplyType.NONE)
+                mPendingReplies.add(cmd);
+            else
+                cmd.complete(null);
+
+            if (mBatchLength > 0 && mBatchLength + cmd.data.length > MAX_BATCH_SIZE)
+                flushBatch();
+            appendToBatch(cmd.data);
+        }
+        flushBatch();
+    }
+
+    private void appendToBatch(byte[] data) {
+        if (mBatchLength + data.length > mBatch.length) {
+            byte[] newBatch = new byte[Math.max(mBatch.length * 2, mBatchLength + data.length)];
+            System.arraycopy(mBatch, 0, newBatch, 0, mBatchLength);
+            mBatch = newBatch;
+        }
+        System.arraycopy(data, 0, mBatch, mBatchLength, data.length);
+        mBatchLength += data.length;
+    }
+
+    private void flushBatch() throws IOException {
+        if (mBatchLength == 0)
+            return;
+        int length = mBatchLength;
+        mBatchLength = 0;
+        mOut.write(mBatch, 0, length);
+        mOut.flush();
+    }
+
+    private void writeWithFds(ManagementCommand cmd) throws IOException {
+        cmd.setWritten();
+        if (cmd.replyType != ManagementCommand.ReplyType.NONE)
+            mPendingReplies.add(cmd);
+        try {
+            // The API documentation fails to mention that it will not reset the file descriptor to
+            // be send and will happily send the file descriptor on every write ...
+            mSocket.setFileDescriptorsForSend(cmd.fds);
+            mOut.write(cmd.data);
+            mOut.flush();
+            // Set the FileDescriptor to null to stop this mad behavior
+            mSocket.setFileDescriptorsForSend(null);
+        } finally {
+            closePfd(cmd);
+        }
+    }
+
+    private static void closePfd(ManagementCommand cmd) {
+        if (cmd.pfdToClose != null) {
+            try {
+                cmd.pfdToClose.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void closeSocket() {
+        try {
+            if (mSocket != null)
+                mSocket.close();
+            else
+                mOut.close();
+        } catch (IOException e) {
+            // Ignore close error on already closed socket
+        }
+    }
+
+    /**
+     * Assigns a reply line from the management interface to the command that caused it. Lines
+     * that are not real-time notifications or SUCCESS:/ERROR:/PROTECTFD: lines are passed as
+     * {@link ManagementMessage.Type#UNKNOWN} and belong to a multi line reply if a command
+     * is waiting for one.
+     *
+     * @return false if no command was waiting for this reply
+     */
+    boolean onReply(ManagementMessage.Type type, String line) {
+        ManagementCommand cmd = mPendingReplies.peekFirst();
+        if (cmd == null)
+            return false;
+
+        switch (type) {
+            case SUCCESS:
+                if (!cmd.expectsSuccessLine())
+                    return false;
+                if (!cmd.onSuccess(line))
+                    /* The multi line part of the reply follows */
+                    return true;
+                break;
+            case ERROR:
+                cmd.fail(new IOException(line));
+                break;
+            case PROTECTFD:
+                if (cmd.replyType != ManagementCommand.ReplyType.PROTECTFD)
+                    return false;
+                cmd.complete(line);
+                break;
+            case UNKNOWN:
+                if (!cmd.addReplyLine(line))
+                    return false;
+                if (!cmd.isEndSeen())
+                    return true;
+                break;
+            default:
+                return false;
+        }
+        mPendingReplies.remove(cmd);
+
+        /* With fd -2 OpenVPN restarts the connection and reports that like a signal command.
+         * Swallow that extra reply so it is not assigned to the next command */
+        if (type == ManagementMessage.Type.PROTECTFD && line.contains("'-2'"))
+            mPendingReplies.addFirst(new ManagementCommand("signal SIGUSR1\n"));
+        return true;
+    }
+
+    int getQueuedCount() {
+        return mQueued.get();
+    }
+
+    int getPendingReplyCount() {
+        return mPendingReplies.size();
+    }
+
+    private void failAll(Throwable error) {
+        ManagementCommand cmd;
+        while ((cmd = mQueue.poll()) != null) {
+            mQueued.decrementAndGet();
+            cmd.fail(error);
+            closePfd(cmd);
+        }
+        while ((cmd = mPendingReplies.poll()) != null)
+            cmd.fail(error);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import androidx.annotation.NonNull;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A single line read from the management interface. The line is a view into the read buffer
+ * of {@link ManagementLineReader} and is only valid during the callback that received it.
+ * <p>
+ * The management protocol keywords are plain ASCII, so {@link #charAt(int)} and the matching
+ * methods work on the raw bytes. Only {@link #toString()} and {@link #toString(int, int)}
+ * decode UTF-8 and allocate a String.
+ */
+class ManagementLine implements CharSequence {
+    private byte[] mData;
+    private int mOffset;
+    private int mLength;
+
+    ManagementLine() {
+    }
+
+    ManagementLine(byte[] data, int offset, int length) {
+        set(data, offset, length);
+    }
+
+    void set(byte[] data, int offset, int length) {
+        mData = data;
+        mOffset = offset;
+        mLength = length;
+    }
+
+    @Override
+    public int length() {
+        return mLength;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= mLength)
+            throw new IndexOutOfBoundsException("index " + index + ", length " + mLength);
+        return (char) (mData[mOffset + index] & 0xff);
+    }
+
+    byte byteAt(int index) {
+        return mData[mOffset + index];
+    }
+
+    @NonNull
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        checkRange(start, end);
+        return new ManagementLine(mData, mOffset + start, end - start);
+    }
+
+    boolean startsWith(String prefix) {
+        return regionMatches(0, prefix);
+    }
+
+    /**
+     * @return true if the ASCII string str is found at position offset of this line
+     */
+    boolean regionMatches(int offset, String str) {
+        if (offset < 0 || offset + str.length() > mLength)
+            return false;
+        for (int i = 0; i < str.length(); i++) {
+            if (mData[mOffset + offset + i] != (byte) str.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    int indexOf(char c, int fromIndex) {
+        for (int i = Math.max(fromIndex, 0); i < mLength; i++) {
+            if (mData[mOffset + i] == (byte) c)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Parses a decimal number directly from the bytes in [start, end) without creating
+     * a String, with the same rules as {@link Long#parseLong(String)}
+     */
+    long parseLong(int start, int end) {
+        checkRange(start, end);
+        if (start == end)
+            throw new NumberFormatException("Empty number in management line");
+
+        int i = start;
+        boolean negative = false;
+        byte first = mData[mOffset + i];
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            i++;
+            if (i == end)
+                throw new NumberFormatException("Sign without number in management line");
+        }
+
+        // Accumulate negatively to be able to represent Long.MIN_VALUE
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long multmin = limit / 10;
+        long result = 0;
+        for (; i < end; i++) {
+            int digit = mData[mOffset + i] - '0';
+            if (digit < 0 || digit > 9 || result < multmin)
+                throw new NumberFormatException("Invalid number in management line: " + toString(start, end));
+            result *= 10;
+            if (result < limit + digit)
+                throw new NumberFormatException("Number out of range in management line: " + toString(start, end));
+            result -= digit;
+        }
+        return negative ? result : -result;
+    }
+
+    int parseInt(int start, int end) {
+        long value = parseLong(start, end);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+            throw new NumberFormatException("Number out of range in management line: " + toString(start, end));
+        return (int) value;
+    }
+
+    /**
+     * Decodes the bytes in [start, end) as UTF-8
+     */
+    String toString(int start, int end) {
+        checkRange(start, end);
+        return new String(mData, mOffset + start, end - start, StandardCharsets.UTF_8);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return toString(0, mLength);
+    }
+
+    private void checkRange(int start, int end) {
+        if (start < 0 || end > mLength || start > end)
+            throw new IndexOutOfBoundsException("range [" + start + "," + end + ") length " + mLength);
+    }
+}
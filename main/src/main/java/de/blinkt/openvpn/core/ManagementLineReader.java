@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits the byte stream from the management socket into lines.
+ * <p>
+ * Reads go directly into one reusable buffer that is scanned for '\n' exactly once per byte.
+ * Every complete line is handed to the {@link LineHandler} as a {@link ManagementLine} view
+ * into that buffer, so no String is created unless the handler asks for one. Incomplete lines
+ * stay in the buffer until the rest arrives; this also keeps multibyte UTF-8 characters that
+ * are split between two reads intact.
+ */
+class ManagementLineReader {
+    interface LineHandler {
+        /**
+         * @param line the line without the trailing "\n" or "\r\n". Only valid during this call.
+         */
+        void onLine(ManagementLine line);
+    }
+
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+
+    private final LineHandler mHandler;
+    private final ManagementLine mLine = new ManagementLine();
+    private byte[] mBuffer;
+    /* Start of the first line that has not been dispatched yet */
+    private int mLineStart;
+    /* Position up to which the buffer has been scanned for a newline */
+    private int mScanPos;
+    /* End of the valid data in the buffer */
+    private int mEnd;
+
+    ManagementLineReader(LineHandler handler) {
+        this(handler, INITIAL_BUFFER_SIZE);
+    }
+
+    ManagementLineReader(LineHandler handler, int initialBufferSize) {
+        mHandler = handler;
+        mBuffer = new byte[initialBufferSize];
+    }
+
+    /**
+     * Reads the next chunk of data from the stream into the buffer
+     *
+     * @return number of bytes read or -1 on end of stream
+     */
+    int readFrom(InputStream in) throws IOException {
+        ensureSpace();
+        int read = in.read(mBuffer, mEnd, mBuffer.length - mEnd);
+        if (read > 0)
+            mEnd += read;
+        return read;
+    }
+
+    /**
+     * Adds data to the buffer, used if the data does not come from a stream
+     */
+    void append(byte[] data, int offset, int length) {
+        while (length > 0) {
+            ensureSpace();
+            int n = Math.min(length, mBuffer.length - mEnd);
+            System.arraycopy(data, offset, mBuffer, mEnd, n);
+            mEnd += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Calls the line handler for every complete line in the buffer
+     */
+    void dispatchLines() {
+        while (mScanPos < mEnd) {
+            if (mBuffer[mScanPos] == '\n') {
+                int lineEnd = mScanPos;
+                if (lineEnd > mLineStart && mBuffer[lineEnd - 1] == '\r')
+                    lineEnd--;
+
+                mLine.set(mBuffer, mLineStart, lineEnd - mLineStart);
+                mLineStart = mScanPos + 1;
+                mScanPos++;
+                mHandler.onLine(mLine);
+            } else {
+                mScanPos++;
+            }
+        }
+
+        if (mLineStart == mEnd) {
+            /* Everything consumed, start at the beginning of the buffer again */
+            mLineStart = 0;
+            mScanPos = 0;
+            mEnd = 0;
+        }
+    }
+
+    /**
+     * @return number of bytes of an incomplete line that are waiting for more input
+     */
+    int pendingBytes() {
+        return mEnd - mLineStart;
+    }
+
+    private void ensureSpace() {
+        if (mEnd < mBuffer.length)
+            return;
+
+        int pending = mEnd - mLineStart;
+        if (mLineStart > 0) {
+            /* Move the incomplete line to the front of the buffer */
+            System.arraycopy(mBuffer, mLineStart, mBuffer, 0, pending);
+        } else {
+            /* A single line fills the whole buffer, grow it */
+            byte[] newBuffer = new byte[mBuffer.length * 2];
+            System.arraycopy(mBuffer, 0, newBuffer, 0, pending);
+            mBuffer = newBuffer;
+        }
+        mScanPos -= mLineStart;
+        mLineStart = 0;
+        mEnd = pending;
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Parses a line from the management interface into its type and the offsets of its arguments.
+ * <p>
+ * The type is determined by walking a prefix trie that is built once from {@link Type}, so a line
+ * is only looked at once and no String is created for the command name. Messages with comma
+ * separated arguments are split according to their {@link Type} while parsing; the handlers then
+ * read the fields they need directly from the line. A single instance is reused for every line,
+ * the parsed data is only valid until the next call to {@link #parse(ManagementLine)}.
+ */
+class ManagementMessage {
+
+    enum Type {
+        /* Real-time notifications, the number is the maximum number of comma separated fields */
+        INFO(">INFO:", 0),
+        PASSWORD(">PASSWORD:", 0),
+        HOLD(">HOLD:", 0),
+        NEED_OK(">NEED-OK:", 0),
+        //   >BYTECOUNT:{BYTES_IN},{BYTES_OUT}
+        BYTECOUNT(">BYTECOUNT:", 2),
+        //   >STATE:{time},{state},{rest}
+        STATE(">STATE:", 3),
+        //   >PROXY:{connection entry},{proto},{host}
+        PROXY(">PROXY:", 3),
+        //   >LOG:{time},{level},{openvpn verb level},{message}
+        LOG(">LOG:", 4),
+        PK_SIGN(">PK_SIGN:", 0),
+        INFOMSG(">INFOMSG:", 0),
+
+        /* Other lines */
+        SUCCESS("SUCCESS:", 0),
+        ERROR("ERROR:", 0),
+        PROTECTFD("PROTECTFD: ", 0),
+
+        /* Notification with a name that is not known */
+        UNKNOWN_NOTIFICATION(null, 0),
+        UNKNOWN(null, 0);
+
+        final String prefix;
+        final int maxFields;
+
+        Type(String prefix, int maxFields) {
+            this.prefix = prefix;
+            this.maxFields = maxFields;
+        }
+    }
+
+    private static final int MAX_FIELDS = 4;
+
+    private static final TrieNode PREFIX_TRIE = buildTrie();
+
+    private ManagementLine mLine;
+    private Type mType = Type.UNKNOWN;
+    private int mArgStart;
+    private int mFieldCount;
+    private final int[] mFieldStart = new int[MAX_FIELDS];
+    private final int[] mFieldEnd = new int[MAX_FIELDS];
+
+    /**
+     * Determines the type of the line and splits its arguments.
+     *
+     * @return the type of the message
+     */
+    Type parse(ManagementLine line) {
+        mLine = line;
+        mFieldCount = 0;
+
+        TrieNode node = PREFIX_TRIE;
+        Type type = null;
+        int pos = 0;
+        int length = line.length();
+        while (node != null) {
+            if (node.type != null) {
+                type = node.type;
+                mArgStart = pos;
+                /* The prefixes are distinct (all end with ':' or ' '), so we can stop here */
+                break;
+            }
+            if (pos == length)
+                break;
+            node = node.child(line.byteAt(pos++));
+        }
+
+        if (type == null) {
+            if (length > 0 && line.byteAt(0) == '>' && line.indexOf(':', 1) != -1) {
+                type = Type.UNKNOWN_NOTIFICATION;
+                mArgStart = line.indexOf(':', 1) + 1;
+            } else {
+                type = Type.UNKNOWN;
+                mArgStart = 0;
+            }
+        }
+        mType = type;
+
+        if (type.maxFields > 0)
+            splitFields(type.maxFields);
+
+        return type;
+    }
+
+    private void splitFields(int maxFields) {
+        int start = mArgStart;
+        int length = mLine.length();
+        while (mFieldCount < maxFields - 1) {
+            int comma = mLine.indexOf(',', start);
+            if (comma == -1)
+                break;
+            mFieldStart[mFieldCount] = start;
+            mFieldEnd[mFieldCount] = comma;
+            mFieldCount++;
+            start = comma + 1;
+        }
+        /* The last field gets the rest of the line like String.split(",", limit) */
+        mFieldStart[mFieldCount] = start;
+        mFieldEnd[mFieldCount] = length;
+        mFieldCount++;
+    }
+
+    Type getType() {
+        return mType;
+    }
+
+    ManagementLine getLine() {
+        return mLine;
+    }
+
+    /**
+     * @return offset of the first byte after the message prefix
+     */
+    int getArgumentStart() {
+        return mArgStart;
+    }
+
+    /**
+     * @return everything after the message prefix
+     */
+    String getArgument() {
+        return mLine.toString(mArgStart, mLine.length());
+    }
+
+    int getFieldCount() {
+        return mFieldCount;
+    }
+
+    int getFieldLength(int field) {
+        checkField(field);
+        return mFieldEnd[field] - mFieldStart[field];
+    }
+
+    String getField(int field) {
+        checkField(field);
+        return mLine.toString(mFieldStart[field], mFieldEnd[field]);
+    }
+
+    long getFieldLong(int field) {
+        checkField(field);
+        return mLine.parseLong(mFieldStart[field], mFieldEnd[field]);
+    }
+
+    int getFieldInt(int field) {
+        checkField(field);
+        return mLine.parseInt(mFieldStart[field], mFieldEnd[field]);
+    }
+
+    char getFieldChar(int field, int index) {
+        checkField(field);
+        return mLine.charAt(mFieldStart[field] + index);
+    }
+
+    boolean fieldEquals(int field, String str) {
+        checkField(field);
+        return getFieldLength(field) == str.length() && mLine.regionMatches(mFieldStart[field], str);
+    }
+
+    boolean fieldStartsWith(int field, String str) {
+        checkField(field);
+        return getFieldLength(field) >= str.length() && mLine.regionMatches(mFieldStart[field], str);
+    }
+
+    private void checkField(int field) {
+        if (field < 0 || field >= mFieldCount)
+            throw new IndexOutOfBoundsException("Field " + field + " requested but " + mType + " message has only " + mFieldCount + " fields: " + mLine);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return mType + ": " + mLine;
+    }
+
+    private static TrieNode buildTrie() {
+        TrieNode root = new TrieNode();
+        for (Type type : Type.values()) {
+            if (type.prefix == null)
+                continue;
+
+            if (type.maxFields > MAX_FIELDS)
+                throw new IllegalStateException("Too many fields for " + type);
+
+            TrieNode node = root;
+            for (int i = 0; i < type.prefix.length(); i++)
+                node = node.getOrAddChild((byte) type.prefix.charAt(i));
+            node.type = type;
+        }
+        return root;
+    }
+
+    private static final class TrieNode {
+        private byte[] keys = new byte[0];
+        private TrieNode[] children = new TrieNode[0];
+        private Type type;
+
+        TrieNode child(byte key) {
+            /* The fan-out is tiny (at most a few children per node), a linear scan is fastest */
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == key)
+                    return children[i];
+            }
+            return null;
+        }
+
+        TrieNode getOrAddChild(byte key) {
+            TrieNode child = child(key);
+            if (child == null) {
+                child = new TrieNode();
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                children = Arrays.copyOf(children, children.length + 1);
+                keys[keys.length - 1] = key;
+                children[children.length - 1] = child;
+            }
+            return child;
+        }
+    }
+}
@@ -124,13 +124,11 @@ public class NetworkSpace {
                 numBits = 128 - networkMask;
             }
 
-            for (int i = 0; i < numBits; i++) {
-                if (one)
-                    numAddress = numAddress.setBit(i);
-                else
-                    numAddress = numAddress.clearBit(i);
-            }
-            return numAddress;
+            BigInteger hostBits = BigInteger.ONE.shiftLeft(numBits).subtract(BigInteger.ONE);
+            if (one)
+                return numAddress.or(hostBits);
+            else
+                return numAddress.andNot(hostBits);
         }
 
 
@@ -240,6 +238,10 @@ public class NetworkSpace {
 
     TreeSet<IpAddress> mIpAddresses = new TreeSet<IpAddress>();
 
+    /* The IPv4 networks of mIpAddresses, used to compute the positive routes */
+    private final IPv4RouteSet mIPv4Routes = new IPv4RouteSet();
+    private boolean mHasIPv6;
+
 
     public Collection<IpAddress> getNetworks(boolean included) {
         Vector<IpAddress> ips = new Vector<IpAddress>();
@@ -252,23 +254,31 @@ public class NetworkSpace {
 
     public void clear() {
         mIpAddresses.clear();
+        mIPv4Routes.clear();
+        mHasIPv6 = false;
     }
 
 
     void addIP(CIDRIP cidrIp, boolean include) {
-
-        mIpAddresses.add(new IpAddress(cidrIp, include));
+        addIPv4(new IpAddress(cidrIp, include));
     }
 
     public void addIPSplit(CIDRIP cidrIp, boolean include) {
         IpAddress newIP = new IpAddress(cidrIp, include);
         IpAddress[] splitIps = newIP.split();
         for (IpAddress split : splitIps)
-            mIpAddresses.add(split);
+            addIPv4(split);
+    }
+
+    private void addIPv4(IpAddress ip) {
+        /* Like the set, the first of two equal networks wins */
+        if (mIpAddresses.add(ip))
+            mIPv4Routes.add(ip.netAddress.longValue(), ip.networkMask, ip.included);
     }
 
     void addIPv6(Inet6Address address, int mask, boolean included) {
         mIpAddresses.add(new IpAddress(address, mask, included));
+        mHasIPv6 = true;
     }
 
     TreeSet<IpAddress> generateIPList() {
@@ -360,9 +370,14 @@ public class NetworkSpace {
     }
 
     Collection<IpAddress> getPositiveIPList() {
-        TreeSet<IpAddress> ipsSorted = generateIPList();
-
         Vector<IpAddress> ips = new Vector<IpAddress>();
+        if (!mHasIPv6) {
+            for (long route : mIPv4Routes.getPositiveRoutes())
+                ips.add(new IpAddress(BigInteger.valueOf(IPv4RouteSet.getAddress(route)), IPv4RouteSet.getPrefix(route), true, true));
+            return ips;
+        }
+
+        TreeSet<IpAddress> ipsSorted = generateIPList();
         for (IpAddress ia : ipsSorted) {
             if (ia.included)
                 ips.add(ia);
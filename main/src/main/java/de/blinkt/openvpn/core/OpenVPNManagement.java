@@ -5,6 +5,8 @@
 
 package de.blinkt.openvpn.core;
 
+import java.util.concurrent.Future;
+
 public interface OpenVPNManagement {
     interface PausedStateCallback {
         boolean shouldBeRunning();
@@ -22,6 +24,31 @@ public interface OpenVPNManagement {
         NO_PADDING
     }
 
+    /**
+     * Reply of OpenVPN to a command sent with {@link #sendCommand(String)}.
+     * <p>
+     * Completes with the SUCCESS: line or, for commands answered with multiple lines terminated
+     * by END (like state or status 3), with these lines joined by '\n'. ERROR: replies and a closed
+     * management connection complete it with an {@link java.util.concurrent.ExecutionException}.
+     */
+    interface CommandReply extends Future<String> {
+        /**
+         * Sets a callback that is called when the reply has arrived. The callback is called from
+         * the thread reading the management interface, or directly if the reply is already there.
+         */
+        void setCallback(CommandCallback callback);
+
+        /**
+         * @return time between writing the command and getting its reply in nanoseconds or -1 if
+         * there is no reply yet
+         */
+        long getLatencyNanos();
+    }
+
+    interface CommandCallback {
+        void onReply(CommandReply reply);
+    }
+
     int mBytecountInterval = 2;
 
     void reconnect();
@@ -48,4 +75,16 @@ public interface OpenVPNManagement {
      * @param response  Base64 encoded response
      */
     void sendCRResponse(String response);
+
+    /**
+     * Sends a command to the management interface. Commands are written in the order of the calls,
+     * so several commands can be sent without waiting for the replies in between.
+     *
+     * @param command command including the terminating newline, e.g. "state\n"
+     */
+    default CommandReply sendCommand(String command) {
+        ManagementCommand cmd = new ManagementCommand(command);
+        cmd.fail(new UnsupportedOperationException("Management commands are not supported by " + getClass().getSimpleName()));
+        return cmd;
+    }
 }
@@ -118,7 +118,8 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
 
     private DeviceStateReceiver mDeviceStateReceiver;
     private boolean mDisplayBytecount = false;
-    private boolean mStarting = false;
+    /* Written on the command handler thread, read by endVpnService on other threads */
+    private volatile boolean mStarting = false;
     private long mConnecttime;
     private OpenVPNManagement mManagement;
 
@@ -165,6 +166,15 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
     private Handler guiHandler;
     private Toast mlastToast;
     private Runnable mOpenVPNThread;
+
+    /* Time the old OpenVPN process gets to exit before it is interrupted */
+    private static final long PROCESS_STOP_TIMEOUT_MS = 1000;
+    private static final int MANAGEMENT_BIND_TRIES = 8;
+    private static final long MANAGEMENT_BIND_RETRY_MS = 300;
+    /* Only accessed from the command handler thread */
+    private Runnable mAfterProcessStopped;
+    private Thread mStoppingProcessThread;
+    private Runnable mPendingLaunch;
     private HandlerThread mCommandHandlerThread;
     private Handler mCommandHandler;
 
@@ -492,16 +502,32 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
         keepVPNAlive.scheduleKeepVPNAliveJobService(this, vp);
 
         String nativeLibDir = getApplicationInfo().nativeLibraryDir;
-        String tmpDir;
-        try { tmpDir = getApplication().getCacheDir().getCanonicalPath(); }
-        catch (IOException e) { tmpDir = "/tmp"; }
+        String cacheDir;
+        try { cacheDir = getApplication().getCacheDir().getCanonicalPath(); }
+        catch (IOException e) { cacheDir = "/tmp"; }
+        final String tmpDir = cacheDir;
 
         String[] argv = VPNLaunchHelper.buildOpenvpnArgv(this);
 
+        /* A newer start request replaces one that is still waiting to be launched */
+        mCommandHandler.removeCallbacks(mPendingLaunch);
+        mPendingLaunch = null;
+
         mStarting = true;
-        stopOldOpenVPNProcess(mManagement, mOpenVPNThread);
-        mStarting = false;
+        stopOldOpenVPNProcess(mManagement, mOpenVPNThread, () -> {
+            mStarting = false;
+            launchOpenVPN(argv, nativeLibDir, tmpDir, MANAGEMENT_BIND_TRIES);
+        });
+    }
 
+    /**
+     * Starts the management interface and the OpenVPN process. Runs on the command handler
+     * thread after the old process has been stopped.
+     *
+     * @param bindTries number of attempts left to bind the management socket
+     */
+    private void launchOpenVPN(String[] argv, String nativeLibDir, String tmpDir, int bindTries) {
+        mPendingLaunch = null;
         boolean useOpenVPN3 = VpnProfile.doUseOpenVPN3(this);
 
         if (!useOpenVPN3) {
@@ -511,7 +537,16 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
                 sockThread.start();
                 mManagement = mgmtThread;
                 VpnStatus.logInfo("started Socket Thread");
-            } else { endVpnService(); return; }
+            } else if (bindTries > 1) {
+                /* Could take a while to open connection, retry without blocking the command thread */
+                mPendingLaunch = () -> launchOpenVPN(argv, nativeLibDir, tmpDir, bindTries - 1);
+                mCommandHandler.postDelayed(mPendingLaunch, MANAGEMENT_BIND_RETRY_MS);
+                return;
+            } else {
+                VpnStatus.logError("Could not open the management socket");
+                endVpnService();
+                return;
+            }
         }
 
         Runnable processThread;
@@ -524,9 +559,17 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
         }
 
         synchronized (mProcessLock) {
-            mProcessThread = new Thread(processThread, "OpenVPNProcessThread");
+            final Runnable process = processThread;
+            mProcessThread = new Thread(() -> {
+                try {
+                    process.run();
+                } finally {
+                    onProcessThreadExited(Thread.currentThread());
+                }
+            }, "OpenVPNProcessThread");
             mProcessThread.start();
         }
+        mOpenVPNThread = processThread;
 
         if (!useOpenVPN3) {
             try {
@@ -547,21 +590,66 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
         });
     }
 
-    private void stopOldOpenVPNProcess(OpenVPNManagement management, Runnable mgmtThread) {
+    /**
+     * Stops a running OpenVPN process and runs whenStopped on the command handler thread once the
+     * process thread has exited. If the process does not react to the stop signal in time, the
+     * process thread is interrupted, and if that does not help either, whenStopped runs anyway.
+     */
+    private void stopOldOpenVPNProcess(OpenVPNManagement management, Runnable mgmtThread, Runnable whenStopped) {
+        if (mAfterProcessStopped != null) {
+            /* Already waiting for the old process, start the newer request instead */
+            mAfterProcessStopped = whenStopped;
+            return;
+        }
+
+        Thread oldProcessThread;
+        synchronized (mProcessLock) {
+            oldProcessThread = mProcessThread;
+        }
+
         if (management != null) {
             if (mgmtThread instanceof OpenVPNThread) ((OpenVPNThread) mgmtThread).setReplaceConnection();
-            if (management.stopVPN(true)) {
-                try { Thread.sleep(1000); } catch (InterruptedException ignored) {}
-            }
+            management.stopVPN(true);
         }
+
+        if (oldProcessThread == null || !oldProcessThread.isAlive()) {
+            whenStopped.run();
+            return;
+        }
+
+        mAfterProcessStopped = whenStopped;
+        mStoppingProcessThread = oldProcessThread;
+        mCommandHandler.postDelayed(mForceStopRunnable, PROCESS_STOP_TIMEOUT_MS);
+    }
+
+    private final Runnable mForceStopRunnable = () -> {
         forceStopOpenVpnProcess();
+        mCommandHandler.postDelayed(this.mProcessStopTimeoutRunnable, PROCESS_STOP_TIMEOUT_MS);
+    };
+
+    private final Runnable mProcessStopTimeoutRunnable = this::continueAfterProcessStopped;
+
+    private void onProcessThreadExited(Thread processThread) {
+        mCommandHandler.post(() -> {
+            if (processThread == mStoppingProcessThread)
+                continueAfterProcessStopped();
+        });
+    }
+
+    private void continueAfterProcessStopped() {
+        Runnable afterStopped = mAfterProcessStopped;
+        mCommandHandler.removeCallbacks(mForceStopRunnable);
+        mCommandHandler.removeCallbacks(mProcessStopTimeoutRunnable);
+        mAfterProcessStopped = null;
+        mStoppingProcessThread = null;
+        if (afterStopped != null)
+            afterStopped.run();
     }
 
     public void forceStopOpenVpnProcess() {
         synchronized (mProcessLock) {
             if (mProcessThread != null) {
                 mProcessThread.interrupt();
-                try { Thread.sleep(1000); } catch (InterruptedException ignored) {}
             }
         }
     }
@@ -622,6 +710,7 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
             mDeviceStateReceiver = null;
         }
         VpnStatus.removeStateListener(this);
+        VpnStatus.flushTrafficStore();
         VpnStatus.flushLog();
     }
 
@@ -995,11 +1084,13 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
     @Override
     public void updateByteCount(long in, long out, long diffIn, long diffOut) {
         if (!mDisplayBytecount) return;
+        /* The smoothed rate does not jump around with every update */
+        ThroughputStats.Snapshot throughput = VpnStatus.getThroughputStats();
         String netstat = String.format(getString(R.string.statusline_bytecount),
                 humanReadableByteCount(in, false, getResources()),
-                humanReadableByteCount(diffIn / OpenVPNManagement.mBytecountInterval, true, getResources()),
+                humanReadableByteCount((long) throughput.getRateIn(), true, getResources()),
                 humanReadableByteCount(out, false, getResources()),
-                humanReadableByteCount(diffOut / OpenVPNManagement.mBytecountInterval, true, getResources()));
+                humanReadableByteCount((long) throughput.getRateOut(), true, getResources()));
         showNotification(netstat, null, NOTIFICATION_CHANNEL_BG_ID, mConnecttime, LEVEL_CONNECTED, null);
     }
 
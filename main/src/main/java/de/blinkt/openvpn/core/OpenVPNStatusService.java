@@ -13,12 +13,18 @@ import android.os.Message;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import androidx.annotation.Nullable;
 import android.util.Pair;
 
-import java.io.DataOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Ensure to forward message from the backend process :openvpn to the frontend process via AIDL
@@ -35,6 +41,14 @@ public class OpenVPNStatusService extends Service implements VpnStatus.LogListen
     static final RemoteCallbackList<IStatusCallbacks> mCallbacks =
             new RemoteCallbackList<>();
 
+    /* Sends the log to newly registered callbacks, the thread ends when it is idle for a minute */
+    private static final ThreadPoolExecutor mPushLogsExecutor = new ThreadPoolExecutor(1, 1,
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> new Thread(r, "pushLogs"));
+
+    static {
+        mPushLogsExecutor.allowCoreThreadTimeOut(true);
+    }
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -61,42 +75,32 @@ public class OpenVPNStatusService extends Service implements VpnStatus.LogListen
 
         @Override
         public ParcelFileDescriptor registerStatusCallback(IStatusCallbacks cb) throws RemoteException {
-            final LogItem[] logbuffer = VpnStatus.getlogbuffer();
             if (mLastUpdateMessage != null)
                 sendUpdate(cb, mLastUpdateMessage);
 
             mCallbacks.register(cb);
             try {
                 final ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
-                new Thread("pushLogs") {
-                    @Override
-                    public void run() {
-                        DataOutputStream fd = new DataOutputStream(new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]));
-                        try {
-                            synchronized (VpnStatus.readFileLock) {
-                                if (!VpnStatus.readFileLog) {
-                                    VpnStatus.readFileLock.wait();
-                                }
-                            }
-                        } catch (InterruptedException e) {
-                            VpnStatus.logException(e);
-                        }
-                        try {
-
-                            for (LogItem logItem : logbuffer) {
-                                byte[] bytes = logItem.getMarschaledBytes();
-                                fd.writeShort(bytes.length);
-                                fd.write(bytes);
+                mPushLogsExecutor.execute(() -> {
+                    try {
+                        synchronized (VpnStatus.readFileLock) {
+                            if (!VpnStatus.readFileLog) {
+                                VpnStatus.readFileLock.wait();
                             }
-                            // Mark end
-                            fd.writeShort(0x7fff);
-                            fd.close();
-                        } catch (IOException e) {
-                            e.printStackTrace();
                         }
-
+                    } catch (InterruptedException e) {
+                        VpnStatus.logException(e);
+                    }
+                    /* Taken after the log cache has been restored, the restored items are not
+                     * sent to the callbacks one by one. Items that are logged after registering
+                     * reach the UI twice, StatusListener checks callback items up to the newest
+                     * item of the pipe for duplicates */
+                    try (FileOutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1])) {
+                        LogTransfer.write(VpnStatus.iterateLog(), out.getChannel());
+                    } catch (IOException e) {
+                        e.printStackTrace();
                     }
-                }.start();
+                });
                 return pipe[0];
             } catch (IOException e) {
                 e.printStackTrace();
@@ -124,6 +128,25 @@ public class OpenVPNStatusService extends Service implements VpnStatus.LogListen
             return VpnStatus.trafficHistory;
         }
 
+        @Override
+        public byte[] getTrafficHistoryNewerThan(long newerThan) throws RemoteException {
+            return VpnStatus.trafficHistory.encodeNewerThan(newerThan);
+        }
+
+        @Override
+        public byte[] getLogItems(long fromLogtime, long cursor, int maxItems, long[] nextCursor) throws RemoteException {
+            /* Page by the position in the log buffer: many items share the same log time, so
+             * continuing after the last log time of a page would skip some of them */
+            LogQuery.Page page = VpnStatus.queryLog(new LogQuery().setTimeRange(fromLogtime, Long.MAX_VALUE),
+                    cursor, Math.min(maxItems, MAX_LOG_ITEMS_PER_BATCH));
+            nextCursor[0] = page.getNextCursor();
+            try {
+                return LogItemBatch.encode(page.getItems());
+            } catch (UnsupportedEncodingException e) {
+                throw new RemoteException(e.getMessage());
+            }
+        }
+
         @Override
         public void notifyProfileVersionChanged(String uuid, int version) throws RemoteException {
             ProfileManager.notifyProfileVersionChanged(OpenVPNStatusService.this, uuid, version);
@@ -131,16 +154,63 @@ public class OpenVPNStatusService extends Service implements VpnStatus.LogListen
 
     };
 
+    /* Updates are collected for this long and then sent to each client in one transaction */
+    static final long DEFAULT_UPDATE_FRAME_MS = 250;
+    /* Keeps a single transaction well below the binder buffer size */
+    private static final int MAX_LOG_ITEMS_PER_BATCH = 100;
+
+    private static volatile long mUpdateFrameMs = DEFAULT_UPDATE_FRAME_MS;
+
+    private static final Object mBatchLock = new Object();
+    /* Updates of the current frame, guarded by mBatchLock */
+    private static StatusUpdateBatch mPendingBatch = new StatusUpdateBatch();
+    private static long mLastBatchSent;
+
+    /**
+     * Sets how long updates are collected before they are sent to the clients. The first update
+     * after a quiet period is sent right away.
+     */
+    static void setUpdateFrame(long frameMs) {
+        mUpdateFrameMs = frameMs;
+    }
+
+    private static void scheduleBatch() {
+        /* Several threads might schedule at the same time, a batch message that finds nothing
+         * to send is harmless */
+        if (mHandler.hasMessages(SEND_UPDATE_BATCH))
+            return;
+        long delay;
+        synchronized (mBatchLock) {
+            delay = mLastBatchSent + mUpdateFrameMs - SystemClock.elapsedRealtime();
+        }
+        mHandler.sendEmptyMessageDelayed(SEND_UPDATE_BATCH, Math.max(0, delay));
+    }
+
+    private static StatusUpdateBatch takePendingBatch() {
+        synchronized (mBatchLock) {
+            StatusUpdateBatch batch = mPendingBatch;
+            if (batch.isEmpty())
+                return null;
+            mPendingBatch = new StatusUpdateBatch();
+            mLastBatchSent = SystemClock.elapsedRealtime();
+            return batch;
+        }
+    }
+
     @Override
     public void newLog(LogItem logItem) {
-        Message msg = mHandler.obtainMessage(SEND_NEW_LOGITEM, logItem);
-        msg.sendToTarget();
+        synchronized (mBatchLock) {
+            mPendingBatch.addLogItem(logItem);
+        }
+        scheduleBatch();
     }
 
     @Override
     public void updateByteCount(long in, long out, long diffIn, long diffOut) {
-        Message msg = mHandler.obtainMessage(SEND_NEW_BYTECOUNT, Pair.create(in, out));
-        msg.sendToTarget();
+        synchronized (mBatchLock) {
+            mPendingBatch.setByteCount(in, out, VpnStatus.getThroughputStats());
+        }
+        scheduleBatch();
     }
 
     static UpdateMessage mLastUpdateMessage;
@@ -166,14 +236,18 @@ public class OpenVPNStatusService extends Service implements VpnStatus.LogListen
     public void updateState(String state, String logmessage, int localizedResId, ConnectionStatus level, Intent intent) {
 
         mLastUpdateMessage = new UpdateMessage(state, logmessage, localizedResId, level, intent);
-        Message msg = mHandler.obtainMessage(SEND_NEW_STATE, mLastUpdateMessage);
-        msg.sendToTarget();
+        synchronized (mBatchLock) {
+            mPendingBatch.setState(state, logmessage, localizedResId, level, intent);
+        }
+        scheduleBatch();
     }
 
     @Override
     public void setConnectedVPN(String uuid) {
-        Message msg = mHandler.obtainMessage(SEND_NEW_CONNECTED_VPN, uuid);
-        msg.sendToTarget();
+        synchronized (mBatchLock) {
+            mPendingBatch.setConnectedVPN(uuid);
+        }
+        scheduleBatch();
     }
 
     @Override
@@ -185,10 +259,7 @@ public class OpenVPNStatusService extends Service implements VpnStatus.LogListen
 
     private static final OpenVPNStatusHandler mHandler = new OpenVPNStatusHandler();
 
-    private static final int SEND_NEW_LOGITEM = 100;
-    private static final int SEND_NEW_STATE = 101;
-    private static final int SEND_NEW_BYTECOUNT = 102;
-    private static final int SEND_NEW_CONNECTED_VPN = 103;
+    private static final int SEND_UPDATE_BATCH = 100;
     private static final int SEND_NEW_PROFILE_VERSION = 104;
 
     private static class OpenVPNStatusHandler extends Handler {
@@ -205,6 +276,12 @@ public class OpenVPNStatusService extends Service implements VpnStatus.LogListen
             if (service == null || service.get() == null)
                 return;
             callbacks = service.get().mCallbacks;
+
+            if (msg.what == SEND_UPDATE_BATCH) {
+                sendBatch(callbacks);
+                return;
+            }
+
             // Broadcast to all clients the new value.
             final int N = callbacks.beginBroadcast();
             for (int i = 0; i < N; i++) {
@@ -212,21 +289,6 @@ public class OpenVPNStatusService extends Service implements VpnStatus.LogListen
                     IStatusCallbacks broadcastItem = callbacks.getBroadcastItem(i);
 
                     switch (msg.what) {
-                        case SEND_NEW_LOGITEM:
-                            broadcastItem.newLogItem((LogItem) msg.obj);
-                            break;
-                        case SEND_NEW_BYTECOUNT:
-                            Pair<Long, Long> inout = (Pair<Long, Long>) msg.obj;
-                            broadcastItem.updateByteCount(inout.first, inout.second);
-                            break;
-                        case SEND_NEW_STATE:
-                            sendUpdate(broadcastItem, (UpdateMessage) msg.obj);
-                            break;
-
-                        case SEND_NEW_CONNECTED_VPN:
-                            broadcastItem.connectedVPN((String) msg.obj);
-                            break;
-
                         case SEND_NEW_PROFILE_VERSION:
                             Pair<String, Integer> profileupdate =  (Pair<String, Integer>) msg.obj;
                             broadcastItem.notifyProfileVersionChanged(profileupdate.first, profileupdate.second);
@@ -238,6 +300,34 @@ public class OpenVPNStatusService extends Service implements VpnStatus.LogListen
             }
             callbacks.finishBroadcast();
         }
+
+        private void sendBatch(RemoteCallbackList<IStatusCallbacks> callbacks) {
+            StatusUpdateBatch batch = takePendingBatch();
+            if (batch == null)
+                return;
+            /* Only with a flood of log items, the state and byte count come with the last batch */
+            List<byte[]> logBatches;
+            try {
+                logBatches = batch.splitLogItems(MAX_LOG_ITEMS_PER_BATCH);
+            } catch (UnsupportedEncodingException e) {
+                VpnStatus.logException(e);
+                return;
+            }
+
+            final int N = callbacks.beginBroadcast();
+            for (int i = 0; i < N; i++) {
+                try {
+                    IStatusCallbacks broadcastItem = callbacks.getBroadcastItem(i);
+                    for (byte[] logBatch : logBatches)
+                        broadcastItem.newLogItems(logBatch);
+                    broadcastItem.updateBatch(batch);
+                } catch (RemoteException e) {
+                    // The RemoteCallbackList will take care of removing
+                    // the dead object for us.
+                }
+            }
+            callbacks.finishBroadcast();
+        }
     }
 
     private static void sendUpdate(IStatusCallbacks broadcastItem,
@@ -16,11 +16,8 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
-import java.text.SimpleDateFormat;
 import java.util.Collections;
-import java.util.Date;
 import java.util.LinkedList;
-import java.util.Locale;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
@@ -98,11 +95,7 @@ public class OpenVPNThread implements Runnable {
             if (mDumpPath != null) {
                 try {
                     BufferedWriter logout = new BufferedWriter(new FileWriter(mDumpPath + ".log"));
-                    SimpleDateFormat timeformat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.GERMAN);
-                    for (LogItem li : VpnStatus.getlogbuffer()) {
-                        String time = timeformat.format(new Date(li.getLogtime()));
-                        logout.write(time + " " + li.getString(mService) + "\n");
-                    }
+                    new LogExporter(mService).write(VpnStatus.iterateLog(), logout);
                     logout.close();
                     VpnStatus.logError(R.string.minidump_generated);
                 } catch (IOException e) {
@@ -35,9 +35,11 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
     private static final Vector<OpenVpnManagementThread> active = new Vector<>();
     private final Handler mResumeHandler;
     private LocalSocket mSocket;
+    private volatile ManagementCommandWriter mCommandWriter;
     private VpnProfile mProfile;
     private OpenVPNService mOpenVPNService;
     private LinkedList<FileDescriptor> mFDList = new LinkedList<>();
+    private final ManagementMessage mMessage = new ManagementMessage();
     private LocalServerSocket mServerSocket;
     private boolean mWaitingForRelease = false;
     private long mLastHoldRelease = 0;
@@ -51,6 +53,12 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
             releaseHoldCmd();
         }
     };
+    /* Releases a hold that came too soon after the last release */
+    private final Runnable mDelayedReleaseRunnable = () -> {
+        if (mWaitingForRelease && shouldBeRunning()) {
+            releaseHoldNow();
+        }
+    };
     private final Runnable orbotStatusTimeOutRunnable = new Runnable() {
         @Override
         public void run() {
@@ -103,40 +111,45 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
             boolean sendCMD = false;
             for (OpenVpnManagementThread mt : active) {
                 sendCMD = mt.managmentCommand("signal SIGINT\n");
-                try {
-                    if (mt.mSocket != null)
-                        mt.mSocket.close();
-                } catch (IOException e) {
-                    // Ignore close error on already closed socket
+                ManagementCommandWriter writer = mt.mCommandWriter;
+                if (writer != null) {
+                    /* Make sure the signal is written before closing the socket */
+                    writer.closeWhenDrained();
+                } else {
+                    try {
+                        if (mt.mSocket != null)
+                            mt.mSocket.close();
+                    } catch (IOException e) {
+                        // Ignore close error on already closed socket
+                    }
                 }
             }
             return sendCMD;
         }
     }
 
+    /**
+     * Binds the management socket. This makes a single attempt and does not block, if the socket
+     * of the old process is still in use the caller schedules a retry.
+     *
+     * @return true if the socket is bound and listening
+     */
     public boolean openManagementInterface(@NonNull Context c) {
-        // Could take a while to open connection
-        int tries = 8;
-
         String socketName = (c.getCacheDir().getAbsolutePath() + "/" + "mgmtsocket");
         // The mServerSocketLocal is transferred to the LocalServerSocket, ignore warning
 
         mServerSocketLocal = new LocalSocket();
 
-        while (tries > 0 && !mServerSocketLocal.isBound()) {
+        try {
+            mServerSocketLocal.bind(new LocalSocketAddress(socketName,
+                    LocalSocketAddress.Namespace.FILESYSTEM));
+        } catch (IOException e) {
+            VpnStatus.logDebug("Could not bind management socket: " + e.getMessage());
             try {
-                mServerSocketLocal.bind(new LocalSocketAddress(socketName,
-                        LocalSocketAddress.Namespace.FILESYSTEM));
-            } catch (IOException e) {
-                // wait 300 ms before retrying
-                try {
-                    //noinspection BusyWait
-                    Thread.sleep(300);
-                } catch (InterruptedException ignored) {
-                }
-
+                mServerSocketLocal.close();
+            } catch (IOException ignored) {
             }
-            tries--;
+            return false;
         }
 
         try {
@@ -151,27 +164,37 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
 
     /**
      * @param cmd command to write to management socket
-     * @return true if command have been sent
+     * @return true if command has been queued for sending
      */
     public boolean managmentCommand(String cmd) {
-        try {
-            if (mSocket != null && mSocket.getOutputStream() != null) {
-                mSocket.getOutputStream().write(cmd.getBytes());
-                mSocket.getOutputStream().flush();
-                return true;
-            }
-        } catch (IOException e) {
-            // Ignore socket stack traces
+        return sendCommands(new ManagementCommand(cmd));
+    }
+
+    @Override
+    public CommandReply sendCommand(String cmd) {
+        ManagementCommand command = new ManagementCommand(cmd);
+        sendCommands(command);
+        return command;
+    }
+
+    /**
+     * Queues commands that are written to the management socket together
+     */
+    private boolean sendCommands(ManagementCommand... cmds) {
+        ManagementCommandWriter writer = mCommandWriter;
+        if (writer == null) {
+            for (ManagementCommand cmd : cmds)
+                cmd.fail(new IOException("Management interface not connected"));
+            return false;
         }
-        return false;
+        return writer.submit(cmds);
     }
 
     @Override
     public void run() {
-        byte[] buffer = new byte[2048];
+        ManagementLineReader reader = new ManagementLineReader(this::processLine);
         //	mSocket.setSoTimeout(5); // Setting a timeout cannot be that bad
 
-        String pendingInput = "";
         synchronized (active) {
             active.add(this);
         }
@@ -181,6 +204,9 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
             mSocket = mServerSocket.accept();
             InputStream instream = mSocket.getInputStream();
 
+            mCommandWriter = new ManagementCommandWriter(mSocket.getOutputStream(), mSocket);
+            mCommandWriter.start();
+
 
             // Close the management socket after client connected
             try {
@@ -195,7 +221,7 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
 
             while (true) {
 
-                int numbytesread = instream.read(buffer);
+                int numbytesread = reader.readFrom(instream);
                 if (numbytesread == -1)
                     return;
 
@@ -209,15 +235,14 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
                     Collections.addAll(mFDList, fds);
                 }
 
-                String input = new String(buffer, 0, numbytesread, "UTF-8");
-
-                pendingInput += input;
-
-                pendingInput = processInput(pendingInput);
+                reader.dispatchLines();
             }
         } catch (IOException e) {
             if (!e.getMessage().equals("socket closed") && !e.getMessage().equals("Connection reset by peer"))
                 VpnStatus.logException(e);
+        } finally {
+            if (mCommandWriter != null)
+                mCommandWriter.stop();
         }
         synchronized (active) {
             active.remove(this);
@@ -255,76 +280,71 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
         }
     }
 
-    private String processInput(String pendingInput) {
-
-
-        while (pendingInput.contains("\n")) {
-            String[] tokens = pendingInput.split("\\r?\\n", 2);
-            processCommand(tokens[0]);
-            if (tokens.length == 1)
-                // No second part, newline was at the end
-                pendingInput = "";
-            else
-                pendingInput = tokens[1];
-        }
-        return pendingInput;
+    private void processLine(ManagementLine line) {
+        processCommand(mMessage, mMessage.parse(line));
     }
 
-    private void processCommand(String command) {
-        //Log.i(TAG, "Line from managment" + command);
-
-        if (command.startsWith(">") && command.contains(":")) {
-            String[] parts = command.split(":", 2);
-            String cmd = parts[0].substring(1);
-            String argument = parts[1];
+    private void processCommand(ManagementMessage message, ManagementMessage.Type type) {
+        //Log.i(TAG, "Line from managment" + message.getLine());
 
-            switch (cmd) {
-                case "INFO":
+        /* Only turn the argument into a String for the commands that need it */
+        switch (type) {
+            case INFO:
                 /* Ignore greeting from management */
-                    return;
-                case "PASSWORD":
-                    processPWCommand(argument);
-                    break;
-                case "HOLD":
-                    handleHold(argument);
-                    break;
-                case "NEED-OK":
-                    processNeedCommand(argument);
-                    break;
-                case "BYTECOUNT":
-                    processByteCount(argument);
-                    break;
-                case "STATE":
-                    if (!mShuttingDown)
-                        processState(argument);
-                    break;
-                case "PROXY":
-                    processProxyCMD(argument);
-                    break;
-                case "LOG":
-                    processLogMessage(argument);
-                    break;
-                case "PK_SIGN":
-                    processSignCommand(argument);
-                    break;
-                case "INFOMSG":
-                    processInfoMessage(argument);
-                    break;
-                default:
-                    VpnStatus.logWarning("MGMT: Got unrecognized command" + command);
-                    Log.i(TAG, "Got unrecognized command" + command);
+                return;
+            case PASSWORD:
+                processPWCommand(message.getArgument());
+                break;
+            case HOLD:
+                handleHold(message);
+                break;
+            case NEED_OK:
+                processNeedCommand(message.getArgument());
+                break;
+            case BYTECOUNT:
+                processByteCount(message);
+                break;
+            case STATE:
+                if (!mShuttingDown)
+                    processState(message);
+                break;
+            case PROXY:
+                processProxyCMD(message);
+                break;
+            case LOG:
+                processLogMessage(message);
+                break;
+            case PK_SIGN:
+                processSignCommand(message.getArgument());
+                break;
+            case INFOMSG:
+                processInfoMessage(message.getArgument());
+                break;
+            case SUCCESS:
+                mCommandWriter.onReply(type, message.getLine().toString());
+                break;
+            case ERROR:
+                mCommandWriter.onReply(type, message.getLine().toString());
+                VpnStatus.logWarning("MGMT: " + message.getLine());
+                break;
+            case PROTECTFD:
+                FileDescriptor fdtoprotect = mFDList.pollFirst();
+                if (fdtoprotect != null)
+                    protectFileDescriptor(fdtoprotect);
+                mCommandWriter.onReply(type, message.getLine().toString());
+                break;
+            case UNKNOWN_NOTIFICATION:
+                VpnStatus.logWarning("MGMT: Got unrecognized command" + message.getLine());
+                Log.i(TAG, "Got unrecognized command" + message.getLine());
+                break;
+            default:
+                String line = message.getLine().toString();
+                /* Part of a multi line reply like the output of status */
+                if (mCommandWriter.onReply(type, line))
                     break;
-            }
-        } else if (command.startsWith("SUCCESS:")) {
-            /* Ignore this kind of message too */
-            return;
-        } else if (command.startsWith("PROTECTFD: ")) {
-            FileDescriptor fdtoprotect = mFDList.pollFirst();
-            if (fdtoprotect != null)
-                protectFileDescriptor(fdtoprotect);
-        } else {
-            Log.i(TAG, "Got unrecognized line from managment" + command);
-            VpnStatus.logWarning("MGMT: Got unrecognized line from management:" + command);
+                Log.i(TAG, "Got unrecognized line from managment" + line);
+                VpnStatus.logWarning("MGMT: Got unrecognized line from management:" + line);
+                break;
         }
     }
 
@@ -341,8 +361,7 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
         }
     }
 
-    private void processLogMessage(String argument) {
-        String[] args = argument.split(",", 4);
+    private void processLogMessage(ManagementMessage message) {
         // 0 unix time stamp
         // 1 log level N,I,E etc.
                 /*
@@ -355,29 +374,25 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
                  */
         // 2 log message
 
-        Log.d("OpenVPN", argument);
+        Log.d("OpenVPN", message.getArgument());
 
-        VpnStatus.LogLevel level;
-        switch (args[1]) {
-            case "I":
-                level = VpnStatus.LogLevel.INFO;
-                break;
-            case "W":
-                level = VpnStatus.LogLevel.WARNING;
-                break;
-            case "D":
-                level = VpnStatus.LogLevel.VERBOSE;
-                break;
-            case "F":
-                level = VpnStatus.LogLevel.ERROR;
-                break;
-            default:
-                level = VpnStatus.LogLevel.INFO;
-                break;
+        VpnStatus.LogLevel level = VpnStatus.LogLevel.INFO;
+        if (message.getFieldLength(1) == 1) {
+            switch (message.getFieldChar(1, 0)) {
+                case 'W':
+                    level = VpnStatus.LogLevel.WARNING;
+                    break;
+                case 'D':
+                    level = VpnStatus.LogLevel.VERBOSE;
+                    break;
+                case 'F':
+                    level = VpnStatus.LogLevel.ERROR;
+                    break;
+            }
         }
 
-        int ovpnlevel = Integer.parseInt(args[2]) & 0x0F;
-        String msg = args[3];
+        int ovpnlevel = message.getFieldInt(2) & 0x0F;
+        String msg = message.getField(3);
 
         if (msg.startsWith("MANAGEMENT: CMD"))
             ovpnlevel = Math.max(4, ovpnlevel);
@@ -392,9 +407,13 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
             return mPauseCallback.shouldBeRunning();
     }
 
-    private void handleHold(String argument) {
+    private void handleHold(ManagementMessage message) {
+        //   >HOLD:Waiting for hold release:{waittime}
         mWaitingForRelease = true;
-        int waittime = Integer.parseInt(argument.split(":")[1]);
+        ManagementLine line = message.getLine();
+        int start = line.indexOf(':', message.getArgumentStart()) + 1;
+        int end = line.indexOf(':', start);
+        int waittime = line.parseInt(start, end == -1 ? line.length() : end);
         if (shouldBeRunning()) {
             if (waittime > 1)
                 VpnStatus.updateStateString("CONNECTRETRY", String.valueOf(waittime),
@@ -412,18 +431,22 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
 
     private void releaseHoldCmd() {
         mResumeHandler.removeCallbacks(mResumeHoldRunnable);
+        mResumeHandler.removeCallbacks(mDelayedReleaseRunnable);
         if ((System.currentTimeMillis() - mLastHoldRelease) < 5000) {
-            try {
-                Thread.sleep(3000);
-            } catch (InterruptedException ignored) {
-            }
-
+            /* Do not release the hold again right away, OpenVPN would spin on a failing connection */
+            mResumeHandler.postDelayed(mDelayedReleaseRunnable, 3000);
+            return;
         }
+        releaseHoldNow();
+    }
+
+    private void releaseHoldNow() {
+        mResumeHandler.removeCallbacks(mDelayedReleaseRunnable);
         mWaitingForRelease = false;
         mLastHoldRelease = System.currentTimeMillis();
-        managmentCommand("hold release\n");
-        managmentCommand("bytecount " + mBytecountInterval + "\n");
-        managmentCommand("state on\n");
+        sendCommands(new ManagementCommand("hold release\n"),
+                new ManagementCommand("bytecount " + mBytecountInterval + "\n"),
+                new ManagementCommand("state on\n"));
         //managmentCommand("log on all\n");
     }
 
@@ -432,12 +455,10 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
             releaseHoldCmd();
     }
 
-    private void processProxyCMD(String argument) {
-        String[] args = argument.split(",", 3);
-
+    private void processProxyCMD(ManagementMessage message) {
         Connection.ProxyType proxyType = Connection.ProxyType.NONE;
 
-        int connectionEntryNumber = Integer.parseInt(args[0]) - 1;
+        int connectionEntryNumber = message.getFieldInt(0) - 1;
         String proxyport = null;
         String proxyname = null;
         boolean proxyUseAuth = false;
@@ -468,9 +489,8 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
             }
         }
 
-        if (args.length >= 2 && proxyType == Connection.ProxyType.HTTP) {
-            String proto = args[1];
-            if (proto.equals("UDP")) {
+        if (message.getFieldCount() >= 2 && proxyType == Connection.ProxyType.HTTP) {
+            if (message.fieldEquals(1, "UDP")) {
                 proxyname = null;
                 VpnStatus.logInfo("Not using an HTTP proxy since the connection uses UDP");
             }
@@ -507,21 +527,19 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
         }
     }
 
-    private void processState(String argument) {
-        String[] args = argument.split(",", 3);
-        String currentstate = args[1];
+    private void processState(ManagementMessage message) {
+        String currentstate = message.getField(1);
 
-        if (args[2].equals(",,"))
+        if (message.fieldEquals(2, ",,"))
             VpnStatus.updateStateString(currentstate, "");
         else
-            VpnStatus.updateStateString(currentstate, args[2]);
+            VpnStatus.updateStateString(currentstate, message.getField(2));
     }
 
-    private void processByteCount(String argument) {
+    private void processByteCount(ManagementMessage message) {
         //   >BYTECOUNT:{BYTES_IN},{BYTES_OUT}
-        int comma = argument.indexOf(',');
-        long in = Long.parseLong(argument.substring(0, comma));
-        long out = Long.parseLong(argument.substring(comma + 1));
+        long in = message.getFieldLong(0);
+        long out = message.getFieldLong(1);
 
         VpnStatus.updateByteCount(in, out);
 
@@ -630,24 +648,13 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
 
             FileDescriptor[] fds = {fdtosend};
 
-            // Trigger a send so we can close the fd on our side of the channel
-            // The API documentation fails to mention that it will not reset the file descriptor to
-            // be send and will happily send the file descriptor on every write ...
-            mSocket.setFileDescriptorsForSend(fds);
-
-            managmentCommand(cmd);
-
-            // Set the FileDescriptor to null to stop this mad behavior
-            mSocket.setFileDescriptorsForSend(null);
-            pfd.close();
-
-
-        } catch (InvocationTargetException | NoSuchMethodException | IllegalAccessException |
-                 IOException exp) {
+            // The writer sends the fds with the command and closes the fd on our side of the
+            // channel afterwards
+            return sendCommands(new ManagementCommand(cmd, fds, pfd));
+        } catch (InvocationTargetException | NoSuchMethodException | IllegalAccessException exp) {
             VpnStatus.logException("Could not send fd over socket", exp);
             return false;
         }
-        return true;
     }
 
     private boolean sendTunFD(String needed, String extra) {
@@ -747,6 +754,7 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
 
     public void signalusr1() {
         mResumeHandler.removeCallbacks(mResumeHoldRunnable);
+        mResumeHandler.removeCallbacks(mDelayedReleaseRunnable);
         if (!mWaitingForRelease)
             managmentCommand("signal SIGUSR1\n");
         else
@@ -788,15 +796,13 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
 
         String signed_string = mProfile.getSignedData(mOpenVPNService, arguments[0], padding, saltlen, hashalg, needsDigest);
 
+        /* The signature is sent as one command so that it gets only one reply */
         if (signed_string == null) {
-            managmentCommand("pk-sig\n");
-            managmentCommand("\nEND\n");
+            managmentCommand("pk-sig\n\nEND\n");
             stopOpenVPN();
             return;
         }
-        managmentCommand("pk-sig\n");
-        managmentCommand(signed_string);
-        managmentCommand("\nEND\n");
+        managmentCommand("pk-sig\n" + signed_string + "\nEND\n");
     }
 
     @Override
@@ -814,6 +820,7 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
 
     @Override
     public boolean stopVPN(boolean replaceConnection) {
+        mResumeHandler.removeCallbacks(mDelayedReleaseRunnable);
         boolean stopSucceed = stopOpenVPN();
         if (stopSucceed) {
             mShuttingDown = true;
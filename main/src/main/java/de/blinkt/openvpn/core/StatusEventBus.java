@@ -0,0 +1,597 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.content.Intent;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delivers the log, state and byte count events of {@link VpnStatus} to the listeners.
+ * <p>
+ * Publishing an event never calls a listener directly. Every listener has its own subscription
+ * that stores the pending events and is run on the executor of the listener, so a slow listener
+ * only delays itself and never the thread that produced the event (usually the management
+ * thread). A subscription is never run on two threads at the same time, so a listener sees the
+ * events in order even with a multi threaded executor.
+ * <p>
+ * The subscriptions do not queue every event:
+ * <ul>
+ * <li>State: only the latest state is delivered.</li>
+ * <li>Byte count: only the latest total is delivered, the diffs of skipped updates are added up.</li>
+ * <li>Log: up to a fixed number of items and restore events are queued, if the listener falls
+ * further behind the oldest ones are dropped.</li>
+ * </ul>
+ * Publishing a byte count does not allocate as long as the executor does not allocate, which
+ * is true for {@link EventDispatcher}.
+ */
+public class StatusEventBus {
+    static final int DEFAULT_LOG_QUEUE_SIZE = 1000;
+
+    private final Executor mDefaultExecutor;
+
+    /* Copy on write arrays, iterated by index to avoid allocating an iterator */
+    private volatile LogSubscription[] mLogSubscriptions = new LogSubscription[0];
+    private volatile StateSubscription[] mStateSubscriptions = new StateSubscription[0];
+    private volatile ByteCountSubscription[] mByteCountSubscriptions = new ByteCountSubscription[0];
+
+    StatusEventBus(Executor defaultExecutor) {
+        mDefaultExecutor = defaultExecutor;
+    }
+
+    Executor getDefaultExecutor() {
+        return mDefaultExecutor;
+    }
+
+    synchronized LogSubscription subscribe(VpnStatus.LogListener listener, Executor executor, int queueSize) {
+        LogSubscription subscription = new LogSubscription(listener, executor, queueSize);
+        mLogSubscriptions = append(mLogSubscriptions, subscription);
+        return subscription;
+    }
+
+    synchronized StateSubscription subscribe(VpnStatus.StateListener listener, Executor executor) {
+        StateSubscription subscription = new StateSubscription(listener, executor);
+        mStateSubscriptions = append(mStateSubscriptions, subscription);
+        return subscription;
+    }
+
+    synchronized ByteCountSubscription subscribe(VpnStatus.ByteCountListener listener, Executor executor) {
+        ByteCountSubscription subscription = new ByteCountSubscription(listener, executor);
+        mByteCountSubscriptions = append(mByteCountSubscriptions, subscription);
+        return subscription;
+    }
+
+    /* One object can be a log, state and byte count listener, so check only the subscriptions
+     * of one kind */
+    synchronized boolean isSubscribed(VpnStatus.LogListener listener) {
+        return contains(mLogSubscriptions, listener);
+    }
+
+    synchronized boolean isSubscribed(VpnStatus.StateListener listener) {
+        return contains(mStateSubscriptions, listener);
+    }
+
+    synchronized boolean isSubscribed(VpnStatus.ByteCountListener listener) {
+        return contains(mByteCountSubscriptions, listener);
+    }
+
+    private static boolean contains(Subscription<?>[] subscriptions, Object listener) {
+        for (Subscription<?> subscription : subscriptions) {
+            if (subscription.listener == listener)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes the first subscription of the listener. Events that are still queued for it are
+     * discarded.
+     */
+    synchronized void unsubscribe(VpnStatus.LogListener listener) {
+        mLogSubscriptions = remove(mLogSubscriptions, listener);
+    }
+
+    synchronized void unsubscribe(VpnStatus.StateListener listener) {
+        mStateSubscriptions = remove(mStateSubscriptions, listener);
+    }
+
+    synchronized void unsubscribe(VpnStatus.ByteCountListener listener) {
+        mByteCountSubscriptions = remove(mByteCountSubscriptions, listener);
+    }
+
+    void publishLog(LogItem item) {
+        LogSubscription[] subscriptions = mLogSubscriptions;
+        for (int i = 0; i < subscriptions.length; i++)
+            subscriptions[i].publish(item);
+    }
+
+    void publishLogRestored(int count) {
+        LogSubscription[] subscriptions = mLogSubscriptions;
+        for (int i = 0; i < subscriptions.length; i++)
+            subscriptions[i].publishRestored(count);
+    }
+
+    void publishState(String state, String msg, int resid, ConnectionStatus level, Intent intent) {
+        StateSubscription[] subscriptions = mStateSubscriptions;
+        for (int i = 0; i < subscriptions.length; i++)
+            subscriptions[i].publishState(state, msg, resid, level, intent);
+    }
+
+    void publishConnectedVPN(String uuid) {
+        StateSubscription[] subscriptions = mStateSubscriptions;
+        for (int i = 0; i < subscriptions.length; i++)
+            subscriptions[i].publishConnectedVPN(uuid);
+    }
+
+    void publishByteCount(long in, long out, long diffIn, long diffOut) {
+        ByteCountSubscription[] subscriptions = mByteCountSubscriptions;
+        for (int i = 0; i < subscriptions.length; i++)
+            subscriptions[i].publish(in, out, diffIn, diffOut);
+    }
+
+    /**
+     * @return queue depth and drop counters of all listeners
+     */
+    synchronized List<ListenerStats> getStats() {
+        List<ListenerStats> stats = new ArrayList<>();
+        for (Subscription<?> subscription : allSubscriptions())
+            stats.add(subscription.getStats());
+        return stats;
+    }
+
+    private List<Subscription<?>> allSubscriptions() {
+        List<Subscription<?>> subscriptions = new ArrayList<>();
+        subscriptions.addAll(Arrays.asList(mLogSubscriptions));
+        subscriptions.addAll(Arrays.asList(mStateSubscriptions));
+        subscriptions.addAll(Arrays.asList(mByteCountSubscriptions));
+        return subscriptions;
+    }
+
+    private static <T extends Subscription<?>> T[] append(T[] subscriptions, T subscription) {
+        T[] result = Arrays.copyOf(subscriptions, subscriptions.length + 1);
+        result[subscriptions.length] = subscription;
+        return result;
+    }
+
+    private static <T extends Subscription<?>> T[] remove(T[] subscriptions, Object listener) {
+        for (int i = 0; i < subscriptions.length; i++) {
+            if (subscriptions[i].listener == listener) {
+                subscriptions[i].close();
+                T[] result = Arrays.copyOf(subscriptions, subscriptions.length - 1);
+                System.arraycopy(subscriptions, i + 1, result, i, result.length - i);
+                return result;
+            }
+        }
+        return subscriptions;
+    }
+
+    /**
+     * Pending events of one listener
+     */
+    abstract static class Subscription<L> implements Runnable {
+        final L listener;
+        private final Executor mExecutor;
+        /* Number of signals since the subscription was last run, the subscription is only
+         * submitted to the executor when this goes from 0 to 1 */
+        private final AtomicInteger mSignals = new AtomicInteger();
+        private volatile boolean mClosed;
+
+        /* Updated while holding the subscription lock */
+        long mDelivered;
+        long mDropped;
+        long mCoalesced;
+
+        Subscription(L listener, Executor executor) {
+            this.listener = listener;
+            mExecutor = executor;
+        }
+
+        final void signal() {
+            if (mSignals.getAndIncrement() != 0)
+                return;
+            try {
+                mExecutor.execute(this);
+            } catch (RejectedExecutionException e) {
+                /* The executor has been shut down, the events stay queued for the next signal */
+                mSignals.set(0);
+            }
+        }
+
+        @Override
+        public final void run() {
+            int signals = mSignals.get();
+            do {
+                if (mClosed) {
+                    discard();
+                } else {
+                    try {
+                        deliver();
+                    } catch (RuntimeException e) {
+                        /* Keep the subscription usable, the next signal delivers the rest */
+                        e.printStackTrace();
+                    }
+                }
+            } while ((signals = mSignals.addAndGet(-signals)) != 0);
+        }
+
+        void close() {
+            mClosed = true;
+            signal();
+        }
+
+        boolean isClosed() {
+            return mClosed;
+        }
+
+        /**
+         * Calls the listener with all pending events. Must not hold the subscription lock while
+         * calling the listener.
+         */
+        abstract void deliver();
+
+        abstract void discard();
+
+        abstract String getEventType();
+
+        abstract int getQueueDepth();
+
+        synchronized ListenerStats getStats() {
+            return new ListenerStats(listener.getClass().getName(), getEventType(), getQueueDepth(),
+                    mDelivered, mDropped, mCoalesced);
+        }
+    }
+
+    static class LogSubscription extends Subscription<VpnStatus.LogListener> {
+        /* Log items and the counts of restore events as Integer */
+        private final ArrayDeque<Object> mQueue;
+        private final int mQueueSize;
+
+        LogSubscription(VpnStatus.LogListener listener, Executor executor, int queueSize) {
+            super(listener, executor);
+            mQueue = new ArrayDeque<>(queueSize);
+            mQueueSize = queueSize;
+        }
+
+        void publish(LogItem item) {
+            enqueue(item);
+        }
+
+        void publishRestored(int count) {
+            enqueue(count);
+        }
+
+        private void enqueue(Object event) {
+            synchronized (this) {
+                if (mQueue.size() >= mQueueSize) {
+                    mQueue.pollFirst();
+                    mDropped++;
+                }
+                mQueue.addLast(event);
+            }
+            signal();
+        }
+
+        @Override
+        void deliver() {
+            while (true) {
+                Object event;
+                synchronized (this) {
+                    event = mQueue.pollFirst();
+                    if (event == null)
+                        return;
+                    mDelivered++;
+                }
+                if (event instanceof LogItem)
+                    listener.newLog((LogItem) event);
+                else
+                    listener.logRestored((Integer) event);
+            }
+        }
+
+        @Override
+        synchronized void discard() {
+            mQueue.clear();
+        }
+
+        @Override
+        String getEventType() {
+            return "log";
+        }
+
+        @Override
+        synchronized int getQueueDepth() {
+            return mQueue.size();
+        }
+    }
+
+    static class StateSubscription extends Subscription<VpnStatus.StateListener> {
+        private boolean mStatePending;
+        private String mState;
+        private String mMsg;
+        private int mResid;
+        private ConnectionStatus mLevel;
+        private Intent mIntent;
+
+        private boolean mConnectedVPNPending;
+        private String mConnectedVPN;
+
+        StateSubscription(VpnStatus.StateListener listener, Executor executor) {
+            super(listener, executor);
+        }
+
+        void publishState(String state, String msg, int resid, ConnectionStatus level, Intent intent) {
+            synchronized (this) {
+                if (mStatePending)
+                    mCoalesced++;
+                mStatePending = true;
+                mState = state;
+                mMsg = msg;
+                mResid = resid;
+                mLevel = level;
+                mIntent = intent;
+            }
+            signal();
+        }
+
+        void publishConnectedVPN(String uuid) {
+            synchronized (this) {
+                if (mConnectedVPNPending)
+                    mCoalesced++;
+                mConnectedVPNPending = true;
+                mConnectedVPN = uuid;
+            }
+            signal();
+        }
+
+        @Override
+        void deliver() {
+            String uuid = null;
+            boolean connectedVPNPending;
+            boolean statePending;
+            String state, msg;
+            int resid;
+            ConnectionStatus level;
+            Intent intent;
+            synchronized (this) {
+                connectedVPNPending = mConnectedVPNPending;
+                if (connectedVPNPending) {
+                    uuid = mConnectedVPN;
+                    mConnectedVPNPending = false;
+                    mConnectedVPN = null;
+                    mDelivered++;
+                }
+                statePending = mStatePending;
+                state = mState;
+                msg = mMsg;
+                resid = mResid;
+                level = mLevel;
+                intent = mIntent;
+                if (statePending) {
+                    mStatePending = false;
+                    mIntent = null;
+                    mDelivered++;
+                }
+            }
+            if (connectedVPNPending)
+                listener.setConnectedVPN(uuid);
+            if (statePending)
+                listener.updateState(state, msg, resid, level, intent);
+        }
+
+        @Override
+        synchronized void discard() {
+            mStatePending = false;
+            mConnectedVPNPending = false;
+            mIntent = null;
+        }
+
+        @Override
+        String getEventType() {
+            return "state";
+        }
+
+        @Override
+        synchronized int getQueueDepth() {
+            return (mStatePending ? 1 : 0) + (mConnectedVPNPending ? 1 : 0);
+        }
+    }
+
+    static class ByteCountSubscription extends Subscription<VpnStatus.ByteCountListener> {
+        private boolean mPending;
+        private long mIn;
+        private long mOut;
+        private long mDiffIn;
+        private long mDiffOut;
+
+        ByteCountSubscription(VpnStatus.ByteCountListener listener, Executor executor) {
+            super(listener, executor);
+        }
+
+        void publish(long in, long out, long diffIn, long diffOut) {
+            synchronized (this) {
+                if (mPending) {
+                    mCoalesced++;
+                    mDiffIn += diffIn;
+                    mDiffOut += diffOut;
+                } else {
+                    mPending = true;
+                    mDiffIn = diffIn;
+                    mDiffOut = diffOut;
+                }
+                mIn = in;
+                mOut = out;
+            }
+            signal();
+        }
+
+        @Override
+        void deliver() {
+            long in, out, diffIn, diffOut;
+            synchronized (this) {
+                if (!mPending)
+                    return;
+                mPending = false;
+                mDelivered++;
+                in = mIn;
+                out = mOut;
+                diffIn = mDiffIn;
+                diffOut = mDiffOut;
+            }
+            listener.updateByteCount(in, out, diffIn, diffOut);
+        }
+
+        @Override
+        synchronized void discard() {
+            mPending = false;
+        }
+
+        @Override
+        String getEventType() {
+            return "bytecount";
+        }
+
+        @Override
+        synchronized int getQueueDepth() {
+            return mPending ? 1 : 0;
+        }
+    }
+
+    /**
+     * Queue depth and drop counters of a listener at one point in time
+     */
+    public static class ListenerStats {
+        private final String mListener;
+        private final String mEventType;
+        private final int mQueueDepth;
+        private final long mDelivered;
+        private final long mDropped;
+        private final long mCoalesced;
+
+        ListenerStats(String listener, String eventType, int queueDepth, long delivered, long dropped, long coalesced) {
+            mListener = listener;
+            mEventType = eventType;
+            mQueueDepth = queueDepth;
+            mDelivered = delivered;
+            mDropped = dropped;
+            mCoalesced = coalesced;
+        }
+
+        /**
+         * @return class name of the listener
+         */
+        public String getListener() {
+            return mListener;
+        }
+
+        /**
+         * @return "log", "state" or "bytecount"
+         */
+        public String getEventType() {
+            return mEventType;
+        }
+
+        public int getQueueDepth() {
+            return mQueueDepth;
+        }
+
+        public long getDelivered() {
+            return mDelivered;
+        }
+
+        /**
+         * @return number of log items that were dropped because the listener fell behind
+         */
+        public long getDropped() {
+            return mDropped;
+        }
+
+        /**
+         * @return number of state and byte count updates that were replaced by a newer one
+         *         before the listener got them
+         */
+        public long getCoalesced() {
+            return mCoalesced;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return mListener + " (" + mEventType + "): queued=" + mQueueDepth + " delivered=" + mDelivered
+                    + " dropped=" + mDropped + " coalesced=" + mCoalesced;
+        }
+    }
+
+    /**
+     * Runs subscriptions on a single thread. Submitting does not allocate: a subscription is
+     * only submitted when it is not already waiting, so the queue never holds more entries than
+     * there are subscriptions.
+     */
+    static class EventDispatcher implements Executor, Runnable {
+        private final ArrayDeque<Runnable> mQueue = new ArrayDeque<>();
+        private final String mName;
+        private Thread mThread;
+        private boolean mQuit;
+
+        EventDispatcher(String name) {
+            mName = name;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            synchronized (mQueue) {
+                if (mQuit)
+                    throw new RejectedExecutionException(mName + " has been stopped");
+                if (mThread == null) {
+                    mThread = new Thread(this, mName);
+                    mThread.setDaemon(true);
+                    mThread.start();
+                }
+                mQueue.addLast(command);
+                mQueue.notify();
+            }
+        }
+
+        void quit() {
+            synchronized (mQueue) {
+                mQuit = true;
+                mQueue.clear();
+                mQueue.notify();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable command;
+                synchronized (mQueue) {
+                    while (mQueue.isEmpty() && !mQuit) {
+                        try {
+                            mQueue.wait();
+                        } catch (InterruptedException ignored) {
+                        }
+                    }
+                    if (mQuit)
+                        return;
+                    command = mQueue.pollFirst();
+                }
+                try {
+                    command.run();
+                } catch (RuntimeException e) {
+                    /* A broken listener must not stop the delivery to the other listeners */
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -22,9 +22,10 @@ import androidx.annotation.RequiresApi;
 import de.blinkt.openvpn.BuildConfig;
 import de.blinkt.openvpn.core.VpnStatus.LogLevel;
 
-import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.util.List;
 import java.util.Locale;
 
@@ -33,10 +34,15 @@ import java.util.Locale;
  */
 
 public class StatusListener implements VpnStatus.LogListener, VpnStatus.ProfileNotifyListener {
+    /* Items logged while the log is being copied through the pipe also arrive as callbacks.
+     * Callback items up to this log time are checked for duplicates, Long.MAX_VALUE while the
+     * pipe is read. */
+    private volatile long mUniqueUpTo = Long.MIN_VALUE;
+
     private final IStatusCallbacks mCallback = new IStatusCallbacks.Stub() {
         @Override
         public void newLogItem(LogItem item) throws RemoteException {
-            VpnStatus.newLogItem(item);
+            VpnStatus.newLogItem(item, false, item.getLogtime() <= mUniqueUpTo);
         }
 
         @Override
@@ -72,7 +78,24 @@ public class StatusListener implements VpnStatus.LogListener, VpnStatus.ProfileN
             ProfileManager.notifyProfileVersionChanged(mContext, uuid, version);
 
         }
+
+        @Override
+        public void updateBatch(StatusUpdateBatch batch) throws RemoteException {
+            batch.applyTo(reCreateIntent(batch.getIntent()), mUniqueUpTo);
+        }
+
+        @Override
+        public void newLogItems(byte[] logItems) throws RemoteException {
+            try {
+                long uniqueUpTo = mUniqueUpTo;
+                for (LogItem item : LogItemBatch.decode(logItems))
+                    VpnStatus.newLogItem(item, false, item.getLogtime() <= uniqueUpTo);
+            } catch (UnsupportedEncodingException | RuntimeException e) {
+                VpnStatus.logException("Decoding log items", e);
+            }
+        }
     };
+    private static final int FETCH_LOG_ITEMS = 100;
     private File mCacheDir;
     private final StatusServiceConnection mConnection = new StatusServiceConnection();
 
@@ -88,20 +111,37 @@ public class StatusListener implements VpnStatus.LogListener, VpnStatus.ProfileN
                 if (service.queryLocalInterface("de.blinkt.openvpn.core.IServiceStatus") == null) {
                     // Not a local service
                     VpnStatus.setConnectedVPNProfile(serviceStatus.getLastConnectedVPN());
-                    VpnStatus.setTrafficHistory(serviceStatus.getTrafficHistory());
+                    /* Only the data points this process does not have yet */
+                    long lastTraffic = VpnStatus.trafficHistory.getLastTimestamp();
+                    VpnStatus.trafficHistory.addDelta(serviceStatus.getTrafficHistoryNewerThan(lastTraffic), lastTraffic);
+                    mUniqueUpTo = Long.MAX_VALUE;
                     ParcelFileDescriptor pfd = serviceStatus.registerStatusCallback(mCallback);
-                    DataInputStream fd = new DataInputStream(new ParcelFileDescriptor.AutoCloseInputStream(pfd));
+                    FileInputStream fd = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
 
                     /* notify the backend :openvpn process of chagnes in profiles */
                     VpnStatus.addProfileStateListener(StatusListener.this);
 
-                    short len = fd.readShort();
-                    byte[] buf = new byte[65336];
-                    while (len != 0x7fff) {
-                        fd.readFully(buf, 0, len);
-                        LogItem logitem = new LogItem(buf, len);
-                        VpnStatus.newLogItem(logitem, false);
-                        len = fd.readShort();
+                    long lastLogtime = 0;
+                    long newestLogtime = 0;
+                    LogTransfer.Reader reader = new LogTransfer.Reader(fd.getChannel());
+                    try {
+                        List<LogItem> items;
+                        while ((items = reader.readFrame()) != null) {
+                            for (LogItem logitem : items) {
+                                VpnStatus.newLogItemIfUnique(logitem);
+                                newestLogtime = Math.max(newestLogtime, logitem.getLogtime());
+                            }
+                            if (!items.isEmpty())
+                                lastLogtime = items.get(items.size() - 1).getLogtime();
+                        }
+                    } catch (IOException e) {
+                        /* The pipe broke, get the rest of the log in batches */
+                        newestLogtime = Math.max(newestLogtime, fetchLogItems(lastLogtime));
+                    } finally {
+                        reader.close();
+                        /* Callbacks can still bring items of the pipe a frame later, newer
+                         * items cannot be duplicates */
+                        mUniqueUpTo = newestLogtime;
                     }
                     fd.close();
                     pfd.close();
@@ -109,6 +149,7 @@ public class StatusListener implements VpnStatus.LogListener, VpnStatus.ProfileN
 
                 } else {
                     VpnStatus.initLogCache(mCacheDir);
+                    VpnStatus.initTrafficStore(new TrafficStore(mContext));
                     /* Set up logging to Logcat with a context) */
 
                     if (BuildConfig.DEBUG || BuildConfig.FLAVOR.equals("skeleton")) {
@@ -122,6 +163,26 @@ public class StatusListener implements VpnStatus.LogListener, VpnStatus.ProfileN
             }
         }
 
+        /**
+         * Gets the log items from fromLogtime on. Items with that log time that were already
+         * received from the pipe are skipped as duplicates.
+         *
+         * @return the newest log time of the items
+         */
+        private long fetchLogItems(long fromLogtime) throws RemoteException, UnsupportedEncodingException {
+            long[] cursor = {Long.MIN_VALUE};
+            long newestLogtime = fromLogtime;
+            while (true) {
+                List<LogItem> items = LogItemBatch.decode(serviceStatus.getLogItems(fromLogtime, cursor[0], FETCH_LOG_ITEMS, cursor));
+                if (items.isEmpty())
+                    return newestLogtime;
+                for (LogItem item : items) {
+                    VpnStatus.newLogItemIfUnique(item);
+                    newestLogtime = Math.max(newestLogtime, item.getLogtime());
+                }
+            }
+        }
+
         @Override
         public void onServiceDisconnected(ComponentName arg0) {
             serviceStatus = null;
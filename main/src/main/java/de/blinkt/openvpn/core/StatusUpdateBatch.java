@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.content.Intent;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The status updates of one frame that OpenVPNStatusService sends to a client in a single
+ * binder transaction: the log items of the frame and only the latest state, connected VPN,
+ * byte count and throughput statistics. The log items are sent as a {@link LogItemBatch}.
+ */
+public class StatusUpdateBatch implements Parcelable {
+    private final List<LogItem> mLogItems;
+    /* The batch is written once for every client, encode the log items only once */
+    private byte[] mEncodedLogItems;
+
+    private boolean mHasState;
+    private String mState;
+    private String mStateMessage;
+    private int mStateResId;
+    private ConnectionStatus mLevel;
+    private Intent mIntent;
+
+    private boolean mHasConnectedVPN;
+    private String mConnectedVPN;
+
+    private boolean mHasByteCount;
+    private long mBytesIn;
+    private long mBytesOut;
+    /* Only the process that runs OpenVPN watches for stalls, the UI process shows these stats */
+    private ThroughputStats.Snapshot mThroughput;
+
+    StatusUpdateBatch() {
+        mLogItems = new ArrayList<>();
+    }
+
+    void addLogItem(LogItem item) {
+        mLogItems.add(item);
+    }
+
+    void setState(String state, String msg, int resid, ConnectionStatus level, Intent intent) {
+        mHasState = true;
+        mState = state;
+        mStateMessage = msg;
+        mStateResId = resid;
+        mLevel = level;
+        mIntent = intent;
+    }
+
+    void setConnectedVPN(String uuid) {
+        mHasConnectedVPN = true;
+        mConnectedVPN = uuid;
+    }
+
+    void setByteCount(long in, long out, ThroughputStats.Snapshot throughput) {
+        mHasByteCount = true;
+        mBytesIn = in;
+        mBytesOut = out;
+        mThroughput = throughput;
+    }
+
+    boolean isEmpty() {
+        return mLogItems.isEmpty() && !mHasState && !mHasConnectedVPN && !mHasByteCount;
+    }
+
+    List<LogItem> getLogItems() {
+        return mLogItems;
+    }
+
+    /**
+     * Keeps only the newest maxLogItems log items in this batch so a single transaction does not
+     * get too large. The older items are returned as encoded {@link LogItemBatch}es of at most
+     * maxLogItems items each, to be sent before this batch.
+     */
+    List<byte[]> splitLogItems(int maxLogItems) throws UnsupportedEncodingException {
+        List<byte[]> batches = new ArrayList<>();
+        while (mLogItems.size() > maxLogItems) {
+            List<LogItem> oldest = mLogItems.subList(0, Math.min(maxLogItems, mLogItems.size() - maxLogItems));
+            batches.add(LogItemBatch.encode(oldest));
+            oldest.clear();
+        }
+        mEncodedLogItems = null;
+        return batches;
+    }
+
+    /**
+     * Applies the updates to {@link VpnStatus} of this process
+     *
+     * @param intent     the intent to use for the state, see StatusListener
+     * @param uniqueUpTo log items up to this log time are dropped if they are already in the
+     *                   log, they might have been received from the initial log transfer
+     */
+    void applyTo(Intent intent, long uniqueUpTo) {
+        if (mHasConnectedVPN)
+            VpnStatus.setConnectedVPNProfile(mConnectedVPN);
+        for (LogItem item : mLogItems)
+            VpnStatus.newLogItem(item, false, item.getLogtime() <= uniqueUpTo);
+        if (mHasState)
+            VpnStatus.updateStateString(mState, mStateMessage, mStateResId, mLevel, intent);
+        if (mHasByteCount) {
+            /* Before the byte count so its listeners already see the new stats */
+            VpnStatus.setRemoteThroughputStats(mThroughput);
+            VpnStatus.updateByteCount(mBytesIn, mBytesOut);
+        }
+    }
+
+    Intent getIntent() {
+        return mIntent;
+    }
+
+    protected StatusUpdateBatch(Parcel in) {
+        mLogItems = decodeLogItems(in.createByteArray());
+        mHasState = in.readInt() != 0;
+        if (mHasState) {
+            mState = in.readString();
+            mStateMessage = in.readString();
+            mStateResId = in.readInt();
+            mLevel = ConnectionStatus.CREATOR.createFromParcel(in);
+            mIntent = in.readParcelable(Intent.class.getClassLoader());
+        }
+        mHasConnectedVPN = in.readInt() != 0;
+        if (mHasConnectedVPN)
+            mConnectedVPN = in.readString();
+        mHasByteCount = in.readInt() != 0;
+        if (mHasByteCount) {
+            mBytesIn = in.readLong();
+            mBytesOut = in.readLong();
+            mThroughput = new ThroughputStats.Snapshot(in.createDoubleArray(), in.createDoubleArray(),
+                    in.readInt() != 0, in.readLong());
+        }
+    }
+
+    private static List<LogItem> decodeLogItems(byte[] encoded) {
+        try {
+            return LogItemBatch.decode(encoded);
+        } catch (UnsupportedEncodingException | RuntimeException e) {
+            /* Still apply the state and byte count */
+            VpnStatus.logException("Decoding log items", e);
+            return new ArrayList<>();
+        }
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        if (mEncodedLogItems == null) {
+            try {
+                mEncodedLogItems = LogItemBatch.encode(mLogItems);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        dest.writeByteArray(mEncodedLogItems);
+        dest.writeInt(mHasState ? 1 : 0);
+        if (mHasState) {
+            dest.writeString(mState);
+            dest.writeString(mStateMessage);
+            dest.writeInt(mStateResId);
+            mLevel.writeToParcel(dest, flags);
+            dest.writeParcelable(mIntent, flags);
+        }
+        dest.writeInt(mHasConnectedVPN ? 1 : 0);
+        if (mHasConnectedVPN)
+            dest.writeString(mConnectedVPN);
+        dest.writeInt(mHasByteCount ? 1 : 0);
+        if (mHasByteCount) {
+            dest.writeLong(mBytesIn);
+            dest.writeLong(mBytesOut);
+            dest.writeDoubleArray(mThroughput.getInValues());
+            dest.writeDoubleArray(mThroughput.getOutValues());
+            dest.writeInt(mThroughput.isStalled() ? 1 : 0);
+            dest.writeLong(mThroughput.getStalledFor());
+        }
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    public static final Creator<StatusUpdateBatch> CREATOR = new Creator<StatusUpdateBatch>() {
+        @Override
+        public StatusUpdateBatch createFromParcel(Parcel in) {
+            return new StatusUpdateBatch(in);
+        }
+
+        @Override
+        public StatusUpdateBatch[] newArray(int size) {
+            return new StatusUpdateBatch[size];
+        }
+    };
+}
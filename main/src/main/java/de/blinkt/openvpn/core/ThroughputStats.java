@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+/**
+ * Streaming statistics of the throughput of the tunnel, fed by the byte count updates.
+ * <p>
+ * For both directions it keeps an exponentially weighted rate, the jitter of the rate and the
+ * min, max, median and 95th percentile of the rate over the last window of
+ * {@link #WINDOW_MS}. The percentiles come from a histogram with logarithmic buckets, so memory
+ * is fixed and the error is below {@link RateSketch#GAMMA} - 1. It also detects a stalled tunnel:
+ * connected, but nothing received for {@link #STALL_TIMEOUT_MS}.
+ * <p>
+ * Updating does not allocate. Not thread safe, {@link VpnStatus} synchronizes.
+ */
+public class ThroughputStats {
+    static final long EWMA_TIME_CONSTANT_MS = 10 * 1000;
+    static final long WINDOW_MS = 60 * 1000;
+    static final long STALL_TIMEOUT_MS = 30 * 1000;
+
+    /* Results of update() */
+    static final int NO_CHANGE = 0;
+    static final int STALL_STARTED = 1;
+    static final int STALL_ENDED = 2;
+
+    private final Direction mIn = new Direction();
+    private final Direction mOut = new Direction();
+    private long mLastUpdate = -1;
+    private long mWindowStart;
+    private boolean mHasLastWindow;
+
+    private boolean mConnected;
+    private long mLastReceived;
+    private boolean mStalled;
+
+    /**
+     * @param connected whether a stall should be detected, usually if the VPN is connected
+     * @param now       a monotonic time in milliseconds
+     * @return {@link #STALL_STARTED} or {@link #STALL_ENDED} if the stall state changed
+     */
+    int update(long diffIn, long diffOut, boolean connected, long now) {
+        int result = updateStall(diffIn, connected, now);
+
+        if (mLastUpdate < 0 || now <= mLastUpdate) {
+            mLastUpdate = now;
+            mWindowStart = now;
+            return result;
+        }
+        long elapsed = now - mLastUpdate;
+        mLastUpdate = now;
+
+        double alpha = 1 - Math.exp(-(double) elapsed / EWMA_TIME_CONSTANT_MS);
+        mIn.add(diffIn * 1000.0 / elapsed, alpha);
+        mOut.add(diffOut * 1000.0 / elapsed, alpha);
+
+        if (now - mWindowStart >= WINDOW_MS) {
+            mIn.endWindow();
+            mOut.endWindow();
+            mHasLastWindow = true;
+            mWindowStart = now;
+        }
+        return result;
+    }
+
+    private int updateStall(long diffIn, boolean connected, long now) {
+        if (!connected || !mConnected) {
+            mConnected = connected;
+            mLastReceived = now;
+            boolean wasStalled = mStalled;
+            mStalled = false;
+            return wasStalled ? STALL_ENDED : NO_CHANGE;
+        }
+        if (diffIn > 0) {
+            mLastReceived = now;
+            if (mStalled) {
+                mStalled = false;
+                return STALL_ENDED;
+            }
+        } else if (!mStalled && now - mLastReceived >= STALL_TIMEOUT_MS) {
+            mStalled = true;
+            return STALL_STARTED;
+        }
+        return NO_CHANGE;
+    }
+
+    void reset() {
+        mIn.reset();
+        mOut.reset();
+        mLastUpdate = -1;
+        mHasLastWindow = false;
+        mConnected = false;
+        mStalled = false;
+    }
+
+    /**
+     * @return a copy of the current statistics
+     */
+    Snapshot snapshot(long now) {
+        return new Snapshot(mIn.values(mHasLastWindow), mOut.values(mHasLastWindow), mStalled,
+                mStalled ? now - mLastReceived : 0);
+    }
+
+    /**
+     * Statistics of one direction
+     */
+    private static final class Direction {
+        private final RateSketch mWindow = new RateSketch();
+        private final RateSketch mLastWindow = new RateSketch();
+        private double mRate;
+        private double mLastSample;
+        private double mJitter;
+        private boolean mHasRate;
+
+        void add(double rate, double alpha) {
+            if (mHasRate) {
+                mRate += alpha * (rate - mRate);
+                /* Like the interarrival jitter of RFC 3550 */
+                mJitter += (Math.abs(rate - mLastSample) - mJitter) / 16;
+            } else {
+                mRate = rate;
+                mHasRate = true;
+            }
+            mLastSample = rate;
+            mWindow.add(rate);
+        }
+
+        void endWindow() {
+            mLastWindow.copyFrom(mWindow);
+            mWindow.clear();
+        }
+
+        void reset() {
+            mWindow.clear();
+            mLastWindow.clear();
+            mRate = 0;
+            mJitter = 0;
+            mHasRate = false;
+        }
+
+        /* Percentiles of the last full window, or of the current window before the first
+         * window has ended */
+        double[] values(boolean hasLastWindow) {
+            RateSketch window = hasLastWindow ? mLastWindow : mWindow;
+            return new double[]{mRate, mJitter, window.min(), window.max(),
+                    window.quantile(0.5), window.quantile(0.95)};
+        }
+    }
+
+    /**
+     * Histogram of rates with buckets that grow by a constant factor
+     */
+    static final class RateSketch {
+        /* Upper limits of the buckets grow by this factor, the relative error of a quantile */
+        static final double GAMMA = 1.05;
+        private static final double LOG_GAMMA = Math.log(GAMMA);
+        /* Bucket 0 holds rates below 1 byte/s, the last bucket everything above ~100 GB/s */
+        private static final int BUCKETS = 2 + (int) Math.ceil(Math.log(1e11) / LOG_GAMMA);
+
+        private final long[] mCounts = new long[BUCKETS];
+        private long mCount;
+        private double mMin;
+        private double mMax;
+
+        void add(double rate) {
+            int bucket = rate < 1 ? 0 : Math.min(BUCKETS - 1, 1 + (int) Math.ceil(Math.log(rate) / LOG_GAMMA));
+            mCounts[bucket]++;
+            if (mCount == 0 || rate < mMin)
+                mMin = rate;
+            if (mCount == 0 || rate > mMax)
+                mMax = rate;
+            mCount++;
+        }
+
+        /**
+         * @return the rate below or at which the fraction q of the rates are, 0 if empty
+         */
+        double quantile(double q) {
+            if (mCount == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(q * mCount));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    if (i == 0)
+                        return mMin;
+                    /* Bucket i holds (GAMMA^(i-2), GAMMA^(i-1)], take the middle and
+                     * limit it to the values actually seen */
+                    double estimate = 2 * Math.pow(GAMMA, i - 1) / (1 + GAMMA);
+                    return Math.max(mMin, Math.min(mMax, estimate));
+                }
+            }
+            return mMax;
+        }
+
+        double min() {
+            return mCount == 0 ? 0 : mMin;
+        }
+
+        double max() {
+            return mCount == 0 ? 0 : mMax;
+        }
+
+        long count() {
+            return mCount;
+        }
+
+        void copyFrom(RateSketch other) {
+            System.arraycopy(other.mCounts, 0, mCounts, 0, BUCKETS);
+            mCount = other.mCount;
+            mMin = other.mMin;
+            mMax = other.mMax;
+        }
+
+        void clear() {
+            java.util.Arrays.fill(mCounts, 0);
+            mCount = 0;
+        }
+    }
+
+    /**
+     * Throughput statistics at one point in time. Rates are in bytes per second.
+     */
+    public static class Snapshot {
+        private final double[] mIn;
+        private final double[] mOut;
+        private final boolean mStalled;
+        private final long mStalledFor;
+
+        Snapshot(double[] in, double[] out, boolean stalled, long stalledFor) {
+            mIn = in;
+            mOut = out;
+            mStalled = stalled;
+            mStalledFor = stalledFor;
+        }
+
+        /**
+         * @return the exponentially weighted rate, smoothed over about ten seconds
+         */
+        public double getRateIn() {
+            return mIn[0];
+        }
+
+        public double getRateOut() {
+            return mOut[0];
+        }
+
+        /**
+         * @return the average change of the rate between two byte count updates
+         */
+        public double getJitterIn() {
+            return mIn[1];
+        }
+
+        public double getJitterOut() {
+            return mOut[1];
+        }
+
+        public double getMinIn() {
+            return mIn[2];
+        }
+
+        public double getMaxIn() {
+            return mIn[3];
+        }
+
+        public double getMedianIn() {
+            return mIn[4];
+        }
+
+        public double getP95In() {
+            return mIn[5];
+        }
+
+        public double getMinOut() {
+            return mOut[2];
+        }
+
+        public double getMaxOut() {
+            return mOut[3];
+        }
+
+        public double getMedianOut() {
+            return mOut[4];
+        }
+
+        public double getP95Out() {
+            return mOut[5];
+        }
+
+        /**
+         * @return true if the VPN is connected but nothing has been received for a while
+         */
+        public boolean isStalled() {
+            return mStalled;
+        }
+
+        /**
+         * @return milliseconds since the last received byte while stalled, otherwise 0
+         */
+        public long getStalledFor() {
+            return mStalledFor;
+        }
+
+        /* Raw values for sending the snapshot to another process, see StatusUpdateBatch */
+        double[] getInValues() {
+            return mIn;
+        }
+
+        double[] getOutValues() {
+            return mOut;
+        }
+    }
+}
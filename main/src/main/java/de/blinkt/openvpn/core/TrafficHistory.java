@@ -8,14 +8,17 @@ package de.blinkt.openvpn.core;
 import android.os.Parcel;
 import android.os.Parcelable;
 
-import java.util.HashSet;
+import java.io.UnsupportedEncodingException;
 import java.util.LinkedList;
-import java.util.Vector;
 
 import static java.lang.Math.max;
 
 /**
  * Created by arne on 23.05.17.
+ * <p>
+ * Keeps the byte counters of the last {@link #PERIODS_TO_KEEP} minutes per second, hours per
+ * minute and days per hour. Each resolution is a {@link TrafficRing} of primitive arrays, so
+ * adding a data point and rolling it up into the next resolution does not allocate.
  */
 
 public class TrafficHistory implements Parcelable {
@@ -23,23 +26,27 @@ public class TrafficHistory implements Parcelable {
     public static final long PERIODS_TO_KEEP = 5;
     public static final int TIME_PERIOD_MINTUES = 60 * 1000;
     public static final int TIME_PERIOD_HOURS = 3600 * 1000;
-    private final LinkedList<TrafficDatapoint> trafficHistorySeconds = new LinkedList<>();
-    private final LinkedList<TrafficDatapoint> trafficHistoryMinutes = new LinkedList<>();
-    private final LinkedList<TrafficDatapoint> trafficHistoryHours = new LinkedList<>();
-
-    private TrafficDatapoint lastSecondUsedForMinute;
-    private TrafficDatapoint lastMinuteUsedForHours;
+    /* Seconds of PERIODS_TO_KEEP minutes and the current minute with a one second bytecount interval */
+    static final int SECONDS_CAPACITY = (int) (PERIODS_TO_KEEP + 1) * 60;
+    /* Minutes of PERIODS_TO_KEEP hours and the current hour */
+    static final int MINUTES_CAPACITY = (int) (PERIODS_TO_KEEP + 1) * 60;
+    /* Hours of PERIODS_TO_KEEP days and the current day */
+    static final int HOURS_CAPACITY = (int) (PERIODS_TO_KEEP + 1) * 24;
+    private final TrafficRing trafficHistorySeconds = new TrafficRing(SECONDS_CAPACITY);
+    private final TrafficRing trafficHistoryMinutes = new TrafficRing(MINUTES_CAPACITY);
+    private final TrafficRing trafficHistoryHours = new TrafficRing(HOURS_CAPACITY);
+
+    /* Returned by add() so that adding a data point does not allocate */
+    private final LastDiff lastDiff = new LastDiff();
 
     public TrafficHistory() {
 
     }
 
     protected TrafficHistory(Parcel in) {
-        in.readList(trafficHistorySeconds, getClass().getClassLoader());
-        in.readList(trafficHistoryMinutes, getClass().getClassLoader());
-        in.readList(trafficHistoryHours, getClass().getClassLoader());
-        lastSecondUsedForMinute = in.readParcelable(getClass().getClassLoader());
-        lastMinuteUsedForHours = in.readParcelable(getClass().getClassLoader());
+        trafficHistorySeconds.readFromParcel(in);
+        trafficHistoryMinutes.readFromParcel(in);
+        trafficHistoryHours.readFromParcel(in);
     }
 
     public static final Creator<TrafficHistory> CREATOR = new Creator<TrafficHistory>() {
@@ -54,55 +61,72 @@ public class TrafficHistory implements Parcelable {
         }
     };
 
-    public LastDiff getLastDiff(TrafficDatapoint tdp) {
+    /**
+     * @return the difference between the last two data points
+     */
+    synchronized LastDiff getLastDiff() {
+        LastDiff diff = new LastDiff();
+        int size = trafficHistorySeconds.size();
+        if (size > 0) {
+            int last = size - 1;
+            int previous = Math.max(0, size - 2);
+            diff.set(trafficHistorySeconds.getIn(previous), trafficHistorySeconds.getOut(previous),
+                    trafficHistorySeconds.getIn(last), trafficHistorySeconds.getOut(last));
+        }
+        return diff;
+    }
 
-        TrafficDatapoint lasttdp;
+    @Override
+    public int describeContents() {
+        return 0;
+    }
 
+    @Override
+    public synchronized void writeToParcel(Parcel dest, int flags) {
+        trafficHistorySeconds.writeToParcel(dest);
+        trafficHistoryMinutes.writeToParcel(dest);
+        trafficHistoryHours.writeToParcel(dest);
+    }
 
-        if (trafficHistorySeconds.size() == 0)
-            lasttdp = new TrafficDatapoint(0, 0, System.currentTimeMillis());
+    /**
+     * Read only view of the data points of one resolution, oldest first. The view reads the
+     * arrays of the history directly, synchronize on the history while reading it.
+     */
+    public interface Series {
+        int size();
 
-        else
-            lasttdp = trafficHistorySeconds.getLast();
+        long getTimestamp(int i);
 
-        if (tdp == null) {
-            tdp = lasttdp;
-            if (trafficHistorySeconds.size() < 2)
-                lasttdp = tdp;
-            else {
-                trafficHistorySeconds.descendingIterator().next();
-                tdp = trafficHistorySeconds.descendingIterator().next();
-            }
-        }
+        long getIn(int i);
 
-        return new LastDiff(lasttdp, tdp);
+        long getOut(int i);
     }
 
-    @Override
-    public int describeContents() {
-        return 0;
+    public Series getSecondsView() {
+        return trafficHistorySeconds;
     }
 
-    @Override
-    public void writeToParcel(Parcel dest, int flags) {
-        dest.writeList(trafficHistorySeconds);
-        dest.writeList(trafficHistoryMinutes);
-        dest.writeList(trafficHistoryHours);
-        dest.writeParcelable(lastSecondUsedForMinute, 0);
-        dest.writeParcelable(lastMinuteUsedForHours, 0);
+    public Series getMinutesView() {
+        return trafficHistoryMinutes;
+    }
 
+    public Series getHoursView() {
+        return trafficHistoryHours;
     }
 
+    /**
+     * @return a copy of the data points. The views do not copy.
+     */
     public synchronized LinkedList<TrafficDatapoint> getHours() {
-        return new LinkedList<>(trafficHistoryHours);
+        return trafficHistoryHours.toList();
     }
 
     public synchronized LinkedList<TrafficDatapoint> getMinutes() {
-        return new LinkedList<>(trafficHistoryMinutes);
+        return trafficHistoryMinutes.toList();
     }
 
     public synchronized LinkedList<TrafficDatapoint> getSeconds() {
-        return new LinkedList<>(trafficHistorySeconds);
+        return trafficHistorySeconds.toList();
     }
 
     public static LinkedList<TrafficDatapoint> getDummyList() {
@@ -113,7 +137,7 @@ public class TrafficHistory implements Parcelable {
 
 
     public static class TrafficDatapoint implements Parcelable {
-        private TrafficDatapoint(long inBytes, long outBytes, long timestamp) {
+        TrafficDatapoint(long inBytes, long outBytes, long timestamp) {
             this.in = inBytes;
             this.out = outBytes;
             this.timestamp = timestamp;
@@ -154,87 +178,98 @@ public class TrafficHistory implements Parcelable {
         }
     }
 
-    LastDiff add(long in, long out) {
-        TrafficDatapoint tdp = new TrafficDatapoint(in, out, System.currentTimeMillis());
-
-        LastDiff diff = getLastDiff(tdp);
-        addDataPoint(tdp);
-        return diff;
-    }
-
-    private synchronized void addDataPoint(TrafficDatapoint tdp) {
-        trafficHistorySeconds.add(tdp);
-
-        if (lastSecondUsedForMinute == null) {
-            lastSecondUsedForMinute = new TrafficDatapoint(0, 0, 0);
-            lastMinuteUsedForHours = new TrafficDatapoint(0, 0, 0);
+    /**
+     * Adds a new data point. This does not allocate.
+     *
+     * @return the difference to the previous data point. The object is reused by the next call
+     */
+    synchronized LastDiff add(long in, long out) {
+        long lastIn = 0;
+        long lastOut = 0;
+        int size = trafficHistorySeconds.size();
+        if (size > 0) {
+            lastIn = trafficHistorySeconds.getIn(size - 1);
+            lastOut = trafficHistorySeconds.getOut(size - 1);
         }
+        lastDiff.set(lastIn, lastOut, in, out);
 
-        removeAndAverage(tdp, true);
+        addDataPoint(in, out, System.currentTimeMillis());
+        return lastDiff;
     }
 
-    private void removeAndAverage(TrafficDatapoint newTdp, boolean seconds) {
-        HashSet<TrafficDatapoint> toRemove = new HashSet<>();
-        Vector<TrafficDatapoint> toAverage = new Vector<>();
+    /**
+     * @return the timestamp of the newest data point or 0 if there is none
+     */
+    synchronized long getLastTimestamp() {
+        return trafficHistorySeconds.lastTimestamp();
+    }
 
-        long timePeriod;
-        LinkedList<TrafficDatapoint> tpList, nextList;
-        TrafficDatapoint lastTsPeriod;
+    /**
+     * @return the data points newer than the timestamp, encoded by {@link TrafficHistoryDelta}
+     */
+    synchronized byte[] encodeNewerThan(long newerThan) {
+        return TrafficHistoryDelta.encode(newerThan, trafficHistorySeconds, trafficHistoryMinutes, trafficHistoryHours);
+    }
 
-        if (seconds) {
-            timePeriod = TIME_PERIOD_MINTUES;
-            tpList = trafficHistorySeconds;
-            nextList = trafficHistoryMinutes;
-            lastTsPeriod = lastSecondUsedForMinute;
-        } else {
-            timePeriod = TIME_PERIOD_HOURS;
-            tpList = trafficHistoryMinutes;
-            nextList = trafficHistoryHours;
-            lastTsPeriod = lastMinuteUsedForHours;
-        }
+    /**
+     * Appends the data points of a delta from {@link #encodeNewerThan(long)}
+     */
+    synchronized void addDelta(byte[] delta, long newerThan) throws UnsupportedEncodingException {
+        long lastMinute = trafficHistoryMinutes.lastTimestamp();
+        long lastHour = trafficHistoryHours.lastTimestamp();
+        TrafficHistoryDelta.apply(delta, newerThan, trafficHistorySeconds, trafficHistoryMinutes, trafficHistoryHours);
+
+        /* Trim like addDataPoint does when it adds a minute or an hour */
+        if (trafficHistoryMinutes.lastTimestamp() != lastMinute)
+            trafficHistorySeconds.removeOlderThan(trafficHistoryMinutes.lastTimestamp() - PERIODS_TO_KEEP * TIME_PERIOD_MINTUES + 1);
+        if (trafficHistoryHours.lastTimestamp() != lastHour)
+            trafficHistoryMinutes.removeOlderThan(trafficHistoryHours.lastTimestamp() - PERIODS_TO_KEEP * TIME_PERIOD_HOURS + 1);
+    }
 
-        if (newTdp.timestamp / timePeriod > (lastTsPeriod.timestamp / timePeriod)) {
-            nextList.add(newTdp);
+    synchronized void addDataPoint(long in, long out, long timestamp) {
+        trafficHistorySeconds.add(timestamp, in, out);
 
-            if (seconds) {
-                lastSecondUsedForMinute = newTdp;
-                removeAndAverage(newTdp, false);
-            } else
-                lastMinuteUsedForHours = newTdp;
+        /* The first data point of a minute is also the data point of that minute */
+        if (timestamp / TIME_PERIOD_MINTUES > trafficHistoryMinutes.lastTimestamp() / TIME_PERIOD_MINTUES) {
+            long lastHour = trafficHistoryHours.lastTimestamp();
+            trafficHistoryMinutes.add(timestamp, in, out);
+            trafficHistorySeconds.removeOlderThan(timestamp - PERIODS_TO_KEEP * TIME_PERIOD_MINTUES + 1);
 
-            for (TrafficDatapoint tph : tpList) {
-                // List is iteratered from oldest to newest, remembert first one that we did not
-                if ((newTdp.timestamp - tph.timestamp) / timePeriod >= PERIODS_TO_KEEP)
-                    toRemove.add(tph);
+            if (timestamp / TIME_PERIOD_HOURS > lastHour / TIME_PERIOD_HOURS) {
+                trafficHistoryHours.add(timestamp, in, out);
+                trafficHistoryMinutes.removeOlderThan(timestamp - PERIODS_TO_KEEP * TIME_PERIOD_HOURS + 1);
             }
-            tpList.removeAll(toRemove);
         }
     }
 
     static class LastDiff {
 
-        final private TrafficDatapoint tdp;
-        final private TrafficDatapoint lasttdp;
+        private long lastIn;
+        private long lastOut;
+        private long in;
+        private long out;
 
-        private LastDiff(TrafficDatapoint lasttdp, TrafficDatapoint tdp) {
-            this.lasttdp = lasttdp;
-            this.tdp = tdp;
+        private void set(long lastIn, long lastOut, long in, long out) {
+            this.lastIn = lastIn;
+            this.lastOut = lastOut;
+            this.in = in;
+            this.out = out;
         }
 
         public long getDiffOut() {
-            return max(0, tdp.out - lasttdp.out);
+            return max(0, out - lastOut);
         }
 
         public long getDiffIn() {
-            return max(0, tdp.in - lasttdp.in);
+            return max(0, in - lastIn);
         }
 
         public long getIn() {
-            return tdp.in;
+            return in;
         }
 
         public long getOut() {
-            return tdp.out;
+            return out;
         }
 
     }
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Encodes the data points of the {@link TrafficRing}s of a {@link TrafficHistory} that are newer
+ * than a given timestamp into one byte array, so a client that already has the older points
+ * only gets what is new.
+ * <p>
+ * Every value is stored as the difference to the previous data point of the same resolution
+ * as a variable length integer. The first timestamp is relative to the requested timestamp.
+ * Byte counters can go down when a new connection starts, so they are zigzag encoded. Format:
+ * <pre>
+ *   byte  version
+ *   for seconds, minutes and hours:
+ *     varint count
+ *     count * { varint timestamp delta, zigzag varint in delta, zigzag varint out delta }
+ * </pre>
+ */
+class TrafficHistoryDelta {
+    private static final byte VERSION = 1;
+    /* A varint of a long takes at most 10 bytes */
+    private static final int MAX_VARINT = 10;
+
+    private TrafficHistoryDelta() {
+    }
+
+    /**
+     * Callers synchronize on the history the rings belong to
+     */
+    static byte[] encode(long newerThan, TrafficRing... rings) {
+        int maxSize = 1;
+        for (TrafficRing ring : rings)
+            maxSize += MAX_VARINT + ring.size() * 3 * MAX_VARINT;
+
+        ByteBuffer out = ByteBuffer.allocate(maxSize);
+        out.put(VERSION);
+        for (TrafficRing ring : rings) {
+            int first = ring.firstNewerThan(newerThan);
+            putVarint(out, ring.size() - first);
+
+            long lastTimestamp = newerThan;
+            long lastIn = 0;
+            long lastOut = 0;
+            for (int i = first; i < ring.size(); i++) {
+                putVarint(out, ring.getTimestamp(i) - lastTimestamp);
+                putVarint(out, zigzag(ring.getIn(i) - lastIn));
+                putVarint(out, zigzag(ring.getOut(i) - lastOut));
+                lastTimestamp = ring.getTimestamp(i);
+                lastIn = ring.getIn(i);
+                lastOut = ring.getOut(i);
+            }
+        }
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    /**
+     * Decodes the data points and appends those that are newer than the last data point of the
+     * corresponding ring. The whole array is decoded before any ring is changed.
+     *
+     * @param newerThan the timestamp the delta was requested with
+     */
+    static void apply(byte[] delta, long newerThan, TrafficRing... rings) throws UnsupportedEncodingException {
+        ByteBuffer bb = ByteBuffer.wrap(delta);
+        byte version = bb.get();
+        if (version != VERSION)
+            throw new UnsupportedEncodingException("Unknown traffic history delta version " + version);
+
+        long[][] decoded = new long[rings.length][];
+        for (int r = 0; r < rings.length; r++) {
+            long count = getVarint(bb);
+            /* Every data point takes at least three bytes */
+            if (count < 0 || count > bb.remaining() / 3)
+                throw new IndexOutOfBoundsException("Invalid number of traffic data points: " + count);
+
+            long[] points = new long[3 * (int) count];
+            long timestamp = newerThan;
+            long in = 0;
+            long out = 0;
+            for (int i = 0; i < points.length; i += 3) {
+                timestamp += getVarint(bb);
+                in += unzigzag(getVarint(bb));
+                out += unzigzag(getVarint(bb));
+                points[i] = timestamp;
+                points[i + 1] = in;
+                points[i + 2] = out;
+            }
+            decoded[r] = points;
+        }
+
+        for (int r = 0; r < rings.length; r++) {
+            long[] points = decoded[r];
+            for (int i = 0; i < points.length; i += 3) {
+                if (points[i] > rings[r].lastTimestamp())
+                    rings[r].add(points[i], points[i + 1], points[i + 2]);
+            }
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void putVarint(ByteBuffer out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static long getVarint(ByteBuffer bb) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = bb.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IndexOutOfBoundsException("Traffic history varint is too long");
+    }
+}
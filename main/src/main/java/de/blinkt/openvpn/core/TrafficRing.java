@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.os.Parcel;
+
+import java.util.LinkedList;
+
+/**
+ * Fixed size ring of traffic counters (timestamp, bytes in, bytes out) stored in primitive
+ * arrays. Adding a sample never allocates; when the ring is full the oldest sample is
+ * overwritten. Index 0 is always the oldest sample. Not thread safe, callers synchronize.
+ */
+class TrafficRing implements TrafficHistory.Series {
+    private final long[] mTimestamps;
+    private final long[] mIn;
+    private final long[] mOut;
+    /* Array index of the oldest sample */
+    private int mHead;
+    private int mSize;
+
+    TrafficRing(int capacity) {
+        mTimestamps = new long[capacity];
+        mIn = new long[capacity];
+        mOut = new long[capacity];
+    }
+
+    int capacity() {
+        return mTimestamps.length;
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    void add(long timestamp, long in, long out) {
+        int pos;
+        if (mSize == capacity()) {
+            pos = mHead;
+            mHead = wrap(mHead + 1);
+        } else {
+            pos = wrap(mHead + mSize);
+            mSize++;
+        }
+        mTimestamps[pos] = timestamp;
+        mIn[pos] = in;
+        mOut[pos] = out;
+    }
+
+    private int wrap(int pos) {
+        return pos >= capacity() ? pos - capacity() : pos;
+    }
+
+    private int index(int i) {
+        if (i < 0 || i >= mSize)
+            throw new IndexOutOfBoundsException("index " + i + ", size " + mSize);
+        return wrap(mHead + i);
+    }
+
+    @Override
+    public long getTimestamp(int i) {
+        return mTimestamps[index(i)];
+    }
+
+    @Override
+    public long getIn(int i) {
+        return mIn[index(i)];
+    }
+
+    @Override
+    public long getOut(int i) {
+        return mOut[index(i)];
+    }
+
+    /**
+     * @return the timestamp of the newest sample or 0 if the ring is empty
+     */
+    long lastTimestamp() {
+        return mSize == 0 ? 0 : getTimestamp(mSize - 1);
+    }
+
+    /**
+     * @return the index of the first sample with a timestamp after the given one, or the size
+     * of the ring if there is none
+     */
+    int firstNewerThan(long timestamp) {
+        int low = 0;
+        int high = mSize;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getTimestamp(mid) <= timestamp)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Removes all samples with a timestamp before the given one. The samples are ordered by
+     * time, so only the removed samples are looked at.
+     */
+    void removeOlderThan(long timestamp) {
+        while (mSize > 0 && mTimestamps[mHead] < timestamp) {
+            mHead = wrap(mHead + 1);
+            mSize--;
+        }
+    }
+
+    void clear() {
+        mHead = 0;
+        mSize = 0;
+    }
+
+    LinkedList<TrafficHistory.TrafficDatapoint> toList() {
+        LinkedList<TrafficHistory.TrafficDatapoint> list = new LinkedList<>();
+        for (int i = 0; i < mSize; i++)
+            list.add(new TrafficHistory.TrafficDatapoint(getIn(i), getOut(i), getTimestamp(i)));
+        return list;
+    }
+
+    /**
+     * Writes the samples as a single array: all timestamps, then all in and then all out counters
+     */
+    void writeToParcel(Parcel dest) {
+        long[] flat = new long[3 * mSize];
+        copyOrdered(mTimestamps, flat, 0);
+        copyOrdered(mIn, flat, mSize);
+        copyOrdered(mOut, flat, 2 * mSize);
+        dest.writeLongArray(flat);
+    }
+
+    private void copyOrdered(long[] src, long[] dest, int destPos) {
+        int first = Math.min(mSize, capacity() - mHead);
+        System.arraycopy(src, mHead, dest, destPos, first);
+        System.arraycopy(src, 0, dest, destPos + first, mSize - first);
+    }
+
+    void readFromParcel(Parcel in) {
+        clear();
+        long[] flat = in.createLongArray();
+        int size = flat == null ? 0 : flat.length / 3;
+        /* Only the newest samples if the other side kept more */
+        for (int i = Math.max(0, size - capacity()); i < size; i++)
+            add(flat[i], flat[size + i], flat[2 * size + i]);
+    }
+}
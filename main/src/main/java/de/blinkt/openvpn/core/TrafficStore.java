@@ -0,0 +1,394 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.content.Context;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * Data usage per profile that survives restarts, for reporting on metered plans.
+ * <p>
+ * The :openvpn process feeds the byte counters into {@link #add(String, long, long, long)}, which
+ * only adds up the difference in memory. About once a minute, when the profile, the connection
+ * or the day changes and when the VPN disconnects or the service stops, {@link #flush()}
+ * appends the sums to a file per profile. Each record has a fixed size:
+ * <pre>
+ *   byte  kind: day, month or connection
+ *   long  key: day number, month number or start time of the connection
+ *   long  bytes in
+ *   long  bytes out
+ * </pre>
+ * Several records can have the same key, their bytes are added up. When a file gets larger than
+ * a few KB it is rewritten with one record per key: days older than
+ * {@link #DAILY_RETENTION_DAYS} are rolled up into months, months older than
+ * {@link #MONTHLY_RETENTION_MONTHS} are dropped and only the last {@link #MAX_CONNECTIONS}
+ * connections are kept.
+ * <p>
+ * The query methods read the files and can be used from any process. Bytes that have not been
+ * flushed yet are not included.
+ */
+public class TrafficStore {
+    static final String TRAFFIC_DIR = "traffic";
+    private static final String FILE_SUFFIX = ".traffic";
+    static final long FLUSH_INTERVAL_MS = 60 * 1000;
+    private static final long DAY_MS = 24L * 3600 * 1000;
+    static final int DAILY_RETENTION_DAYS = 92;
+    static final int MONTHLY_RETENTION_MONTHS = 36;
+    static final int MAX_CONNECTIONS = 100;
+    /* Files are compacted when they grow larger than this */
+    static final int COMPACT_SIZE = 16 * 1024;
+
+    private static final int RECORD_SIZE = 1 + 3 * 8;
+    private static final byte KIND_DAY = 0;
+    private static final byte KIND_MONTH = 1;
+    private static final byte KIND_CONNECTION = 2;
+
+    /**
+     * Bytes transferred in one day, month or connection
+     */
+    public static class Usage {
+        private final long mStart;
+        private final long mIn;
+        private final long mOut;
+
+        Usage(long start, long in, long out) {
+            mStart = start;
+            mIn = in;
+            mOut = out;
+        }
+
+        /**
+         * @return start of the day or month in local time, or start of the connection
+         */
+        public long getStart() {
+            return mStart;
+        }
+
+        public long getIn() {
+            return mIn;
+        }
+
+        public long getOut() {
+            return mOut;
+        }
+    }
+
+    /* Bytes of one profile, day and connection that are waiting to be written */
+    private static final class Delta {
+        final String uuid;
+        final long day;
+        final long connection;
+        final long in;
+        final long out;
+
+        Delta(String uuid, long day, long connection, long in, long out) {
+            this.uuid = uuid;
+            this.day = day;
+            this.connection = connection;
+            this.in = in;
+            this.out = out;
+        }
+    }
+
+    private final File mDir;
+    private final TimeZone mTimeZone;
+
+    /* Counting state, guarded by this */
+    private String mUuid;
+    private long mConnection;
+    private long mLastIn;
+    private long mLastOut;
+    private long mDay;
+    private long mDayStart;
+    private long mDayEnd;
+    private long mPendingIn;
+    private long mPendingOut;
+    private long mLastFlushRequest;
+    private final ArrayList<Delta> mQueue = new ArrayList<>();
+
+    public TrafficStore(Context c) {
+        this(new File(c.getFilesDir(), TRAFFIC_DIR), TimeZone.getDefault());
+    }
+
+    TrafficStore(File dir, TimeZone timeZone) {
+        mDir = dir;
+        mTimeZone = timeZone;
+    }
+
+    /**
+     * Counts the bytes since the last call. A counter that goes back or a different profile
+     * starts a new connection. Does not allocate unless the profile, connection or day changes.
+     *
+     * @param in  total bytes in of the current connection
+     * @param out total bytes out of the current connection
+     * @return true if {@link #flush()} should be called
+     */
+    synchronized boolean add(String uuid, long in, long out, long now) {
+        if (uuid == null)
+            return false;
+
+        boolean flush = false;
+        boolean newConnection = !uuid.equals(mUuid) || in < mLastIn || out < mLastOut;
+        boolean newDay = now < mDayStart || now >= mDayEnd;
+        if (newConnection || newDay) {
+            queuePending();
+            flush = true;
+            if (newConnection) {
+                mUuid = uuid;
+                mConnection = now;
+                mLastIn = 0;
+                mLastOut = 0;
+            }
+            if (newDay)
+                setDay(now);
+        }
+
+        mPendingIn += in - mLastIn;
+        mPendingOut += out - mLastOut;
+        mLastIn = in;
+        mLastOut = out;
+
+        if (flush || now - mLastFlushRequest >= FLUSH_INTERVAL_MS) {
+            mLastFlushRequest = now;
+            return true;
+        }
+        return false;
+    }
+
+    private void setDay(long now) {
+        mDay = dayOf(now);
+        mDayStart = dayStart(mDay);
+        mDayEnd = dayStart(mDay + 1);
+    }
+
+    private void queuePending() {
+        if (mUuid != null && (mPendingIn != 0 || mPendingOut != 0))
+            mQueue.add(new Delta(mUuid, mDay, mConnection, mPendingIn, mPendingOut));
+        mPendingIn = 0;
+        mPendingOut = 0;
+    }
+
+    /**
+     * Writes the counted bytes to the files. Does file I/O, call it on a background thread.
+     */
+    void flush() {
+        ArrayList<Delta> deltas;
+        synchronized (this) {
+            queuePending();
+            deltas = new ArrayList<>(mQueue);
+            mQueue.clear();
+        }
+        if (deltas.isEmpty())
+            return;
+
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            VpnStatus.logDebug("Cannot create traffic store " + mDir);
+            return;
+        }
+        for (Delta delta : deltas) {
+            File file = fileOf(delta.uuid);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)))) {
+                writeRecord(out, KIND_DAY, delta.day, delta.in, delta.out);
+                writeRecord(out, KIND_CONNECTION, delta.connection, delta.in, delta.out);
+            } catch (IOException e) {
+                VpnStatus.logDebug("Writing traffic store failed: " + e.getMessage());
+                continue;
+            }
+            if (file.length() > COMPACT_SIZE)
+                compact(file, System.currentTimeMillis());
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, byte kind, long key, long bytesIn, long bytesOut) throws IOException {
+        out.writeByte(kind);
+        out.writeLong(key);
+        out.writeLong(bytesIn);
+        out.writeLong(bytesOut);
+    }
+
+    /**
+     * Sums of the records of one file per kind and key
+     */
+    private static final class Totals {
+        final TreeMap<Long, long[]> days = new TreeMap<>();
+        final TreeMap<Long, long[]> months = new TreeMap<>();
+        final TreeMap<Long, long[]> connections = new TreeMap<>();
+
+        static void add(TreeMap<Long, long[]> map, long key, long in, long out) {
+            long[] sum = map.get(key);
+            if (sum == null)
+                map.put(key, new long[]{in, out});
+            else {
+                sum[0] += in;
+                sum[1] += out;
+            }
+        }
+    }
+
+    private static Totals read(File file) {
+        Totals totals = new Totals();
+        if (!file.exists())
+            return totals;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            /* A partly written record at the end is not read */
+            for (long records = file.length() / RECORD_SIZE; records > 0; records--) {
+                byte kind = in.readByte();
+                long key = in.readLong();
+                long bytesIn = in.readLong();
+                long bytesOut = in.readLong();
+                if (kind == KIND_DAY)
+                    Totals.add(totals.days, key, bytesIn, bytesOut);
+                else if (kind == KIND_MONTH)
+                    Totals.add(totals.months, key, bytesIn, bytesOut);
+                else if (kind == KIND_CONNECTION)
+                    Totals.add(totals.connections, key, bytesIn, bytesOut);
+            }
+        } catch (EOFException ignored) {
+            // file was truncated while reading
+        } catch (IOException e) {
+            VpnStatus.logDebug("Reading traffic store failed: " + e.getMessage());
+        }
+        return totals;
+    }
+
+    /**
+     * Rewrites the file with one record per key and applies the retention limits
+     */
+    void compact(File file, long now) {
+        Totals totals = read(file);
+        Totals compacted = new Totals();
+        long firstDay = dayOf(now) - DAILY_RETENTION_DAYS + 1;
+        long firstMonth = monthOf(dayOf(now)) - MONTHLY_RETENTION_MONTHS + 1;
+
+        for (Map.Entry<Long, long[]> e : totals.days.entrySet()) {
+            if (e.getKey() >= firstDay)
+                Totals.add(compacted.days, e.getKey(), e.getValue()[0], e.getValue()[1]);
+            else if (monthOf(e.getKey()) >= firstMonth)
+                Totals.add(compacted.months, monthOf(e.getKey()), e.getValue()[0], e.getValue()[1]);
+        }
+        for (Map.Entry<Long, long[]> e : totals.months.entrySet()) {
+            if (e.getKey() >= firstMonth)
+                Totals.add(compacted.months, e.getKey(), e.getValue()[0], e.getValue()[1]);
+        }
+        while (totals.connections.size() > MAX_CONNECTIONS)
+            totals.connections.pollFirstEntry();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            for (Map.Entry<Long, long[]> e : compacted.months.entrySet())
+                writeRecord(out, KIND_MONTH, e.getKey(), e.getValue()[0], e.getValue()[1]);
+            for (Map.Entry<Long, long[]> e : compacted.days.entrySet())
+                writeRecord(out, KIND_DAY, e.getKey(), e.getValue()[0], e.getValue()[1]);
+            for (Map.Entry<Long, long[]> e : totals.connections.entrySet())
+                writeRecord(out, KIND_CONNECTION, e.getKey(), e.getValue()[0], e.getValue()[1]);
+        } catch (IOException e) {
+            VpnStatus.logDebug("Compacting traffic store failed: " + e.getMessage());
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file))
+            VpnStatus.logDebug("Cannot replace traffic store " + file);
+    }
+
+    /**
+     * @return the bytes of each of the last days, oldest first and including today. Days
+     * without traffic have a usage of 0.
+     */
+    public List<Usage> getDailyUsage(String uuid, int days) {
+        Totals totals = read(fileOf(uuid));
+        long today = dayOf(System.currentTimeMillis());
+        List<Usage> usage = new ArrayList<>(days);
+        for (long day = today - days + 1; day <= today; day++) {
+            long[] sum = totals.days.get(day);
+            usage.add(new Usage(dayStart(day), sum == null ? 0 : sum[0], sum == null ? 0 : sum[1]));
+        }
+        return usage;
+    }
+
+    /**
+     * @return the bytes of each of the last months, oldest first and including this month
+     */
+    public List<Usage> getMonthlyUsage(String uuid, int months) {
+        Totals totals = read(fileOf(uuid));
+        for (Map.Entry<Long, long[]> e : totals.days.entrySet())
+            Totals.add(totals.months, monthOf(e.getKey()), e.getValue()[0], e.getValue()[1]);
+
+        long thisMonth = monthOf(dayOf(System.currentTimeMillis()));
+        List<Usage> usage = new ArrayList<>(months);
+        for (long month = thisMonth - months + 1; month <= thisMonth; month++) {
+            long[] sum = totals.months.get(month);
+            usage.add(new Usage(monthStart(month), sum == null ? 0 : sum[0], sum == null ? 0 : sum[1]));
+        }
+        return usage;
+    }
+
+    /**
+     * @return the bytes of the last connections, oldest first
+     */
+    public List<Usage> getConnections(String uuid, int maxConnections) {
+        Totals totals = read(fileOf(uuid));
+        List<Usage> usage = new ArrayList<>();
+        for (Map.Entry<Long, long[]> e : totals.connections.descendingMap().entrySet()) {
+            if (usage.size() >= maxConnections)
+                break;
+            usage.add(new Usage(e.getKey(), e.getValue()[0], e.getValue()[1]));
+        }
+        Collections.reverse(usage);
+        return usage;
+    }
+
+    /**
+     * Deletes the data usage of a profile
+     */
+    public void clear(String uuid) {
+        fileOf(uuid).delete();
+    }
+
+    File fileOf(String uuid) {
+        /* Profile UUIDs are safe, but never write outside of the directory */
+        return new File(mDir, uuid.replaceAll("[^A-Za-z0-9-]", "_") + FILE_SUFFIX);
+    }
+
+    /* Days since the epoch in local time */
+    private long dayOf(long time) {
+        return (time + mTimeZone.getOffset(time)) / DAY_MS;
+    }
+
+    private long dayStart(long day) {
+        long utc = day * DAY_MS;
+        return utc - mTimeZone.getOffset(utc);
+    }
+
+    /* Months since year 0 of a day number, year * 12 + month */
+    private static long monthOf(long day) {
+        Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        cal.setTimeInMillis(day * DAY_MS);
+        return cal.get(Calendar.YEAR) * 12L + cal.get(Calendar.MONTH);
+    }
+
+    private long monthStart(long month) {
+        Calendar cal = Calendar.getInstance(mTimeZone);
+        cal.clear();
+        cal.set((int) (month / 12), (int) (month % 12), 1);
+        return cal.getTimeInMillis();
+    }
+}
@@ -8,6 +8,7 @@ package de.blinkt.openvpn.core;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Build;
+import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
 
@@ -16,19 +17,22 @@ import androidx.annotation.StringRes;
 import java.io.File;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.util.LinkedList;
-import java.util.ListIterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Vector;
+import java.util.concurrent.Executor;
 
+import de.blinkt.openvpn.BuildConfig;
 import de.blinkt.openvpn.R;
 
 public class VpnStatus {
-    private static final LinkedList<LogItem> logbuffer;
+    /* Writers synchronize on the buffer, readers do not need a lock */
+    private static final LogRingBuffer logbuffer;
+    /* Older log items, compressed outside of the heap. Only changed with the lock of logbuffer */
+    private static final LogColdStore coldLog;
 
-    private static final Vector<LogListener> logListener;
-    private static final Vector<StateListener> stateListener;
-    private static final Vector<ByteCountListener> byteCountListener;
+    /* Delivers log, state and byte count events to the listeners without blocking the caller */
+    private static final StatusEventBus eventBus;
     private static final Vector<ProfileNotifyListener> profileListener;
 
     private static String mLaststatemsg = "";
@@ -48,6 +52,15 @@ public class VpnStatus {
 
     public static TrafficHistory trafficHistory;
 
+    /* Only set in the process that runs OpenVPN, flushed on the thread of the log cache */
+    private static TrafficStore mTrafficStore;
+    private static Handler mTrafficStoreHandler;
+    private static final Runnable mFlushTrafficStore = () -> mTrafficStore.flush();
+
+    private static final ThroughputStats throughputStats = new ThroughputStats();
+    /* In the UI process, the stats of the process that runs OpenVPN, see StatusUpdateBatch */
+    private static ThroughputStats.Snapshot mRemoteThroughputStats;
+
 
     public static void logException(LogLevel ll, String context, Throwable e) {
         StringWriter sw = new StringWriter();
@@ -69,7 +82,10 @@ public class VpnStatus {
         logException(LogLevel.ERROR, context, e);
     }
 
-    static final int MAXLOGENTRIES = 1000;
+    /* Log items kept on the heap, the build flavor sets how many */
+    static final int MAXLOGENTRIES = BuildConfig.LOG_HOT_ENTRIES;
+    /* The buffer is trimmed back to MAXLOGENTRIES when it reaches this size */
+    private static final int LOGBUFFER_TRIM_SIZE = MAXLOGENTRIES + MAXLOGENTRIES / 2;
 
     public static boolean isVPNActive() {
         return mLastLevel != ConnectionStatus.LEVEL_AUTH_FAILED && !(mLastLevel == ConnectionStatus.LEVEL_NOTCONNECTED);
@@ -131,15 +147,103 @@ public class VpnStatus {
 
     }
 
+    /**
+     * Starts counting the data usage per profile, see {@link TrafficStore}. Call after
+     * {@link #initLogCache(File)}, the store is written on the same thread.
+     */
+    static synchronized void initTrafficStore(TrafficStore store) {
+        mTrafficStoreHandler = new Handler(mHandlerThread.getLooper());
+        mTrafficStore = store;
+    }
+
+    /**
+     * Writes the bytes counted since the last periodic flush of the traffic store, they would
+     * be lost if the process ends before the next one
+     */
+    public static void flushTrafficStore() {
+        if (mTrafficStore != null)
+            mTrafficStoreHandler.post(mFlushTrafficStore);
+    }
+
     public static void flushLog() {
         if (mLogFileHandler!=null)
             mLogFileHandler.sendEmptyMessage(LogFileHandler.FLUSH_TO_DISK);
     }
 
+    /**
+     * When the log cache is synced to the storage device
+     */
+    public enum LogFlushPolicy {
+        /* Leave it to the kernel, only survives a crash of the app */
+        NEVER,
+        /* On {@link #flushLog()} and when a log cache segment is full, new message templates
+         * right away */
+        ON_FLUSH,
+        /* Additionally after a few KB of log or a few seconds, whichever comes first */
+        PERIODIC
+    }
+
+    public static void setLogFlushPolicy(LogFlushPolicy policy) {
+        LogFileHandler.setFlushPolicy(policy);
+    }
+
+    /**
+     * Memory used by the log, see {@link #getLogMemoryUsage()}
+     */
+    public static class LogMemoryUsage {
+        private final int mHotItems;
+        private final int mColdItems;
+        private final int mColdBytes;
+        private final int mPendingBytes;
+        private final int mColdCapacity;
+
+        LogMemoryUsage(int hotItems, int coldItems, int coldBytes, int pendingBytes, int coldCapacity) {
+            mHotItems = hotItems;
+            mColdItems = coldItems;
+            mColdBytes = coldBytes;
+            mPendingBytes = pendingBytes;
+            mColdCapacity = coldCapacity;
+        }
+
+        /**
+         * @return log items kept as objects on the heap
+         */
+        public int getHotItems() {
+            return mHotItems;
+        }
+
+        /**
+         * @return log items kept compressed
+         */
+        public int getColdItems() {
+            return mColdItems;
+        }
+
+        /**
+         * @return bytes of compressed log items outside of the heap
+         */
+        public int getColdBytes() {
+            return mColdBytes;
+        }
+
+        /**
+         * @return bytes on the heap of log items that are not compressed yet
+         */
+        public int getPendingBytes() {
+            return mPendingBytes;
+        }
+
+        /**
+         * @return bytes reserved outside of the heap for compressed log items
+         */
+        public int getColdCapacity() {
+            return mColdCapacity;
+        }
+    }
+
     public synchronized static void setConnectedVPNProfile(String uuid) {
         mLastConnectedVPNUUID = uuid;
-        for (StateListener sl: stateListener)
-            sl.setConnectedVPN(uuid);
+        eventBus.publishConnectedVPN(uuid);
     }
 
 
@@ -148,6 +252,21 @@ public class VpnStatus {
         return mLastConnectedVPNUUID;
     }
 
+    /**
+     * @return smoothed rates, their percentiles over the last minute and whether the
+     * connected tunnel has stopped receiving data. In the UI process these are the stats last
+     * received from the process that runs OpenVPN, since only that one watches for stalls
+     */
+    public static synchronized ThroughputStats.Snapshot getThroughputStats() {
+        if (mRemoteThroughputStats != null)
+            return mRemoteThroughputStats;
+        return throughputStats.snapshot(System.nanoTime() / 1000000);
+    }
+
+    static synchronized void setRemoteThroughputStats(ThroughputStats.Snapshot snapshot) {
+        mRemoteThroughputStats = snapshot;
+    }
+
     public static void setTrafficHistory(TrafficHistory trafficHistory) {
         VpnStatus.trafficHistory = trafficHistory;
     }
@@ -201,10 +320,9 @@ public class VpnStatus {
     private static LogFileHandler mLogFileHandler;
 
     static {
-        logbuffer = new LinkedList<>();
-        logListener = new Vector<>();
-        stateListener = new Vector<>();
-        byteCountListener = new Vector<>();
+        logbuffer = new LogRingBuffer(LOGBUFFER_TRIM_SIZE);
+        coldLog = new LogColdStore(BuildConfig.LOG_COLD_BYTES);
+        eventBus = new StatusEventBus(new StatusEventBus.EventDispatcher("VpnStatusEvents"));
         trafficHistory = new TrafficHistory();
         profileListener = new Vector<>();
 
@@ -215,6 +333,15 @@ public class VpnStatus {
 
     public interface LogListener {
         void newLog(LogItem logItem);
+
+        /**
+         * Log items have been read from the log cache and added to the log at once, without a
+         * call to {@link #newLog(LogItem)} for each of them. They are in {@link #getlogbuffer()}.
+         *
+         * @param count number of log items that have been added
+         */
+        default void logRestored(int count) {
+        }
     }
 
     public interface StateListener {
@@ -230,16 +357,19 @@ public class VpnStatus {
         void updateByteCount(long in, long out, long diffIn, long diffOut);
     }
 
-    public synchronized static void logMessage(LogLevel level, String prefix, String message) {
+    public static void logMessage(LogLevel level, String prefix, String message) {
         newLogItem(new LogItem(level, prefix + message));
 
     }
 
-    public synchronized static void clearLog() {
-        logbuffer.clear();
-        logInformation();
-        if (mLogFileHandler != null)
-            mLogFileHandler.sendEmptyMessage(LogFileHandler.TRIM_LOG_FILE);
+    public static void clearLog() {
+        synchronized (logbuffer) {
+            coldLog.clear();
+            logbuffer.clear();
+            logInformation();
+            if (mLogFileHandler != null)
+                mLogFileHandler.sendEmptyMessage(LogFileHandler.CLEAR_LOG_FILE);
+        }
     }
 
     private static void logInformation() {
@@ -254,33 +384,70 @@ public class VpnStatus {
                 nativeAPI, Build.VERSION.RELEASE, Build.ID, Build.FINGERPRINT, "", "");
     }
 
-    public synchronized static void addLogListener(LogListener ll) {
-        logListener.add(ll);
+    public static void addLogListener(LogListener ll) {
+        addLogListener(ll, eventBus.getDefaultExecutor(), StatusEventBus.DEFAULT_LOG_QUEUE_SIZE);
     }
 
-    public synchronized static void removeLogListener(LogListener ll) {
-        logListener.remove(ll);
+    /**
+     * @param executor  executor that calls the listener
+     * @param queueSize number of log items that are queued for the listener before the oldest
+     *                  ones are dropped
+     */
+    public static synchronized void addLogListener(LogListener ll, Executor executor, int queueSize) {
+        if (!eventBus.isSubscribed(ll))
+            eventBus.subscribe(ll, executor, queueSize);
     }
 
-    public synchronized static void addByteCountListener(ByteCountListener bcl) {
-        TrafficHistory.LastDiff diff = trafficHistory.getLastDiff(null);
-        bcl.updateByteCount(diff.getIn(), diff.getOut(), diff.getDiffIn(),diff.getDiffOut());
-        byteCountListener.add(bcl);
+    public static void removeLogListener(LogListener ll) {
+        eventBus.unsubscribe(ll);
     }
 
-    public synchronized static void removeByteCountListener(ByteCountListener bcl) {
-        byteCountListener.remove(bcl);
+    public static void addByteCountListener(ByteCountListener bcl) {
+        addByteCountListener(bcl, eventBus.getDefaultExecutor());
     }
 
+    /**
+     * The listener is called with the current byte count right away and then whenever the byte
+     * count changes. If it falls behind, it only gets the latest byte count and the added up
+     * diffs of the updates it missed.
+     */
+    public synchronized static void addByteCountListener(ByteCountListener bcl, Executor executor) {
+        if (eventBus.isSubscribed(bcl))
+            return;
+        TrafficHistory.LastDiff diff = trafficHistory.getLastDiff();
+        eventBus.subscribe(bcl, executor).publish(diff.getIn(), diff.getOut(), diff.getDiffIn(), diff.getDiffOut());
+    }
+
+    public static void removeByteCountListener(ByteCountListener bcl) {
+        eventBus.unsubscribe(bcl);
+    }
 
-    public synchronized static void addStateListener(StateListener sl) {
-        if (!stateListener.contains(sl)) {
-            stateListener.add(sl);
+
+    public static void addStateListener(StateListener sl) {
+        addStateListener(sl, eventBus.getDefaultExecutor());
+    }
+
+    /**
+     * The listener is called with the current state right away on the calling thread, so callers
+     * can rely on it being set when this returns. State changes are delivered on the executor.
+     * If the listener falls behind, it only gets the latest state.
+     */
+    public synchronized static void addStateListener(StateListener sl, Executor executor) {
+        if (!eventBus.isSubscribed(sl)) {
+            /* State changes also take the lock, none can be published before this call */
+            eventBus.subscribe(sl, executor);
             if (mLaststate != null)
                 sl.updateState(mLaststate, mLaststatemsg, mLastStateresid, mLastLevel, mLastIntent);
         }
     }
 
+    /**
+     * @return queue depth and drop counters of the log, state and byte count listeners
+     */
+    public static List<StatusEventBus.ListenerStats> getListenerStats() {
+        return eventBus.getStats();
+    }
+
     public synchronized static void addProfileStateListener(ProfileNotifyListener pl) {
         profileListener.add(pl);
     }
@@ -351,17 +518,52 @@ public class VpnStatus {
     }
 
 
-    public synchronized static void removeStateListener(StateListener sl) {
-        stateListener.remove(sl);
+    public static void removeStateListener(StateListener sl) {
+        eventBus.unsubscribe(sl);
     }
 
 
-    synchronized public static LogItem[] getlogbuffer() {
+    /**
+     * @return a copy of the log items, ordered by log time. This includes the older log items that
+     * are kept compressed, so all of them are inflated onto the heap. Callers that only go through
+     * the items once use {@link #iterateLog()} instead. Does not block while log items are added.
+     */
+    public static LogItem[] getlogbuffer() {
+        return coldLog.toArray(logbuffer);
+    }
 
-        // The stoned way of java to return an array from a vector
-        // brought to you by eclipse auto complete
-        return logbuffer.toArray(new LogItem[logbuffer.size()]);
+    /**
+     * @return all log items, like {@link #getlogbuffer()}, but the compressed items are only
+     * inflated a block at a time while iterating
+     */
+    static Iterable<LogItem> iterateLog() {
+        return coldLog.iterate(logbuffer);
+    }
+
+    /**
+     * @return how much memory the log uses at the moment
+     */
+    public static LogMemoryUsage getLogMemoryUsage() {
+        return new LogMemoryUsage(logbuffer.size(), coldLog.size(), coldLog.getStoredBytes(),
+                coldLog.getPendingBytes(), coldLog.getCapacity());
+    }
+
+    /**
+     * Returns the log items that have been added since an earlier snapshot. A cursor of
+     * {@link Long#MIN_VALUE} returns all log items that are kept on the heap.
+     */
+    static LogRingBuffer.Snapshot getLogSnapshot(long cursor) {
+        return logbuffer.snapshotSince(cursor);
+    }
 
+    /**
+     * Pages through the log items on the heap that match the query without copying the whole log
+     *
+     * @param cursor {@link Long#MIN_VALUE} for the first page, otherwise
+     *               {@link LogQuery.Page#getNextCursor()} of the previous page
+     */
+    public static LogQuery.Page queryLog(LogQuery query, long cursor, int maxItems) {
+        return logbuffer.query(query, cursor, maxItems);
     }
 
     static void updateStateString(String state, String msg) {
@@ -388,16 +590,21 @@ public class VpnStatus {
             return;
         }
 
+        /* Rates and stalls of the previous connection do not apply to the new one */
+        if (state.equals("CONNECTING") || state.equals("RECONNECTING"))
+            throughputStats.reset();
+
         mLaststate = state;
         mLaststatemsg = msg;
         mLastStateresid = resid;
         mLastLevel = level;
         mLastIntent = intent;
 
+        /* Covers DISCONNECTED, EXITING and NOPROCESS */
+        if (level == ConnectionStatus.LEVEL_NOTCONNECTED)
+            flushTrafficStore();
 
-        for (StateListener sl : stateListener) {
-            sl.updateState(state, msg, resid, level, intent);
-        }
+        eventBus.publishState(state, msg, resid, level, intent);
         //newLogItem(new LogItem((LogLevel.DEBUG), String.format("New OpenVPN Status (%s->%s): %s",state,level.toString(),msg)));
     }
 
@@ -430,55 +637,49 @@ public class VpnStatus {
         newLogItem(logItem, cachedLine, false);
     }
 
-    synchronized static void newLogItem(LogItem logItem, boolean cachedLine, boolean enforceUnique) {
-        if (cachedLine) {
-            logbuffer.addFirst(logItem);
-        } else {
-            insertLogItemByLogTime(logItem, enforceUnique);
-            if (mLogFileHandler != null) {
+    static void newLogItem(LogItem logItem, boolean cachedLine, boolean enforceUnique) {
+        /* Only one thread adds log items at a time, readers of the buffer are not blocked */
+        synchronized (logbuffer) {
+            if (!logbuffer.add(logItem, enforceUnique))
+                return;
+
+            /* Cached lines have been read from the log file, do not write them again */
+            if (!cachedLine && mLogFileHandler != null) {
                 Message m = mLogFileHandler.obtainMessage(LogFileHandler.LOG_MESSAGE, logItem);
                 mLogFileHandler.sendMessage(m);
             }
-        }
 
-        if (logbuffer.size() > MAXLOGENTRIES + MAXLOGENTRIES / 2) {
-            while (logbuffer.size() > MAXLOGENTRIES)
-                logbuffer.removeFirst();
-            if (mLogFileHandler != null)
-                mLogFileHandler.sendMessage(mLogFileHandler.obtainMessage(LogFileHandler.TRIM_LOG_FILE));
-        }
+            if (logbuffer.size() >= LOGBUFFER_TRIM_SIZE) {
+                coldLog.moveFrom(logbuffer, MAXLOGENTRIES);
+                if (mLogFileHandler != null)
+                    mLogFileHandler.sendMessage(mLogFileHandler.obtainMessage(LogFileHandler.TRIM_LOG_FILE));
+            }
 
-        for (LogListener ll : logListener) {
-            ll.newLog(logItem);
+            /* Does not block, publishing while holding the lock keeps the listeners in log order */
+            eventBus.publishLog(logItem);
         }
     }
 
-    private static void insertLogItemByLogTime(LogItem logItem, boolean enforceUnique) {
-        /* Shortcut for the shortcut that it should be added at the
-         * end to avoid traversing the list
-         */
-        if (!logbuffer.isEmpty() && logbuffer.getLast().getLogtime() <= logItem.getLogtime())
-        {
-            logbuffer.addLast(logItem);
-            return;
-        }
-
-        ListIterator<LogItem> itr = logbuffer.listIterator();
-        long newItemLogTime = logItem.getLogtime();
-        while(itr.hasNext()) {
-            LogItem laterLogItem = itr.next();
-            if (enforceUnique && laterLogItem.equals(logItem))
-                /* Identical object found, ignore new item */
-                return;
 
-            if (laterLogItem.getLogtime() > newItemLogTime) {
-                itr.previous();
-                itr.add(logItem);
-                return;
+    /**
+     * Adds the log items that have been read from the log cache while holding the lock only once
+     * and tells the listeners with a single event
+     */
+    static void restoreLogItems(List<LogItem> items) {
+        synchronized (logbuffer) {
+            boolean trimmed = false;
+            for (LogItem li : items) {
+                logbuffer.add(li, false);
+                if (logbuffer.size() >= LOGBUFFER_TRIM_SIZE) {
+                    coldLog.moveFrom(logbuffer, MAXLOGENTRIES);
+                    trimmed = true;
+                }
             }
+            if (trimmed && mLogFileHandler != null)
+                mLogFileHandler.sendMessage(mLogFileHandler.obtainMessage(LogFileHandler.TRIM_LOG_FILE));
+
+            eventBus.publishLogRestored(items.size());
         }
-        /* no hasNext, add at the end */
-        itr.add(logItem);
     }
 
 
@@ -522,9 +723,21 @@ public class VpnStatus {
     public static synchronized void updateByteCount(long in, long out) {
         TrafficHistory.LastDiff diff = trafficHistory.add(in, out);
 
-        for (ByteCountListener bcl : byteCountListener) {
-            bcl.updateByteCount(in, out, diff.getDiffIn(), diff.getDiffOut());
-        }
+        /* Like the traffic store, stalls are only watched in the process that runs OpenVPN. The UI
+         * process gets the same byte counts and would log every stall a second time */
+        boolean watchStall = mTrafficStore != null && mLastLevel == ConnectionStatus.LEVEL_CONNECTED;
+        int stall = throughputStats.update(diff.getDiffIn(), diff.getDiffOut(), watchStall,
+                System.nanoTime() / 1000000);
+        if (stall == ThroughputStats.STALL_STARTED)
+            logWarning("No data received from the VPN server for " + ThroughputStats.STALL_TIMEOUT_MS / 1000 + " seconds, the connection might be stalled");
+        else if (stall == ThroughputStats.STALL_ENDED && mLastLevel == ConnectionStatus.LEVEL_CONNECTED)
+            logInfo("Receiving data from the VPN server again");
+
+        /* After updating the stats, the listeners may read them */
+        eventBus.publishByteCount(in, out, diff.getDiffIn(), diff.getDiffOut());
+
+        if (mTrafficStore != null && mTrafficStore.add(mLastConnectedVPNUUID, in, out, System.currentTimeMillis()))
+            flushTrafficStore();
     }
 
     public static synchronized void notifyProfileVersionChanged(String uuid, int version, boolean changedInThisProcess)
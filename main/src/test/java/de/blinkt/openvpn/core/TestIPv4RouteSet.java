@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class TestIPv4RouteSet {
+
+    @Test
+    public void testExcludeFromDefaultRoute() {
+        NetworkSpace space = new NetworkSpace();
+        space.addIPSplit(new CIDRIP("0.0.0.0", 0), true);
+        space.addIP(new CIDRIP("192.168.0.0", 16), false);
+        space.addIP(new CIDRIP("192.168.10.0", 24), true);
+
+        List<String> routes = new ArrayList<>();
+        for (NetworkSpace.IpAddress ip : space.getPositiveIPList())
+            routes.add(ip.toString());
+
+        Assert.assertEquals(17, routes.size());
+        Assert.assertEquals("0.0.0.0/1", routes.get(0));
+        Assert.assertTrue(routes.contains("192.168.10.0/24"));
+        Assert.assertTrue(routes.contains("192.169.0.0/16"));
+        Assert.assertFalse(routes.contains("192.168.0.0/16"));
+    }
+
+    @Test
+    public void testOverlappingRoutes() {
+        /* The generic algorithm fails on this one: the split halves of the excluded network
+         * collide with the included networks */
+        NetworkSpace space = new NetworkSpace();
+        space.addIP(new CIDRIP("128.0.0.0", 1), false);
+        space.addIP(new CIDRIP("144.0.0.0", 4), true);
+        space.addIP(new CIDRIP("160.0.0.0", 3), true);
+
+        List<String> routes = new ArrayList<>();
+        for (NetworkSpace.IpAddress ip : space.getPositiveIPList())
+            routes.add(ip.toString());
+        Assert.assertEquals("[144.0.0.0/4, 160.0.0.0/3]", routes.toString());
+    }
+
+    @Test
+    public void testLongestPrefixMatch() {
+        Random random = new Random(23);
+        for (int round = 0; round < 50; round++) {
+            IPv4RouteSet routes = new IPv4RouteSet();
+            long[] networks = new long[200];
+            boolean[] included = new boolean[networks.length];
+            for (int i = 0; i < networks.length; i++) {
+                /* Few distinct high bits so that the networks overlap a lot */
+                long address = ((long) random.nextInt(4) << 30) | random.nextInt(1 << 30) & 0xfff0ff00L;
+                int prefix = random.nextInt(33);
+                networks[i] = IPv4RouteSet.pack(address, prefix);
+                included[i] = random.nextInt(3) != 0;
+                routes.add(address, prefix, included[i]);
+            }
+            long[] positive = routes.getPositiveRoutes();
+
+            for (long network : networks) {
+                long[] boundaries = {IPv4RouteSet.getAddress(network), IPv4RouteSet.getLastAddress(network)};
+                for (long boundary : boundaries) {
+                    for (long address = Math.max(0, boundary - 1); address <= Math.min(0xffffffffL, boundary + 1); address++)
+                        Assert.assertEquals("address " + address, mostSpecificIncluded(networks, included, address),
+                                contains(positive, address));
+                }
+            }
+        }
+    }
+
+    /* Included wins over excluded for the same network, like in IPv4RouteSet.add */
+    private static boolean mostSpecificIncluded(long[] networks, boolean[] included, long address) {
+        int bestPrefix = -1;
+        boolean result = false;
+        for (int i = 0; i < networks.length; i++) {
+            int prefix = IPv4RouteSet.getPrefix(networks[i]);
+            if (address < IPv4RouteSet.getAddress(networks[i]) || address > IPv4RouteSet.getLastAddress(networks[i]))
+                continue;
+            if (prefix > bestPrefix || (prefix == bestPrefix && included[i])) {
+                bestPrefix = prefix;
+                result = included[i];
+            }
+        }
+        return result;
+    }
+
+    private static boolean contains(long[] routes, long address) {
+        for (long route : routes)
+            if (address >= IPv4RouteSet.getAddress(route) && address <= IPv4RouteSet.getLastAddress(route))
+                return true;
+        return false;
+    }
+}
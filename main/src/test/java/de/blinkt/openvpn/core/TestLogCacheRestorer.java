@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class TestLogCacheRestorer {
+
+    private static List<LogItem> restore(List<LogItem> items, LogTemplates.IdTable writeTable,
+                                         LogTemplates.IdTable readTable, ExecutorService executor) throws IOException {
+        LogCacheRestorer restorer = new LogCacheRestorer(readTable, executor);
+        for (LogItem li : items) {
+            if (li.getTemplate() != null && writeTable.idOf(li.getTemplate()) < 0)
+                writeTable.add(li.getTemplate());
+            ByteBuffer bb = LogItem.getMarschalBuffer();
+            li.marschal(bb, writeTable);
+            restorer.onRecord(bb.array(), bb.position());
+        }
+        return restorer.finish();
+    }
+
+    @Test
+    public void testParallelInOrder() throws IOException {
+        List<LogItem> items = new ArrayList<>();
+        for (int i = 0; i < 5 * LogCacheRestorer.CHUNK_ITEMS + 3; i++)
+            items.add(new LogItem(VpnStatus.LogLevel.INFO, 3, "TCP/UDP: Preserving recently used remote address " + i, 1700000000000L + i));
+
+        LogTemplates.IdTable table = new LogTemplates.IdTable();
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            Assert.assertEquals(items, restore(items, table, table, executor));
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(items, restore(items, table, table, null));
+    }
+
+    @Test
+    public void testSkipsUnknownTemplates() throws IOException {
+        List<LogItem> items = new ArrayList<>();
+        /* Seen once before, so it becomes a template */
+        new LogItem(VpnStatus.LogLevel.INFO, 3, "Template that is not on disk 0", 0);
+        items.add(new LogItem(VpnStatus.LogLevel.INFO, 3, "Template that is not on disk 1", 1));
+        items.add(new LogItem(VpnStatus.LogLevel.ERROR, "plain message"));
+
+        List<LogItem> restored = restore(items, new LogTemplates.IdTable(), new LogTemplates.IdTable(), null);
+        Assert.assertEquals(1, restored.size());
+        Assert.assertEquals(items.get(1), restored.get(0));
+    }
+}
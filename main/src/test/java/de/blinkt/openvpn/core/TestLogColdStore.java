@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.List;
+
+public class TestLogColdStore {
+
+    private static LogItem createItem(int i) {
+        return new LogItem(VpnStatus.LogLevel.INFO, 3, "TLS: tls_process: state " + i + " bytes=" + (i * 17), 1700000000000L + i);
+    }
+
+    @Test
+    public void testMoveAndRead() {
+        LogRingBuffer hot = new LogRingBuffer(150);
+        LogColdStore cold = new LogColdStore(1024 * 1024);
+        for (int i = 0; i < 5000; i++) {
+            hot.add(createItem(i), false);
+            if (hot.size() >= 150)
+                cold.moveFrom(hot, 100);
+        }
+
+        Assert.assertTrue(cold.getStoredBytes() > 0);
+        LogItem[] all = cold.toArray(hot);
+        Assert.assertEquals(5000, all.length);
+        for (int i = 0; i < all.length; i++)
+            Assert.assertEquals(createItem(i), all[i]);
+    }
+
+    @Test
+    public void testIterate() {
+        LogRingBuffer hot = new LogRingBuffer(150);
+        LogColdStore cold = new LogColdStore(1024 * 1024);
+        for (int i = 0; i < 3000; i++) {
+            hot.add(createItem(i), false);
+            if (hot.size() >= 150)
+                cold.moveFrom(hot, 100);
+        }
+
+        Iterator<LogItem> it = cold.iterate(hot).iterator();
+        /* Items that are logged and moved later are not part of the iteration */
+        for (int i = 3000; i < 4000; i++) {
+            hot.add(createItem(i), false);
+            if (hot.size() >= 150)
+                cold.moveFrom(hot, 100);
+        }
+        int count = 0;
+        while (it.hasNext())
+            Assert.assertEquals(createItem(count++), it.next());
+        Assert.assertEquals(3000, count);
+
+        /* The iteration starts with the items of the moment iterator() is called */
+        Iterable<LogItem> items = cold.iterate(hot);
+        cold.clear();
+        hot.clear();
+        hot.add(createItem(5000), false);
+        count = 0;
+        for (LogItem li : items) {
+            Assert.assertEquals(createItem(5000), li);
+            count++;
+        }
+        Assert.assertEquals(1, count);
+    }
+
+    @Test
+    public void testOldestBlocksDropped() {
+        LogColdStore cold = new LogColdStore(16 * 1024);
+        LogItem[] items = new LogItem[20000];
+        for (int i = 0; i < items.length; i++)
+            items[i] = createItem(i);
+        cold.add(items);
+
+        Assert.assertTrue(cold.getStoredBytes() <= cold.getCapacity());
+        List<LogItem> kept = cold.toList();
+        Assert.assertEquals(cold.size(), kept.size());
+        Assert.assertTrue(kept.size() > 0 && kept.size() < items.length);
+        /* The newest items are kept and in order */
+        int first = items.length - kept.size();
+        for (int i = 0; i < kept.size(); i++)
+            Assert.assertEquals(items[first + i], kept.get(i));
+
+        cold.clear();
+        Assert.assertEquals(0, cold.toList().size());
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class TestLogExporter {
+
+    private static LogItem[] createItems(int count) {
+        LogItem[] items = new LogItem[count];
+        for (int i = 0; i < count; i++)
+            items[i] = new LogItem(VpnStatus.LogLevel.INFO, 3, "Data Channel: line " + i, 1700000000000L + i * 300L);
+        return items;
+    }
+
+    @Test
+    public void testParallelSameAsSequential() throws IOException {
+        LogItem[] items = createItems(5 * LogExporter.CHUNK_SIZE + 17);
+        LogExporter exporter = new LogExporter(null);
+
+        StringWriter sequential = new StringWriter();
+        Assert.assertEquals(items.length, exporter.write(items, sequential));
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        StringWriter parallel = new StringWriter();
+        try {
+            exporter.write(items, parallel, executor);
+        } finally {
+            executor.shutdown();
+        }
+
+        Assert.assertEquals(sequential.toString(), parallel.toString());
+        String[] lines = sequential.toString().split("\n");
+        Assert.assertEquals(items.length, lines.length);
+        Assert.assertEquals(exporter.format(items[42]), lines[42]);
+        Assert.assertTrue(lines[42].endsWith(" Data Channel: line 42"));
+    }
+
+    @Test
+    public void testWriteLogCache() throws IOException {
+        File cacheDir = Files.createTempDirectory("logexport").toFile();
+        File logcacheDir = new File(cacheDir, LogFileHandler.LOGCACHE_DIR);
+        LogSegmentStore store = new LogSegmentStore(logcacheDir);
+        store.open((buf, len) -> {
+        });
+        LogItem[] items = createItems(600);
+        for (LogItem li : items) {
+            ByteBuffer bb = LogItem.getMarschalBuffer();
+            li.marschal(bb);
+            store.append(bb.array(), bb.position());
+        }
+
+        LogExporter exporter = new LogExporter(null);
+        StringWriter fromCache = new StringWriter();
+        Assert.assertEquals(items.length, exporter.writeLogCache(cacheDir, fromCache, null));
+        StringWriter fromMemory = new StringWriter();
+        exporter.write(items, fromMemory);
+        Assert.assertEquals(fromMemory.toString(), fromCache.toString());
+
+        for (File f : logcacheDir.listFiles())
+            f.delete();
+        logcacheDir.delete();
+        cacheDir.delete();
+    }
+}
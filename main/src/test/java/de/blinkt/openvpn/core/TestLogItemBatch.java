@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TestLogItemBatch {
+
+    @Test
+    public void testEncodeDecode() throws UnsupportedEncodingException {
+        List<LogItem> items = Arrays.asList(
+                new LogItem(VpnStatus.LogLevel.DEBUG, 72, "foobar"),
+                new LogItem(VpnStatus.LogLevel.DEBUG, 72, 772, "sinnloser Text", 7723, 723.2f, 7.2),
+                new LogItem(VpnStatus.LogLevel.INFO, "Nutzlose Nachricht", 1234));
+
+        List<LogItem> decoded = LogItemBatch.decode(LogItemBatch.encode(items));
+        Assert.assertEquals(items, decoded);
+        Assert.assertEquals(1234, decoded.get(2).getLogtime());
+    }
+
+    @Test
+    public void testEmptyAndLongMessage() throws UnsupportedEncodingException {
+        Assert.assertTrue(LogItemBatch.decode(LogItemBatch.encode(new ArrayList<>())).isEmpty());
+
+        char[] huge = new char[LogItem.MAX_MARSCHALED_SIZE];
+        Arrays.fill(huge, 'x');
+        List<LogItem> items = Arrays.asList(
+                new LogItem(VpnStatus.LogLevel.INFO, new String(huge)),
+                new LogItem(VpnStatus.LogLevel.INFO, "small"));
+
+        /* Long messages are cut like in the log cache and do not disturb the following items */
+        List<LogItem> decoded = LogItemBatch.decode(LogItemBatch.encode(items));
+        Assert.assertEquals(2, decoded.size());
+        Assert.assertTrue(decoded.get(0).toString().endsWith("[too long]"));
+        Assert.assertEquals("small", decoded.get(1).toString());
+    }
+
+    @Test
+    public void testReusedMarschalBuffer() throws UnsupportedEncodingException {
+        LogItem[] items = {
+                new LogItem(VpnStatus.LogLevel.VERBOSE, 72, 772, "sinnloser Text", 7723, 723.2f, 7.2),
+                new LogItem(VpnStatus.LogLevel.DEBUG, 2, "TLS: soft reset sec=3600/3600 bytes=1234567/-1 pkts=4321/0"),
+                new LogItem(VpnStatus.LogLevel.INFO, "short"),
+                new LogItem(VpnStatus.LogLevel.INFO, "MANAGEMENT: CMD 'state on'")};
+
+        /* A shorter item after a longer one must not pick up bytes of the previous one */
+        for (LogItem li : items) {
+            ByteBuffer fresh = ByteBuffer.allocate(LogItem.MAX_MARSCHALED_SIZE);
+            li.marschal(fresh);
+            byte[] expected = Arrays.copyOf(fresh.array(), fresh.position());
+
+            Assert.assertArrayEquals(expected, li.getMarschaledBytes());
+            ByteBuffer reused = LogItem.getMarschalBuffer();
+            Assert.assertEquals(0, reused.position());
+            li.marschal(reused);
+            Assert.assertArrayEquals(expected, Arrays.copyOf(reused.array(), reused.position()));
+        }
+    }
+}
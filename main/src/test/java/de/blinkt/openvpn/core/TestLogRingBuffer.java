@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TestLogRingBuffer {
+
+    private static LogItem item(long time) {
+        return new LogItem(VpnStatus.LogLevel.INFO, "item " + time, time);
+    }
+
+    private static void assertOrdered(LogItem[] items) {
+        for (int i = 1; i < items.length; i++)
+            Assert.assertTrue(items[i - 1].getLogtime() <= items[i].getLogtime());
+    }
+
+    @Test
+    public void testOrderedInsert() {
+        LogRingBuffer buffer = new LogRingBuffer(16);
+        long[] times = {1000, 20000, 1500, 500, 6000, 70000, 500, 1000};
+        for (long time : times)
+            buffer.add(item(time), false);
+
+        LogItem[] items = buffer.toArray();
+        Assert.assertEquals(times.length, items.length);
+        assertOrdered(items);
+        Assert.assertEquals(500, items[0].getLogtime());
+        Assert.assertEquals(70000, items[items.length - 1].getLogtime());
+    }
+
+    @Test
+    public void testEnforceUnique() {
+        LogRingBuffer buffer = new LogRingBuffer(16);
+        Assert.assertTrue(buffer.add(item(1000), true));
+        Assert.assertTrue(buffer.add(item(2000), true));
+        Assert.assertFalse(buffer.add(item(1000), true));
+        Assert.assertFalse(buffer.add(item(2000), true));
+        Assert.assertTrue(buffer.add(item(2000), false));
+        Assert.assertEquals(3, buffer.size());
+    }
+
+    @Test
+    public void testTrimAndWrap() {
+        LogRingBuffer buffer = new LogRingBuffer(8);
+        for (int i = 0; i < 100; i++) {
+            buffer.add(item(i), false);
+            if (buffer.size() >= 6)
+                Assert.assertTrue(buffer.trimTo(4));
+        }
+        LogItem[] items = buffer.toArray();
+        Assert.assertTrue(items.length >= 4 && items.length < 6);
+        for (int i = 0; i < items.length; i++)
+            Assert.assertEquals(100 - items.length + i, items[i].getLogtime());
+
+        /* A full buffer drops the oldest item */
+        for (int i = 100; i < 130; i++)
+            buffer.add(item(i), false);
+        Assert.assertEquals(buffer.capacity(), buffer.size());
+        Assert.assertEquals(130 - buffer.capacity(), buffer.toArray()[0].getLogtime());
+    }
+
+    @Test
+    public void testFullBufferOlderItem() {
+        LogRingBuffer buffer = new LogRingBuffer(8);
+        for (int i = 10; i < 10 + buffer.capacity(); i++)
+            Assert.assertTrue(buffer.add(item(i), false));
+        LogItem[] before = buffer.toArray();
+
+        /* Older than everything retained, the buffer stays as it is */
+        Assert.assertFalse(buffer.add(item(5), false));
+        Assert.assertArrayEquals(before, buffer.toArray());
+
+        /* Between the oldest and the next item, replaces the oldest */
+        Assert.assertTrue(buffer.add(item(10), false));
+        LogItem[] items = buffer.toArray();
+        Assert.assertEquals(buffer.capacity(), items.length);
+        Assert.assertEquals(10, items[0].getLogtime());
+        Assert.assertEquals(11, items[1].getLogtime());
+        assertOrdered(items);
+    }
+
+    @Test
+    public void testSnapshotSinceCursor() {
+        LogRingBuffer buffer = new LogRingBuffer(16);
+        buffer.add(item(1), false);
+        buffer.add(item(2), false);
+        LogRingBuffer.Snapshot first = buffer.snapshot();
+        Assert.assertEquals(2, first.size());
+
+        buffer.add(item(3), false);
+        buffer.add(item(4), false);
+        LogRingBuffer.Snapshot next = buffer.snapshotSince(first.getCursor());
+        Assert.assertEquals(2, next.size());
+        Assert.assertEquals(3, next.get(0).getLogtime());
+        Assert.assertEquals(0, buffer.snapshotSince(next.getCursor()).size());
+
+        buffer.clear();
+        Assert.assertEquals(0, buffer.snapshot().size());
+        Assert.assertEquals(0, buffer.snapshotSince(first.getCursor()).size());
+    }
+
+    @Test
+    public void testConcurrentReaders() throws Exception {
+        final LogRingBuffer buffer = new LogRingBuffer(64);
+        final AtomicReference<String> failure = new AtomicReference<>();
+        final int items = 200000;
+
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < items; i++) {
+                /* Every fourth item is older than the newest one and has to be inserted */
+                long time = (i % 4 == 3) ? i - 2 : i;
+                buffer.add(item(time), false);
+                if (buffer.size() >= 48)
+                    buffer.trimTo(32);
+            }
+        });
+        Thread reader = new Thread(() -> {
+            while (writer.isAlive()) {
+                LogItem[] snapshot = buffer.toArray();
+                for (int i = 0; i < snapshot.length; i++) {
+                    if (snapshot[i] == null || (i > 0 && snapshot[i - 1].getLogtime() > snapshot[i].getLogtime())) {
+                        failure.set("Inconsistent snapshot at " + i);
+                        return;
+                    }
+                }
+            }
+        });
+        writer.start();
+        reader.start();
+        writer.join();
+        reader.join();
+        Assert.assertNull(failure.get());
+        assertOrdered(buffer.toArray());
+    }
+
+    @Test
+    public void testQueryPages() {
+        LogRingBuffer buffer = new LogRingBuffer(1024);
+        /* Wrap around the ring a few times so the level index sees reused slots */
+        for (int i = 0; i < 3000; i++) {
+            VpnStatus.LogLevel level = i % 100 == 0 ? VpnStatus.LogLevel.ERROR : VpnStatus.LogLevel.INFO;
+            buffer.add(new LogItem(level, "item " + i, i), false);
+            buffer.trimTo(1000);
+        }
+
+        LogQuery errors = new LogQuery().setLevels(VpnStatus.LogLevel.ERROR);
+        LogQuery.Page page = buffer.query(errors, Long.MIN_VALUE, 4);
+        Assert.assertEquals(4, page.getItems().size());
+        Assert.assertEquals(2000, page.getItems().get(0).getLogtime());
+        Assert.assertTrue(page.hasMore());
+
+        int found = page.getItems().size();
+        while (page.hasMore()) {
+            page = buffer.query(errors, page.getNextCursor(), 4);
+            found += page.getItems().size();
+        }
+        Assert.assertEquals(10, found);
+
+        LogQuery range = new LogQuery().setTimeRange(2500, 2599).setText("ITEM 255", null);
+        page = buffer.query(range, Long.MIN_VALUE, 100);
+        Assert.assertEquals(10, page.getItems().size());
+        Assert.assertEquals(2550, page.getItems().get(0).getLogtime());
+        Assert.assertEquals(2559, page.getItems().get(9).getLogtime());
+        Assert.assertFalse(page.hasMore());
+
+        /* A rare text is searched in chunks, the lock is not held for the whole buffer */
+        page = buffer.query(new LogQuery().setText("item 2001", null), Long.MIN_VALUE, 100);
+        Assert.assertEquals(1, page.getItems().size());
+        Assert.assertEquals(2001, page.getItems().get(0).getLogtime());
+        Assert.assertFalse(page.hasMore());
+        page = buffer.query(new LogQuery().setText("item 2999", null), Long.MIN_VALUE, 1);
+        Assert.assertEquals(2999, page.getItems().get(0).getLogtime());
+        Assert.assertFalse(page.hasMore());
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestLogSegmentStore {
+    private static final int SEGMENT_SIZE = 256;
+
+    private File dir;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("logstore").toFile();
+    }
+
+    @After
+    public void cleanup() {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File f : files)
+                f.delete();
+        dir.delete();
+    }
+
+    private List<String> reopen() throws IOException {
+        final List<String> records = new ArrayList<>();
+        new LogSegmentStore(dir, SEGMENT_SIZE).open((buf, len) -> records.add(new String(buf, 0, len, StandardCharsets.UTF_8)));
+        return records;
+    }
+
+    private static void append(LogSegmentStore store, String record) throws IOException {
+        byte[] data = record.getBytes(StandardCharsets.UTF_8);
+        store.append(data, data.length);
+    }
+
+    @Test
+    public void testAppendAndReopen() throws IOException {
+        LogSegmentStore store = new LogSegmentStore(dir, SEGMENT_SIZE);
+        Assert.assertEquals(0, store.open((buf, len) -> Assert.fail("empty store")));
+        for (int i = 0; i < 20; i++)
+            append(store, "record " + i);
+        Assert.assertTrue(store.getSegmentCount() > 1);
+
+        List<String> records = reopen();
+        Assert.assertEquals(20, records.size());
+        Assert.assertEquals("record 0", records.get(0));
+        Assert.assertEquals("record 19", records.get(19));
+    }
+
+    @Test
+    public void testTrimDropsWholeSegments() throws IOException {
+        LogSegmentStore store = new LogSegmentStore(dir, SEGMENT_SIZE);
+        store.open((buf, len) -> {
+        });
+        for (int i = 0; i < 100; i++)
+            append(store, "record " + i);
+
+        int dropped = store.trim(30);
+        Assert.assertTrue(dropped > 0);
+        Assert.assertTrue(store.getItemCount() >= 30);
+        Assert.assertEquals(100 - dropped, store.getItemCount());
+
+        List<String> records = reopen();
+        Assert.assertEquals(store.getItemCount(), records.size());
+        Assert.assertEquals("record 99", records.get(records.size() - 1));
+    }
+
+    @Test
+    public void testTrimMovesHeadAndCompact() throws IOException {
+        LogSegmentStore store = new LogSegmentStore(dir, SEGMENT_SIZE);
+        store.open((buf, len) -> {
+        });
+        for (int i = 0; i < 100; i++)
+            append(store, "record " + i);
+
+        Assert.assertEquals(70, store.trim(30));
+        Assert.assertEquals(30, store.getItemCount());
+        List<String> records = reopen();
+        Assert.assertEquals(30, records.size());
+        Assert.assertEquals("record 70", records.get(0));
+
+        Assert.assertTrue(store.needsCompaction());
+        Assert.assertTrue(store.compact());
+        Assert.assertFalse(store.needsCompaction());
+        Assert.assertEquals(records, reopen());
+
+        /* Appending after the compaction continues in the last segment */
+        append(store, "record 100");
+        records = reopen();
+        Assert.assertEquals(31, records.size());
+        Assert.assertEquals("record 100", records.get(30));
+    }
+
+    @Test
+    public void testTornRecordIsIgnored() throws IOException {
+        LogSegmentStore store = new LogSegmentStore(dir, SEGMENT_SIZE);
+        store.open((buf, len) -> {
+        });
+        append(store, "first");
+        append(store, "second");
+
+        /* Corrupt the data of the second record like an interrupted write */
+        File segment = dir.listFiles()[0];
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(8 + 5 + 8);
+            raf.write('X');
+        }
+
+        List<String> records = reopen();
+        Assert.assertEquals(1, records.size());
+        Assert.assertEquals("first", records.get(0));
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+public class TestLogTemplates {
+
+    /* A message only becomes a template when it is seen the second time */
+    private static LogTemplates.Parsed parseAgain(String message) {
+        LogTemplates.parse(message);
+        return LogTemplates.parse(message);
+    }
+
+    private static String roundTrip(String message) {
+        LogTemplates.Parsed parsed = parseAgain(message);
+        Assert.assertNotNull(parsed);
+        return parsed.template.format(parsed.params, parsed.words);
+    }
+
+    @Test
+    public void testParse() {
+        LogTemplates.Parsed first = parseAgain("TLS: soft reset sec=3600/3600 bytes=1234567/-1 pkts=4321/0");
+        LogTemplates.Parsed second = LogTemplates.parse("TLS: soft reset sec=7200/3600 bytes=7654321/-1 pkts=1/0");
+        Assert.assertSame(first.template, second.template);
+        Assert.assertArrayEquals(new long[]{3600, 3600, 1234567, 1, 4321, 0}, first.params);
+
+        for (String message : new String[]{
+                "MANAGEMENT: CMD 'state on'",
+                "Data Channel: cipher 'AES-256-GCM', peer-id: 0",
+                "leading zeros 007 and 00",
+                "long number 12345678901234567890123",
+                "10.8.0.2/255.255.255.0 fe80::1",
+                "42"})
+            Assert.assertEquals(message, roundTrip(message));
+    }
+
+    @Test
+    public void testWords() {
+        LogTemplates.Parsed first = parseAgain("TLS: Initial packet from [AF_INET6]2001:db8::1, sid=8d3c1a2b 4f5e6d7c");
+        LogTemplates.Parsed second = LogTemplates.parse("TLS: Initial packet from [AF_INET6]fe80::2, sid=00aa11bb cc22dd33");
+        Assert.assertNotNull(second);
+        Assert.assertSame(first.template, second.template);
+        Assert.assertArrayEquals(new String[]{"2001:db8::1", "8d3c1a2b", "4f5e6d7c"}, first.words);
+
+        first = parseAgain("Resolving vpn.example.com:1194 as udp");
+        second = LogTemplates.parse("Resolving other.example.org:443 as udp");
+        Assert.assertSame(first.template, second.template);
+        Assert.assertArrayEquals(new long[]{1194}, first.params);
+        Assert.assertArrayEquals(new String[]{"vpn.example.com"}, first.words);
+
+        /* English words, cipher names and IPv4 addresses are not words */
+        Assert.assertNull(parseAgain("Data Channel: cipher 'AES-256-GCM', added 10.8.0.2 e.g. deadbeef.").words);
+
+        for (String message : new String[]{
+                "TLS: Initial packet from [AF_INET6]2001:db8::1, sid=8d3c1a2b 4f5e6d7c",
+                "Resolving vpn.example.com:1194 as udp.",
+                "Peer MAC aa:bb:cc:00:11:22 at 12:30:00"})
+            Assert.assertEquals(message, roundTrip(message));
+    }
+
+    @Test
+    public void testOneOffMessagesDoNotFillTheDictionary() {
+        int before = LogTemplates.size();
+        for (int i = 0; i < 10000; i++) {
+            /* Only letters, so every message has its own key */
+            StringBuilder id = new StringBuilder();
+            for (int n = i; n > 0 || id.length() == 0; n /= 26)
+                id.append((char) ('a' + n % 26));
+            Assert.assertNull(LogTemplates.parse("one-off message " + id));
+        }
+        Assert.assertEquals(before, LogTemplates.size());
+    }
+
+    @Test
+    public void testTemplatedItemsInTable() throws UnsupportedEncodingException {
+        new LogItem(VpnStatus.LogLevel.INFO, 3, "Outgoing Data Channel: Cipher 'AES-256-GCM' initialized with 256 bit key", 1234);
+        LogItem li = new LogItem(VpnStatus.LogLevel.INFO, 3, "Outgoing Data Channel: Cipher 'AES-256-GCM' initialized with 256 bit key", 1234);
+        Assert.assertNotNull(li.getTemplate());
+
+        LogTemplates.IdTable table = new LogTemplates.IdTable();
+        table.add(li.getTemplate());
+        ByteBuffer bb = LogItem.getMarschalBuffer();
+        li.marschal(bb, table);
+        int templatedLength = bb.position();
+        Assert.assertTrue(templatedLength < li.getMarschaledBytes().length);
+
+        bb.flip();
+        LogItem decoded = new LogItem(bb, table);
+        Assert.assertEquals(li, decoded);
+        Assert.assertEquals(li.toString(), decoded.toString());
+    }
+
+    @Test
+    public void testEqualsWithTemplates() throws UnsupportedEncodingException {
+        String message = "TLS: soft reset sec=3600/3600 bytes=1234567/-1 pkts=4321/0";
+        new LogItem(VpnStatus.LogLevel.INFO, 2, message, 1000);
+        LogItem li = new LogItem(VpnStatus.LogLevel.INFO, 2, message, 1000);
+        Assert.assertNotNull(li.getTemplate());
+        Assert.assertEquals(li, new LogItem(VpnStatus.LogLevel.INFO, 2, message, 1000));
+        Assert.assertNotEquals(li, new LogItem(VpnStatus.LogLevel.INFO, 2, message.replace("4321", "4322"), 1000));
+        Assert.assertNotEquals(li, new LogItem(VpnStatus.LogLevel.INFO, 2, message, 1001));
+        Assert.assertNotEquals(li, new LogItem(VpnStatus.LogLevel.INFO, 2, "Initialization Sequence Completed", 1000));
+
+        /* Compared by template key and parameters, not by the formatted message */
+        LogItem copy = new LogItem(ByteBuffer.wrap(li.getMarschaledBytes()));
+        Assert.assertEquals(li.getTemplate(), copy.getTemplate());
+        Assert.assertEquals(li, copy);
+    }
+
+    @Test
+    public void testBatchWithTemplates() throws UnsupportedEncodingException {
+        List<LogItem> items = Arrays.asList(
+                new LogItem(VpnStatus.LogLevel.INFO, 1, "Initialization Sequence Completed", 1),
+                new LogItem(VpnStatus.LogLevel.INFO, 3, "PUSH: Received control message: 'PUSH_REPLY,ping 10,ping-restart 120'", 2),
+                new LogItem(VpnStatus.LogLevel.INFO, 3, "PUSH: Received control message: 'PUSH_REPLY,ping 20,ping-restart 60'", 3),
+                new LogItem(VpnStatus.LogLevel.INFO, 3, "Peer Connection Initiated with [AF_INET6]2001:db8::1 at vpn.example.com", 4),
+                new LogItem(VpnStatus.LogLevel.INFO, 3, "Peer Connection Initiated with [AF_INET6]fe80::2 at vpn.example.org", 5),
+                new LogItem(VpnStatus.LogLevel.ERROR, "not from OpenVPN 42"));
+        Assert.assertNotNull(items.get(4).getTemplate());
+
+        Assert.assertEquals(items, LogItemBatch.decode(LogItemBatch.encode(items)));
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TestLogTransfer {
+
+    private static byte[] write(LogItem[] items) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LogTransfer.write(items, Channels.newChannel(out));
+        return out.toByteArray();
+    }
+
+    private static List<LogItem> read(byte[] stream) throws IOException {
+        LogTransfer.Reader reader = new LogTransfer.Reader(Channels.newChannel(new ByteArrayInputStream(stream)));
+        List<LogItem> items = new ArrayList<>();
+        List<LogItem> frame;
+        try {
+            while ((frame = reader.readFrame()) != null)
+                items.addAll(frame);
+        } finally {
+            reader.close();
+        }
+        return items;
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        LogItem[] items = new LogItem[3 * LogTransfer.FRAME_ITEMS + 5];
+        for (int i = 0; i < items.length; i++) {
+            if (i % 10 == 0)
+                items[i] = new LogItem(VpnStatus.LogLevel.WARNING, "no template " + i);
+            else
+                items[i] = new LogItem(VpnStatus.LogLevel.INFO, 3, "Data Channel: packet " + i, 1700000000000L + i);
+        }
+
+        byte[] stream = write(items);
+        Assert.assertEquals(Arrays.asList(items), read(stream));
+
+        /* Repeated messages are compressed */
+        int marschaled = 0;
+        for (LogItem li : items)
+            marschaled += li.getMarschaledBytes().length;
+        Assert.assertTrue(stream.length < marschaled / 2);
+
+        Assert.assertTrue(read(write(new LogItem[0])).isEmpty());
+    }
+
+    @Test
+    public void testTruncatedStream() throws IOException {
+        LogItem[] items = {new LogItem(VpnStatus.LogLevel.INFO, "only item")};
+        byte[] stream = write(items);
+        try {
+            read(Arrays.copyOf(stream, stream.length - 3));
+            Assert.fail("truncated stream read");
+        } catch (IOException expected) {
+            // The listener falls back to fetching the log in batches
+        }
+    }
+}
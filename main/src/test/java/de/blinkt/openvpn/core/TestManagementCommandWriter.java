@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import de.blinkt.openvpn.core.ManagementMessage.Type;
+
+public class TestManagementCommandWriter {
+
+    /* Records every write as a separate chunk */
+    static class RecordingOutputStream extends ByteArrayOutputStream {
+        final List<String> writes = new ArrayList<>();
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            super.write(b, off, len);
+            writes.add(new String(b, off, len, StandardCharsets.UTF_8));
+            notifyAll();
+        }
+
+        synchronized void waitForWrites(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (writes.size() < count && System.currentTimeMillis() < deadline)
+                wait(100);
+        }
+    }
+
+    private RecordingOutputStream out;
+    private ManagementCommandWriter writer;
+
+    @Before
+    public void setup() {
+        out = new RecordingOutputStream();
+        writer = new ManagementCommandWriter(out, null);
+    }
+
+    @After
+    public void teardown() {
+        writer.stop();
+    }
+
+    @Test
+    public void testCoalescedWrite() throws Exception {
+        ManagementCommand release = new ManagementCommand("hold release\n");
+        ManagementCommand bytecount = new ManagementCommand("bytecount 2\n");
+        ManagementCommand version = new ManagementCommand("version 3\n");
+        Assert.assertTrue(writer.submit(release, bytecount, version));
+        writer.start();
+
+        out.waitForWrites(1);
+        Assert.assertEquals(1, out.writes.size());
+        Assert.assertEquals("hold release\nbytecount 2\nversion 3\n", out.writes.get(0));
+
+        /* version 3 is not answered by OpenVPN */
+        Assert.assertTrue(version.isDone());
+        Assert.assertEquals(2, writer.getPendingReplyCount());
+
+        Assert.assertTrue(writer.onReply(Type.SUCCESS, "SUCCESS: hold release succeeded"));
+        Assert.assertTrue(writer.onReply(Type.ERROR, "ERROR: bytecount failed"));
+        Assert.assertEquals("SUCCESS: hold release succeeded", release.get(1, TimeUnit.SECONDS));
+        try {
+            bytecount.get(1, TimeUnit.SECONDS);
+            Assert.fail("Expected the ERROR reply");
+        } catch (ExecutionException e) {
+            Assert.assertEquals("ERROR: bytecount failed", e.getCause().getMessage());
+        }
+        Assert.assertFalse(writer.onReply(Type.SUCCESS, "SUCCESS: unexpected"));
+    }
+
+    @Test
+    public void testNetworkChangeRestart() throws Exception {
+        writer.start();
+        ManagementCommand networkChange = new ManagementCommand("network-change\n");
+        ManagementCommand state = new ManagementCommand("state on\n");
+        writer.submit(networkChange);
+        writer.submit(state);
+        out.waitForWrites(2);
+
+        Assert.assertFalse(writer.onReply(Type.SUCCESS, "SUCCESS: out of order"));
+        Assert.assertTrue(writer.onReply(Type.PROTECTFD, "PROTECTFD: fd '-2' sent to be protected"));
+        Assert.assertTrue(networkChange.isDone());
+
+        /* The SIGUSR1 that OpenVPN throws itself must not be assigned to the next command */
+        Assert.assertTrue(writer.onReply(Type.SUCCESS, "SUCCESS: signal SIGUSR1 thrown"));
+        Assert.assertFalse(state.isDone());
+        Assert.assertTrue(writer.onReply(Type.SUCCESS, "SUCCESS: real-time state notification set to ON"));
+        Assert.assertEquals("SUCCESS: real-time state notification set to ON", state.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testMultiLineReplies() throws Exception {
+        writer.start();
+        ManagementCommand state = new ManagementCommand("state\n");
+        ManagementCommand stateOnAll = new ManagementCommand("state on all\n");
+        ManagementCommand bytecount = new ManagementCommand("bytecount 2\n");
+        final String[] callbackReply = new String[1];
+        bytecount.setCallback(reply -> {
+            try {
+                callbackReply[0] = reply.get();
+            } catch (Exception e) {
+                callbackReply[0] = e.toString();
+            }
+        });
+        writer.submit(state, stateOnAll, bytecount);
+        out.waitForWrites(1);
+
+        Assert.assertTrue(writer.onReply(Type.UNKNOWN, "1700000000,CONNECTED,SUCCESS,10.8.0.2,1.2.3.4,1194,,"));
+        Assert.assertTrue(writer.onReply(Type.UNKNOWN, "END"));
+        Assert.assertEquals("1700000000,CONNECTED,SUCCESS,10.8.0.2,1.2.3.4,1194,,", state.get(1, TimeUnit.SECONDS));
+        Assert.assertTrue(state.getLatencyNanos() >= 0);
+
+        Assert.assertTrue(writer.onReply(Type.SUCCESS, "SUCCESS: real-time state notification set to ON"));
+        Assert.assertFalse(stateOnAll.isDone());
+        Assert.assertTrue(writer.onReply(Type.UNKNOWN, "1700000000,CONNECTING,,,,,,"));
+        Assert.assertTrue(writer.onReply(Type.UNKNOWN, "1700000001,WAIT,,,,,,"));
+        Assert.assertTrue(writer.onReply(Type.UNKNOWN, "END"));
+        Assert.assertEquals("1700000000,CONNECTING,,,,,,\n1700000001,WAIT,,,,,,", stateOnAll.get(1, TimeUnit.SECONDS));
+
+        /* bytecount only gets a SUCCESS: line */
+        Assert.assertFalse(writer.onReply(Type.UNKNOWN, "garbage"));
+        Assert.assertTrue(writer.onReply(Type.SUCCESS, "SUCCESS: bytecount interval changed"));
+        Assert.assertEquals("SUCCESS: bytecount interval changed", callbackReply[0]);
+    }
+
+    @Test
+    public void testExpectedReply() {
+        Assert.assertEquals(ManagementCommand.ReplyType.NONE, ManagementCommand.expectedReply("version 3\n"));
+        Assert.assertEquals(ManagementCommand.ReplyType.SUCCESS, ManagementCommand.expectedReply("version 4\n"));
+        Assert.assertEquals(ManagementCommand.ReplyType.END, ManagementCommand.expectedReply("status 3\n"));
+        Assert.assertEquals(ManagementCommand.ReplyType.END, ManagementCommand.expectedReply("log 20\n"));
+        Assert.assertEquals(ManagementCommand.ReplyType.SUCCESS, ManagementCommand.expectedReply("state on\n"));
+        Assert.assertEquals(ManagementCommand.ReplyType.SUCCESS, ManagementCommand.expectedReply("signal SIGUSR1\n"));
+        Assert.assertEquals(ManagementCommand.ReplyType.PROTECTFD, ManagementCommand.expectedReply("network-change samenetwork\n"));
+    }
+
+    @Test
+    public void testStopFailsPending() throws Exception {
+        ManagementCommand cmd = new ManagementCommand("signal SIGUSR1\n");
+        writer.submit(cmd);
+        writer.stop();
+        Assert.assertTrue(cmd.isDone());
+        Assert.assertFalse(writer.submit(new ManagementCommand("state on\n")));
+        try {
+            cmd.get();
+            Assert.fail("Expected failed command");
+        } catch (ExecutionException expected) {
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestManagementLineReader {
+
+    private List<String> lines;
+    private ManagementLineReader reader;
+
+    @Before
+    public void setup() {
+        lines = new ArrayList<>();
+        reader = new ManagementLineReader(line -> lines.add(line.toString()), 16);
+    }
+
+    private void feed(String s) {
+        byte[] data = s.getBytes(StandardCharsets.UTF_8);
+        reader.append(data, 0, data.length);
+        reader.dispatchLines();
+    }
+
+    @Test
+    public void testSplitLines() {
+        feed(">STATE:1234,CONN");
+        Assert.assertEquals(0, lines.size());
+        feed("ECTED\r\n>BYTECOUNT:1,2\n>HOLD:");
+        Assert.assertEquals(2, lines.size());
+        Assert.assertEquals(">STATE:1234,CONNECTED", lines.get(0));
+        Assert.assertEquals(">BYTECOUNT:1,2", lines.get(1));
+        Assert.assertEquals(6, reader.pendingBytes());
+        feed("Waiting for hold release\n");
+        Assert.assertEquals(">HOLD:Waiting for hold release", lines.get(2));
+        Assert.assertEquals(0, reader.pendingBytes());
+    }
+
+    @Test
+    public void testUtf8SplitBetweenReads() {
+        byte[] data = ">LOG:1,I,Gr\u00fc\u00dfe\n".getBytes(StandardCharsets.UTF_8);
+        /* Split in the middle of the two byte u-umlaut */
+        int split = ">LOG:1,I,Gr".length() + 1;
+        reader.append(data, 0, split);
+        reader.dispatchLines();
+        reader.append(data, split, data.length - split);
+        reader.dispatchLines();
+        Assert.assertEquals(">LOG:1,I,Gr\u00fc\u00dfe", lines.get(0));
+    }
+
+    @Test
+    public void testLongLineGrowsBuffer() throws IOException {
+        StringBuilder longLine = new StringBuilder(">INFO:");
+        for (int i = 0; i < 200; i++)
+            longLine.append(i % 10);
+
+        ByteArrayInputStream in = new ByteArrayInputStream((longLine + "\nEND\n").getBytes(StandardCharsets.UTF_8));
+        while (reader.readFrom(in) > 0)
+            reader.dispatchLines();
+
+        Assert.assertEquals(2, lines.size());
+        Assert.assertEquals(longLine.toString(), lines.get(0));
+        Assert.assertEquals("END", lines.get(1));
+    }
+
+    @Test
+    public void testParseNumbers() {
+        byte[] data = "123,-42,9223372036854775807".getBytes(StandardCharsets.US_ASCII);
+        ManagementLine line = new ManagementLine(data, 0, data.length);
+        Assert.assertEquals(123, line.parseLong(0, 3));
+        Assert.assertEquals(-42, line.parseInt(4, 7));
+        Assert.assertEquals(Long.MAX_VALUE, line.parseLong(8, line.length()));
+        Assert.assertEquals(3, line.indexOf(',', 0));
+        Assert.assertTrue(line.regionMatches(4, "-42"));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testParseInvalidNumber() {
+        byte[] data = "12a".getBytes(StandardCharsets.US_ASCII);
+        new ManagementLine(data, 0, data.length).parseLong(0, 3);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import de.blinkt.openvpn.core.ManagementMessage.Type;
+
+public class TestManagementMessage {
+
+    private final ManagementMessage message = new ManagementMessage();
+
+    private Type parse(String s) {
+        byte[] data = s.getBytes(StandardCharsets.UTF_8);
+        return message.parse(new ManagementLine(data, 0, data.length));
+    }
+
+    @Test
+    public void testTypes() {
+        Assert.assertEquals(Type.INFO, parse(">INFO:OpenVPN Management Interface Version 5"));
+        Assert.assertEquals(Type.INFOMSG, parse(">INFOMSG:WEB_AUTH::https://example.com"));
+        Assert.assertEquals("WEB_AUTH::https://example.com", message.getArgument());
+        Assert.assertEquals(Type.NEED_OK, parse(">NEED-OK:Need 'IFCONFIG' confirmation MSG:10.8.0.2 255.255.255.0 1500 net30"));
+        Assert.assertEquals(Type.SUCCESS, parse("SUCCESS: hold release succeeded"));
+        Assert.assertEquals(Type.PROTECTFD, parse("PROTECTFD: fd '12' sent to be protected"));
+        Assert.assertEquals(Type.UNKNOWN_NOTIFICATION, parse(">INFOX:foo"));
+        Assert.assertEquals("foo", message.getArgument());
+        Assert.assertEquals(Type.UNKNOWN_NOTIFICATION, parse(">BYTECOUNT_CLI:1,2,3"));
+        Assert.assertEquals(Type.UNKNOWN, parse(">LOG"));
+        Assert.assertEquals(Type.UNKNOWN, parse("END"));
+        Assert.assertEquals(Type.UNKNOWN, parse(""));
+    }
+
+    @Test
+    public void testLogFields() {
+        Assert.assertEquals(Type.LOG, parse(">LOG:1700000000,W,3,Warning, with a comma"));
+        Assert.assertEquals(4, message.getFieldCount());
+        Assert.assertEquals(1700000000L, message.getFieldLong(0));
+        Assert.assertEquals('W', message.getFieldChar(1, 0));
+        Assert.assertEquals(3, message.getFieldInt(2));
+        Assert.assertEquals("Warning, with a comma", message.getField(3));
+    }
+
+    @Test
+    public void testStateAndByteCount() {
+        Assert.assertEquals(Type.STATE, parse(">STATE:1700000000,CONNECTED,SUCCESS,10.8.0.2,1.2.3.4,1194,,"));
+        Assert.assertEquals("CONNECTED", message.getField(1));
+        Assert.assertTrue(message.fieldStartsWith(2, "SUCCESS,"));
+        Assert.assertEquals("SUCCESS,10.8.0.2,1.2.3.4,1194,,", message.getField(2));
+
+        Assert.assertEquals(Type.STATE, parse(">STATE:1700000000,WAIT,,,"));
+        Assert.assertTrue(message.fieldEquals(2, ",,"));
+
+        Assert.assertEquals(Type.BYTECOUNT, parse(">BYTECOUNT:123456789012,42"));
+        Assert.assertEquals(2, message.getFieldCount());
+        Assert.assertEquals(123456789012L, message.getFieldLong(0));
+        Assert.assertEquals(42L, message.getFieldLong(1));
+    }
+
+    @Test
+    public void testByteCountReusesLineAndMessage() {
+        List<ManagementLine> seen = new ArrayList<>();
+        List<Long> counts = new ArrayList<>();
+        ManagementLineReader reader = new ManagementLineReader(line -> {
+            seen.add(line);
+            if (message.parse(line) == Type.BYTECOUNT) {
+                counts.add(message.getFieldLong(0));
+                counts.add(message.getFieldLong(1));
+            }
+        }, 16);
+
+        byte[] data = ">LOG:1700000000,I,3,four fields\n>BYTECOUNT:1,2\n>BYTECOUNT:300,4000\n"
+                .getBytes(StandardCharsets.US_ASCII);
+        reader.append(data, 0, data.length);
+        reader.dispatchLines();
+
+        /* Every line is handed over in the same line object and parsed into the same message,
+         * the fields of the longer LOG line do not leak into the byte counts */
+        Assert.assertEquals(3, seen.size());
+        Assert.assertSame(seen.get(0), seen.get(2));
+        Assert.assertEquals(2, message.getFieldCount());
+        Assert.assertEquals(Arrays.asList(1L, 2L, 300L, 4000L), counts);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testMissingField() {
+        parse(">BYTECOUNT:123");
+        message.getFieldLong(1);
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.content.Intent;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+public class TestStatusEventBus {
+
+    /* Runs the submitted subscriptions only when the test asks for it, like a stalled consumer */
+    static class ManualExecutor implements Executor {
+        final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable command) {
+            queue.add(command);
+        }
+
+        void runAll() {
+            Runnable r;
+            while ((r = queue.poll()) != null)
+                r.run();
+        }
+    }
+
+    private ManualExecutor executor;
+    private StatusEventBus bus;
+
+    @Before
+    public void setup() {
+        executor = new ManualExecutor();
+        bus = new StatusEventBus(executor);
+    }
+
+    @Test
+    public void testByteCountLatestWins() {
+        final List<long[]> received = new ArrayList<>();
+        VpnStatus.ByteCountListener listener = (in, out, diffIn, diffOut) -> received.add(new long[]{in, out, diffIn, diffOut});
+        bus.subscribe(listener, executor);
+
+        bus.publishByteCount(100, 10, 100, 10);
+        bus.publishByteCount(250, 30, 150, 20);
+        bus.publishByteCount(300, 60, 50, 30);
+        /* Only one run is submitted for all three updates */
+        Assert.assertEquals(1, executor.queue.size());
+        executor.runAll();
+
+        Assert.assertEquals(1, received.size());
+        Assert.assertArrayEquals(new long[]{300, 60, 300, 60}, received.get(0));
+
+        StatusEventBus.ListenerStats stats = bus.getStats().get(0);
+        Assert.assertEquals("bytecount", stats.getEventType());
+        Assert.assertEquals(2, stats.getCoalesced());
+        Assert.assertEquals(1, stats.getDelivered());
+        Assert.assertEquals(0, stats.getQueueDepth());
+    }
+
+    @Test
+    public void testStateLatestWins() {
+        final List<String> received = new ArrayList<>();
+        bus.subscribe(new VpnStatus.StateListener() {
+            @Override
+            public void updateState(String state, String logmessage, int localizedResId, ConnectionStatus level, Intent intent) {
+                received.add(state);
+            }
+
+            @Override
+            public void setConnectedVPN(String uuid) {
+                received.add("uuid:" + uuid);
+            }
+        }, executor);
+
+        bus.publishState("CONNECTING", "", 0, ConnectionStatus.LEVEL_CONNECTING_NO_SERVER_REPLY_YET, null);
+        bus.publishConnectedVPN("1234");
+        bus.publishState("CONNECTED", "", 0, ConnectionStatus.LEVEL_CONNECTED, null);
+        Assert.assertEquals(2, bus.getStats().get(0).getQueueDepth());
+        executor.runAll();
+
+        Assert.assertEquals(2, received.size());
+        Assert.assertEquals("uuid:1234", received.get(0));
+        Assert.assertEquals("CONNECTED", received.get(1));
+        Assert.assertEquals(1, bus.getStats().get(0).getCoalesced());
+    }
+
+    @Test
+    public void testLogQueueDropsOldest() {
+        final List<LogItem> received = new ArrayList<>();
+        bus.subscribe(received::add, executor, 3);
+
+        for (int i = 0; i < 5; i++)
+            bus.publishLog(new LogItem(VpnStatus.LogLevel.INFO, "log " + i, i));
+        StatusEventBus.ListenerStats stats = bus.getStats().get(0);
+        Assert.assertEquals(3, stats.getQueueDepth());
+        Assert.assertEquals(2, stats.getDropped());
+
+        executor.runAll();
+        Assert.assertEquals(3, received.size());
+        Assert.assertEquals(2, received.get(0).getLogtime());
+        Assert.assertEquals(4, received.get(2).getLogtime());
+    }
+
+    @Test
+    public void testUnsubscribeDiscardsPending() {
+        final List<LogItem> received = new ArrayList<>();
+        VpnStatus.LogListener listener = received::add;
+        bus.subscribe(listener, executor, 10);
+        bus.publishLog(new LogItem(VpnStatus.LogLevel.INFO, "pending"));
+        bus.unsubscribe(listener);
+        bus.publishLog(new LogItem(VpnStatus.LogLevel.INFO, "after"));
+        executor.runAll();
+
+        Assert.assertTrue(received.isEmpty());
+        Assert.assertFalse(bus.isSubscribed(listener));
+    }
+
+    /* Like OpenVPNStatusService, which listens to everything */
+    static class AllListener implements VpnStatus.LogListener, VpnStatus.StateListener, VpnStatus.ByteCountListener {
+        String state;
+
+        @Override
+        public void newLog(LogItem logItem) {
+        }
+
+        @Override
+        public void updateState(String state, String logmessage, int localizedResId, ConnectionStatus level, Intent intent) {
+            this.state = state;
+        }
+
+        @Override
+        public void setConnectedVPN(String uuid) {
+        }
+
+        @Override
+        public void updateByteCount(long in, long out, long diffIn, long diffOut) {
+        }
+    }
+
+    @Test
+    public void testOneListenerOfAllKinds() {
+        VpnStatus.updateStateString("NOPROCESS", "", 0, ConnectionStatus.LEVEL_NOTCONNECTED);
+        AllListener listener = new AllListener();
+        VpnStatus.addLogListener(listener);
+        VpnStatus.addByteCountListener(listener);
+        VpnStatus.addStateListener(listener);
+        /* A second registration is ignored */
+        VpnStatus.addStateListener(listener);
+        try {
+            /* The current state is delivered before addStateListener returns */
+            Assert.assertEquals("NOPROCESS", listener.state);
+
+            List<String> kinds = new ArrayList<>();
+            for (StatusEventBus.ListenerStats stats : VpnStatus.getListenerStats()) {
+                if (stats.getListener().equals(AllListener.class.getName()))
+                    kinds.add(stats.getEventType());
+            }
+            Assert.assertEquals(3, kinds.size());
+            Assert.assertTrue(kinds.contains("log"));
+            Assert.assertTrue(kinds.contains("state"));
+            Assert.assertTrue(kinds.contains("bytecount"));
+        } finally {
+            VpnStatus.removeLogListener(listener);
+            VpnStatus.removeByteCountListener(listener);
+            VpnStatus.removeStateListener(listener);
+        }
+    }
+
+    @Test
+    public void testSlowListenerDoesNotBlockProducer() throws Exception {
+        StatusEventBus.EventDispatcher dispatcher = new StatusEventBus.EventDispatcher("TestEvents");
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch delivered = new CountDownLatch(1);
+        final long[] lastIn = new long[1];
+        bus.subscribe((in, out, diffIn, diffOut) -> {
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {
+            }
+            lastIn[0] = in;
+            if (in == 999)
+                delivered.countDown();
+        }, dispatcher);
+
+        /* The listener blocks, publishing must still return immediately */
+        for (int i = 0; i < 1000; i++)
+            bus.publishByteCount(i, i, 1, 1);
+        release.countDown();
+
+        Assert.assertTrue(delivered.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(999, lastIn[0]);
+        dispatcher.quit();
+    }
+}
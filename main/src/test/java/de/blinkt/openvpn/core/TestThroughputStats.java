@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestThroughputStats {
+
+    @Test
+    public void testRatesAndPercentiles() {
+        ThroughputStats stats = new ThroughputStats();
+        long t = 0;
+        stats.update(0, 0, true, t);
+        /* One minute of 1..100 kB/s in and a constant 2 kB/s out */
+        for (int i = 1; i <= 60; i++) {
+            t += 1000;
+            stats.update((i % 100 + 1) * 1000L, 2000, true, t);
+        }
+
+        ThroughputStats.Snapshot snapshot = stats.snapshot(t);
+        Assert.assertEquals(1000 * 2, snapshot.getMinIn(), 1);
+        Assert.assertEquals(1000 * 61, snapshot.getMaxIn(), 1);
+        Assert.assertEquals(1000 * 31, snapshot.getMedianIn(), 1000 * 31 * (ThroughputStats.RateSketch.GAMMA - 1));
+        Assert.assertEquals(1000 * 58, snapshot.getP95In(), 1000 * 58 * (ThroughputStats.RateSketch.GAMMA - 1));
+        Assert.assertTrue(snapshot.getRateIn() > 40000 && snapshot.getRateIn() < 61000);
+        Assert.assertEquals(2000, snapshot.getRateOut(), 1);
+        Assert.assertEquals(2000, snapshot.getP95Out(), 1);
+        Assert.assertEquals(0, snapshot.getJitterOut(), 1);
+        Assert.assertFalse(snapshot.isStalled());
+    }
+
+    @Test
+    public void testStall() {
+        ThroughputStats stats = new ThroughputStats();
+        long t = 0;
+        Assert.assertEquals(ThroughputStats.NO_CHANGE, stats.update(0, 0, true, t));
+        t += ThroughputStats.STALL_TIMEOUT_MS - 1000;
+        Assert.assertEquals(ThroughputStats.NO_CHANGE, stats.update(0, 100, true, t));
+        t += 1000;
+        Assert.assertEquals(ThroughputStats.STALL_STARTED, stats.update(0, 100, true, t));
+        Assert.assertTrue(stats.snapshot(t + 5000).isStalled());
+        Assert.assertEquals(ThroughputStats.STALL_TIMEOUT_MS + 5000, stats.snapshot(t + 5000).getStalledFor());
+        Assert.assertEquals(ThroughputStats.NO_CHANGE, stats.update(0, 100, true, t + 1000));
+
+        t += 2000;
+        Assert.assertEquals(ThroughputStats.STALL_ENDED, stats.update(10, 100, true, t));
+        Assert.assertFalse(stats.snapshot(t).isStalled());
+
+        /* A new connection starts without the rates and the stall of the old one */
+        t += ThroughputStats.STALL_TIMEOUT_MS;
+        Assert.assertEquals(ThroughputStats.STALL_STARTED, stats.update(0, 100, true, t));
+        stats.reset();
+        Assert.assertFalse(stats.snapshot(t).isStalled());
+        Assert.assertEquals(0, stats.snapshot(t).getRateOut(), 0);
+
+        /* Not connected is never stalled */
+        stats.update(0, 0, false, t);
+        Assert.assertEquals(ThroughputStats.NO_CHANGE, stats.update(0, 0, false, t + 10 * ThroughputStats.STALL_TIMEOUT_MS));
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.LinkedList;
+
+public class TestTrafficHistory {
+
+    @Test
+    public void testRollover() {
+        TrafficHistory history = new TrafficHistory();
+        long start = 1700000000000L;
+        long end = start + 7 * TrafficHistory.TIME_PERIOD_HOURS;
+        long bytes = 0;
+        for (long t = start; t < end; t += 1000) {
+            bytes += 1000;
+            history.addDataPoint(bytes, bytes / 2, t);
+        }
+
+        TrafficHistory.Series seconds = history.getSecondsView();
+        Assert.assertTrue(seconds.size() <= TrafficHistory.SECONDS_CAPACITY);
+        long last = seconds.getTimestamp(seconds.size() - 1);
+        Assert.assertTrue(last - seconds.getTimestamp(0) < (TrafficHistory.PERIODS_TO_KEEP + 1) * TrafficHistory.TIME_PERIOD_MINTUES);
+
+        /* One data point per minute of the last five to six hours */
+        TrafficHistory.Series minutes = history.getMinutesView();
+        Assert.assertTrue(last - minutes.getTimestamp(0) < (TrafficHistory.PERIODS_TO_KEEP + 1) * TrafficHistory.TIME_PERIOD_HOURS);
+        Assert.assertTrue(minutes.size() > (TrafficHistory.PERIODS_TO_KEEP - 1) * 60);
+        for (int i = 1; i < minutes.size(); i++)
+            Assert.assertEquals(TrafficHistory.TIME_PERIOD_MINTUES, minutes.getTimestamp(i) - minutes.getTimestamp(i - 1));
+
+        /* The hour boundaries that were crossed, plus the first data point */
+        TrafficHistory.Series hours = history.getHoursView();
+        Assert.assertTrue(hours.size() == 7 || hours.size() == 8);
+        Assert.assertEquals(start, hours.getTimestamp(0));
+        Assert.assertEquals(hours.getIn(0) / 2, hours.getOut(0));
+
+        LinkedList<TrafficHistory.TrafficDatapoint> list = history.getMinutes();
+        Assert.assertEquals(minutes.size(), list.size());
+        Assert.assertEquals(minutes.getTimestamp(3), list.get(3).timestamp);
+        Assert.assertEquals(minutes.getIn(3), list.get(3).in);
+    }
+
+    @Test
+    public void testDeltaSync() throws Exception {
+        TrafficHistory service = new TrafficHistory();
+        TrafficHistory client = new TrafficHistory();
+        long start = 1700000000000L;
+        long bytes = 0;
+        for (long t = start; t < start + 2 * TrafficHistory.TIME_PERIOD_HOURS; t += 1000) {
+            bytes += t % 7000;
+            service.addDataPoint(bytes, bytes / 3, t);
+        }
+
+        byte[] all = service.encodeNewerThan(client.getLastTimestamp());
+        client.addDelta(all, 0);
+        assertSameSeries(service.getSecondsView(), client.getSecondsView());
+        assertSameSeries(service.getMinutesView(), client.getMinutesView());
+        assertSameSeries(service.getHoursView(), client.getHoursView());
+
+        /* A new connection starts counting from zero again */
+        long last = client.getLastTimestamp();
+        service.addDataPoint(100, 10, last + 1000);
+        service.addDataPoint(200, 20, last + 60 * 1000);
+        byte[] delta = service.encodeNewerThan(last);
+        Assert.assertTrue(delta.length < 40 && delta.length < all.length / 50);
+        client.addDelta(delta, last);
+        assertSameSeries(service.getSecondsView(), client.getSecondsView());
+        assertSameSeries(service.getMinutesView(), client.getMinutesView());
+
+        /* Nothing new */
+        client.addDelta(service.encodeNewerThan(client.getLastTimestamp()), client.getLastTimestamp());
+        assertSameSeries(service.getSecondsView(), client.getSecondsView());
+    }
+
+    private static void assertSameSeries(TrafficHistory.Series expected, TrafficHistory.Series actual) {
+        Assert.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertEquals(expected.getTimestamp(i), actual.getTimestamp(i));
+            Assert.assertEquals(expected.getIn(i), actual.getIn(i));
+            Assert.assertEquals(expected.getOut(i), actual.getOut(i));
+        }
+    }
+}
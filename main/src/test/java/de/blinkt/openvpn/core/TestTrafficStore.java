@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2012-2026 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.TimeZone;
+
+public class TestTrafficStore {
+    private static final String UUID = "0b7c4d2e-1111-4a4a-9c9c-123456789abc";
+    private static final long DAY_MS = 24L * 3600 * 1000;
+
+    private File mDir;
+    private TrafficStore mStore;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("traffic").toFile();
+        mStore = new TrafficStore(mDir, TimeZone.getTimeZone("UTC"));
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : mDir.listFiles())
+            f.delete();
+        mDir.delete();
+    }
+
+    @Test
+    public void testDailyAndConnections() {
+        long today = System.currentTimeMillis() / DAY_MS * DAY_MS;
+        long yesterday = today - DAY_MS;
+
+        /* One connection from yesterday into today */
+        mStore.add(UUID, 1000, 100, yesterday + 1000);
+        mStore.add(UUID, 5000, 500, yesterday + DAY_MS - 1000);
+        mStore.add(UUID, 8000, 800, today + 1000);
+        /* A new connection, the counters start again */
+        mStore.add(UUID, 300, 30, today + 2000);
+        mStore.flush();
+
+        List<TrafficStore.Usage> days = mStore.getDailyUsage(UUID, 3);
+        Assert.assertEquals(3, days.size());
+        Assert.assertEquals(0, days.get(0).getIn());
+        Assert.assertEquals(yesterday, days.get(1).getStart());
+        Assert.assertEquals(5000, days.get(1).getIn());
+        Assert.assertEquals(500, days.get(1).getOut());
+        Assert.assertEquals(3000 + 300, days.get(2).getIn());
+
+        List<TrafficStore.Usage> connections = mStore.getConnections(UUID, 10);
+        Assert.assertEquals(2, connections.size());
+        Assert.assertEquals(8000, connections.get(0).getIn());
+        Assert.assertEquals(300, connections.get(1).getIn());
+    }
+
+    @Test
+    public void testCompactRollsUpOldDays() {
+        long now = System.currentTimeMillis();
+        long start = now - 200 * DAY_MS;
+        long total = 0;
+        long counter = 0;
+        for (long t = start; t <= now; t += DAY_MS / 4) {
+            counter += 1000;
+            total += 1000;
+            mStore.add(UUID, counter, 0, t);
+            mStore.flush();
+        }
+
+        File file = mStore.fileOf(UUID);
+        mStore.compact(file, now);
+        Assert.assertTrue(file.length() < TrafficStore.COMPACT_SIZE);
+
+        long sum = 0;
+        for (TrafficStore.Usage month : mStore.getMonthlyUsage(UUID, 12))
+            sum += month.getIn();
+        Assert.assertEquals(total, sum);
+
+        long recent = 0;
+        for (TrafficStore.Usage day : mStore.getDailyUsage(UUID, TrafficStore.DAILY_RETENTION_DAYS))
+            recent += day.getIn();
+        Assert.assertTrue(recent > 0 && recent < total);
+    }
+}